@@ -0,0 +1,261 @@
+package bending_crystal_track;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Tracks many experiments without a user. Every experiment is a directory with an image sequence and the setup
+ * saved there by the interactive plugin (the reference frame, the points and the matching parameters).
+ * Several experiments are tracked at the same time, their engines share one pool of matching threads, so the
+ * number of threads does not grow with the number of experiments. A region that is lost is handled by the failure
+ * policy of the setup (the frame is skipped by default) and the frame is flagged.
+ * The results of an experiment are written to its directory while it is tracked, the flagged frames when it ends;
+ * the summary table has a row per experiment. The tracking state is saved in the directory from time to time,
+ * an interrupted batch continues every experiment from its checkpoint.
+ */
+public class Batch_Track implements PlugIn {
+
+	private static final String pluginName = "Bending Crystal Batch";
+	static final String REVIEW_FILE = "BendingCrystalTrack.review.csv";
+
+	private final AtomicInteger framesDone = new AtomicInteger();
+	private int framesTotal;
+	private volatile boolean stopRequested;
+
+	@Override
+	public void run(String arg) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		GenericDialog gd = new GenericDialog(pluginName);
+		gd.addMessage("Sequence directories, one per line (a directory without a setup stands for its subdirectories):");
+		gd.addTextAreas(Prefs.get("BendingCrystalTrack.batchDirs", ""), null, 10, 60);
+		gd.addNumericField("Experiments tracked at once ", Prefs.get("BendingCrystalTrack.batchExperiments", Math.max(1, cores/2)), 0);
+		gd.addNumericField("Matching threads (shared) ", Prefs.get("BendingCrystalTrack.batchThreads", Math.max(1, cores - 1)), 0);
+		gd.addCheckbox("Save the results in each directory", Prefs.get("BendingCrystalTrack.batchSave", true));
+		gd.addCheckbox("Resume the experiments from their checkpoints", Prefs.get("BendingCrystalTrack.batchResume", true));
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		String dirs = gd.getNextText();
+		int parallel = Math.max(1, (int) gd.getNextNumber());
+		int threads = Math.max(1, (int) gd.getNextNumber());
+		boolean save = gd.getNextBoolean();
+		boolean resume = gd.getNextBoolean();
+		Prefs.set("BendingCrystalTrack.batchDirs", dirs);
+		Prefs.set("BendingCrystalTrack.batchExperiments", parallel);
+		Prefs.set("BendingCrystalTrack.batchThreads", threads);
+		Prefs.set("BendingCrystalTrack.batchSave", save);
+		Prefs.set("BendingCrystalTrack.batchResume", resume);
+
+		List<Experiment> experiments = new ArrayList<Experiment>();
+		for (String line : dirs.split("\n")) {
+			if (line.trim().isEmpty()) continue;
+			File dir = new File(line.trim());
+			if (new File(dir, TrackerConfig.SETUP_FILE).isFile()) experiments.add(new Experiment(dir));
+			else {
+				File[] subdirs = dir.listFiles(f -> f.isDirectory() && new File(f, TrackerConfig.SETUP_FILE).isFile());
+				if (subdirs == null || subdirs.length == 0) IJ.log(pluginName + ": no setup in " + dir);
+				else {
+					Arrays.sort(subdirs);
+					for (File subdir : subdirs) experiments.add(new Experiment(subdir));
+				}
+			}
+		}
+		if (experiments.isEmpty()) {
+			IJ.error(pluginName, "No directory with a saved setup (" + TrackerConfig.SETUP_FILE + ").\n"
+					+ "The setup is saved when the points are selected in the Bending Crystal Track plugin.");
+			return;
+		}
+		for (Experiment e : experiments) framesTotal += e.prepare(resume);
+
+		ExecutorService workers = TrackerEngine.newWorkerPool(threads);
+		ExecutorService runners = TrackerEngine.newWorkerPool(Math.min(parallel, experiments.size()));
+		long start = System.nanoTime();
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (Experiment e : experiments) tasks.add(runners.submit(() -> e.track(workers, save)));
+			for (Future<?> task : tasks) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					IJ.log(pluginName + ": " + e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			stopRequested = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			runners.shutdownNow();
+			workers.shutdownNow();
+		}
+		double elapsed = (System.nanoTime() - start)*1e-9;
+		IJ.showProgress(1.0);
+
+		ResultsTable rt = new ResultsTable();
+		int tracked = 0;
+		for (Experiment e : experiments) {
+			e.addSummary(rt);
+			tracked += e.tracked;
+		}
+		rt.show(pluginName + " Results");
+		IJ.showStatus(pluginName + ": " + tracked + " frames of " + experiments.size() + " experiments in "
+				+ IJ.d2s(elapsed, 1) + " s (" + IJ.d2s(tracked/Math.max(elapsed, 1e-9), 2) + " frames/s)"
+				+ (stopRequested ? ", stopped" : ""));
+	}
+
+	// one frame of an experiment is done, Esc stops all of them
+	private void frameDone(Experiment e) {
+		int done = framesDone.incrementAndGet();
+		if ((done & 7) == 0 || done == framesTotal) {
+			IJ.showProgress(done, framesTotal);
+			IJ.showStatus(e.dir.getName() + ": " + (e.tracked + e.skipped) + "/" + (e.source.size() - e.refSlice));
+		}
+		if (IJ.escapePressed()) stopRequested = true;
+	}
+
+	private final class Experiment {
+
+		final File dir;
+		TrackerConfig config;
+		FolderFrameSource source;
+		int refSlice, checkpointSlice;
+		String error;
+		volatile int tracked, skipped;
+		int flagged;
+		double seconds, curvature, deformation, curvatureMax, deformationMax, elapsed;
+
+		Experiment(File dir) {
+			this.dir = dir;
+		}
+
+		// reads the setup and the checkpoint, returns the number of frames to track
+		int prepare(boolean resume) {
+			try {
+				config = TrackerConfig.load(new File(dir, TrackerConfig.SETUP_FILE));
+			} catch (IOException e) {
+				error = e.getMessage();
+				return 0;
+			}
+			source = new FolderFrameSource(dir);
+			refSlice = config.referenceFrame == null ? 1 : source.indexOf(config.referenceFrame);
+			if (config.holderRect == null) error = "the holder region is not in the setup";
+			else if (refSlice == 0) error = "the reference frame " + config.referenceFrame + " is missing";
+			if (error != null) return 0;
+			File checkpoint = new File(dir, Checkpoint.FILE_NAME);
+			if (resume && checkpoint.isFile()) {
+				try {
+					checkpointSlice = Checkpoint.slice(checkpoint);
+				} catch (IOException e) {
+					IJ.log(pluginName + ": " + dir + " is tracked from the start (" + e.getMessage() + ")");
+				}
+				// the checkpoint of a finished run, the sequence is tracked again
+				if (checkpointSlice >= source.size()) checkpointSlice = 0;
+			}
+			return source.size() - Math.max(refSlice, checkpointSlice);
+		}
+
+		void track(ExecutorService workers, boolean save) {
+			if (error != null || stopRequested) return;
+			TrackerEngine engine = new TrackerEngine(config, source, workers);
+			File checkpoint = new File(dir, Checkpoint.FILE_NAME);
+			int resumed = 0;
+			if (checkpointSlice > 0) {
+				try {
+					resumed = engine.resume(checkpoint);
+				} catch (IOException e) {
+					IJ.log(pluginName + ": " + dir + " is tracked from the start (" + e.getMessage() + ")");
+				}
+			}
+			ResultsWriter writer = null;
+			if (save) {
+				try {
+					writer = new ResultsWriter(new File(dir, ResultsWriter.FILE_NAME),
+							config.resultsFiles == 0 ? ResultsWriter.CSV : config.resultsFiles, resumed > 0);
+				} catch (IOException e) {
+					error = "the results are not saved (" + e.getMessage() + ")";
+					engine.close();
+					return;
+				}
+			}
+			final ResultsWriter results = writer;
+			engine.setCheckpoint(checkpoint, config.checkpointInterval);
+			long start = System.nanoTime();
+			try {
+				engine.setListener(new TrackerListener() {
+					@Override
+					public void frameTracked(FrameResult result) {
+						addResult(results, result);
+						tracked++;
+						frameDone(Experiment.this);
+						if (stopRequested) engine.stop();
+					}
+
+					@Override
+					public void frameSkipped(int slice, String label) {
+						skipped++;
+						frameDone(Experiment.this);
+						if (stopRequested) engine.stop();
+					}
+				});
+				curvatureMax = deformationMax = Double.NEGATIVE_INFINITY;
+				if (resumed == 0) addResult(results, engine.setReference(refSlice));
+				engine.run(Math.max(refSlice, resumed) + 1);
+			} catch (RuntimeException e) {
+				// an experiment that fails does not stop the others
+				error = e.getMessage() == null ? e.toString() : e.getMessage().replace('\n', ' ');
+			} finally {
+				engine.close();
+				elapsed = (System.nanoTime() - start)*1e-9;
+			}
+			if (engine.checkpointError() != null) IJ.log(pluginName + ": " + dir + ", the tracking state is not saved (" 
+					+ engine.checkpointError().getMessage() + ")");
+			flagged = engine.reviewQueue().slices().length;
+			if (save) {
+				try {
+					results.close();
+					File review = new File(dir, REVIEW_FILE);
+					if (flagged > 0) engine.reviewQueue().save(review);
+					else if (review.exists()) review.delete();
+				} catch (IOException e) {
+					error = "the results are not saved (" + e.getMessage() + ")";
+				}
+			}
+		}
+
+		private void addResult(ResultsWriter results, FrameResult result) {
+			if (results != null) results.frameTracked(result);
+			seconds = result.seconds;
+			curvature = result.curvature;
+			deformation = result.deformation;
+			curvatureMax = Math.max(curvatureMax, result.curvature);
+			deformationMax = Math.max(deformationMax, result.deformation);
+		}
+
+		void addSummary(ResultsTable rt) {
+			rt.incrementCounter();
+			rt.addValue("Directory", dir.getPath());
+			rt.addValue("Frames", source == null ? 0 : source.size());
+			rt.addValue("Tracked", tracked);
+			rt.addValue("Skipped", skipped);
+			rt.addValue("Flagged", flagged);
+			rt.addValue("Seconds", elapsed);
+			rt.addValue("Frames/s", elapsed > 0 ? (tracked + skipped)/elapsed : 0.0);
+			rt.addValue("Time", seconds);
+			rt.addValue("Curvature", curvature);
+			rt.addValue("Deformation", deformation);
+			rt.addValue("maxCurvature", tracked > 0 ? curvatureMax : curvature);
+			rt.addValue("maxDeformation", tracked > 0 ? deformationMax : deformation);
+			rt.addValue("Error", error == null ? "" : error);
+		}
+	}
+}
@@ -12,15 +12,11 @@ import java.time.Instant;
 
 import org.bytedeco.javacpp.*;
 import org.bytedeco.javacv.Java2DFrameUtils;
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.exif.ExifSubIFDDirectory;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 
-import ij.plugin.FolderOpener;
 import ij.plugin.filter.*;
 import ij.plugin.frame.Recorder;
 import ij.measure.ResultsTable;
@@ -29,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
 
 import javax.swing.JDialog;
@@ -74,35 +71,27 @@ public class Bending_Crystal_Track implements PlugInFilter, DialogListener {
 	
 	private static final String pluginName = "Bending Crystal Track";
 	
-    ImagePlus imp, ref_Image, refImageBinary, free_ref, free_tpl, holder_ref, mid_ref, mid_tpl;
+    ImagePlus imp, ref_Image, refImageBinary;
     ArrayList<ImagePlus> refBinaryFrames;
 
-    GaussianBlur gaussianBlur;
     ImageStack stack;
-    Rectangle free_rect, holder_rect, mid_rect;
-    Roi free_roi,holder_roi,middle_roi;
+    Roi holder_roi;
     PointRoi proi_free,proi_att,proi_mid;
-    int method=5, refSlice, sArea = 20, templSize=300;
-    double seconds=0, timeStep=1.0;
-    Instant first_shot_time; 
-    int width, height, refBitDepth;//, refX_free, refY_free, refX_att, refY_att, refX_mid, refY_mid;
-    double refX_free, refY_free, refX_att, refY_att, refX_mid, refY_mid;
-    double freeRefCenterShiftX, freeRefCenterShiftY, midRefCenterShiftX, midRefCenterShiftY;
-    double disX_free, disY_free, disX_holder, disY_holder, disX_mid, disY_mid, rotAngle, disX_holder_save=0.0, disY_holder_save=0.0;
-    double length_ini=0.0, cr_length, hord_ini,
-    	   curvature_ini, curvature, 
-    	   bending_angle_ini, bending_angle, 
-    	   deflection_angle_ini, deflection_angle, 
-    	   full_angle, full_angle_ini,
-    	   initial_angle,
-    	   deformation=0.0;
-    double h0_x,h0_y;
-    ArrayList<Double> curv_list, deform_list, time_list, freeEnd_matchRes, attEnd_matchRes, mid_matchRes ; 
-    double curv_min=0.0, curv_max=0.0, def_min=0.0, def_max = 0.0;
-    double free_mideal, att_mideal, mid_mideal;
+    int refSlice;
+    int width, height, refBitDepth;
+    // the time, the curvature and the deformation of the tracked frames (in the order of the table rows)
+    SeriesStore series;
+    static final int TIME = 0, CURVATURE = 1, DEFORMATION = 2, SLICE = 3;
+    // the views are redrawn at a limited rate, the results not shown yet wait for the table
+    DisplayUpdater display;
+    final ArrayList<FrameResult> pending_rows = new ArrayList<FrameResult>();
+    // the results written to the disk as they come, null if they are not
+    ResultsWriter results_writer;
+    // the slice of the checkpoint the tracking is resumed from, 0 if it starts at the reference
+    int resumedSlice;
     
     ImagePlus plotImage, plotDefImage;
-    boolean folderMonitoring=true, updateTemplates=false, exifTime=true, saveFlatten=false, videoInput=false, stopPlugin=false,
+    boolean folderMonitoring=true, updateTemplates=false, saveFlatten=false, videoInput=false, stopPlugin=false,
     		useTimeStamps=true, javacvInstalled = false;
     volatile JDialog stopDlg=null;
     //volatile WaitForUserDialog MonitorDlg=null;
@@ -116,16 +105,21 @@ public class Bending_Crystal_Track implements PlugInFilter, DialogListener {
     
     
     
-    FloatProcessor result;
+    // the settings of the dialogs and the selected points, the tracking itself is done by the engine
+    TrackerConfig config = new TrackerConfig();
+    TrackerEngine engine;
+    static final String[] recoveryModes = {"Double the search area", "Pyramid search at 1/4 scale", "Pyramid search at 1/8 scale"};
+    static final String[] rotationModes = {"Iterate from the bending model", "Fourier-Mellin estimate"};
+    // what is done with a failed match: the user is asked or a failure policy answers
+    static final String[] failureChoices = {"Ask", FailurePolicy.SKIP.title, FailurePolicy.ADAPT.title, 
+    		FailurePolicy.RESEARCH.title, FailurePolicy.MARK.title};
+    // indexed by the ResultsWriter formats
+    static final String[] resultsFileChoices = {"None", "CSV", "Binary", "CSV and binary"};
+    PrefetchStack prefetch_stack;
     ResultsTable rt, rt_mres;
     String arg;
     int windowSizeX, windowSizeY, iniX, iniY;
-    boolean subPixel = true;
-    boolean matchIntensity = true;
     boolean showRT = true;
-	Roi refCropRoi = null;
-	Roi mid_refCropRoi = null;
-	double[] matchThreshold=new double[]{0.1, 0.1, 0.05, 0.05, 0.2, 0.2};
 	ImageWindow imgWindow;
 	Font fontParamInfo;
 	
@@ -139,34 +133,27 @@ public class Bending_Crystal_Track implements PlugInFilter, DialogListener {
         gd.addMessage("The images do not have EXIF data.\n"
         		+ "A constant time step will be used to define creation time of every next image.\n"
         		+ "Change the default time step if necessary.");
-        gd.addNumericField("Time step in seconds ", timeStep, 0);
+        gd.addNumericField("Time step in seconds ", config.timeStep, 0);
         gd.showDialog();
-        timeStep = gd.getNextNumber();
+        config.timeStep = gd.getNextNumber();
 	}
 	
 	private boolean setStandardCrystalLength() {
+		double h_x=config.freeX-config.attachedX,
+			   h_y=config.freeY-config.attachedY,
+			   length=Math.sqrt(h_x*h_x+h_y*h_y);
 		GenericDialog gd = new GenericDialog("Adjust crystal length");
         gd.addMessage("Set standard crystal length to adjust position of the attached end");
-        gd.addMessage(String.format("Current crystal length: %.1f", length_ini));
-        gd.addNumericField("Standard length in pixels ", length_ini, 0);
+        gd.addMessage(String.format("Current crystal length: %.1f", length));
+        gd.addNumericField("Standard length in pixels ", length, 0);
         gd.showDialog();
         if (gd.wasCanceled()) {
             return false;
         }
         
         double std_length = gd.getNextNumber();
-        refX_att = refX_free + (std_length*(refX_att - refX_free)/length_ini);
-        refY_att = refY_free + (std_length*(refY_att - refY_free)/length_ini);
-        h0_x=refX_free-refX_att;
-        h0_y=refY_free-refY_att;
-        length_ini=Math.sqrt(h0_x*h0_x+h0_y*h0_y);
-        hord_ini= length_ini;
-        
-        full_angle_ini=Math.acos(h0_x/hord_ini);
-        if (refY_free>refY_att) full_angle_ini=-full_angle_ini;
-        
-        refX_mid = (refX_free + refX_att)/2;
-        refY_mid = (refY_free + refY_att)/2;
+        config.attachedX = config.freeX + (std_length*(config.attachedX - config.freeX)/length);
+        config.attachedY = config.freeY + (std_length*(config.attachedY - config.freeY)/length);
 
         return true;
 
@@ -279,8 +266,10 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
 		int returnMask = NO_IMAGE_REQUIRED + DOES_8G + DOES_16 +  DOES_32 + DOES_RGB + STACK_REQUIRED;
     	//IJ.run("Install JavaCV libraries", "select=[Install missing] opencv openblas");
     	
-		javacvInstalled = checkJavaCV("1.5", true, "opencv");
-		if (!javacvInstalled)
+		// the pure Java matching does not need the JavaCV libraries
+		config.matchBackend = (int) Prefs.get("BendingCrystalTrack.matchBackend", MatchWorkspace.OPENCV);
+		if (config.matchBackend == MatchWorkspace.OPENCV) javacvInstalled = checkJavaCV("1.5", true, "opencv");
+		if (!javacvInstalled && config.matchBackend == MatchWorkspace.OPENCV)
     	{
     		stopPlugin=true;
             return returnMask;
@@ -479,13 +468,6 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
     
     private boolean selectPoints(boolean reselect) {
     	
-    	disX_free=0.0;
-		disY_free=0.0;
-		disX_holder=0.0;
-		disY_holder=0.0;
-		disX_mid=0.0;
-		disY_mid=0.0;
-    	
     	Overlay ov;
     	ov = new Overlay();
         imp.setOverlay(ov);
@@ -514,26 +496,15 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         		IJ.showMessageWithCancel("Error", "Point is not selected.\nPlease follow the instruction or press cancel to stop."));
         
         if (proi_free==null) return false;
-        refX_free=proi_free.getFloatPolygon().xpoints[0];
-        refY_free=proi_free.getFloatPolygon().ypoints[0];
-        
+        config.freeX=proi_free.getFloatPolygon().xpoints[0];
+        config.freeY=proi_free.getFloatPolygon().ypoints[0];
         
-        
-        double d1 = refX_free, d2 = width - refX_free, d3 = refY_free, d4 = height - refY_free;
-        double dmin = Math.min(Math.min(d1, d2), Math.min(d3, d4));
-        if (dmin<=sArea+1)
+        if (TrackerEngine.templateHalfSize(config.freeX, config.freeY, width, height, config.templSize, config.sArea)<0)
         {
         	IJ.showMessage("Error", "Search point is to close to the edge.\nReduce template rectangle size on the first dialog.");
             return false;
         }
         
-        int rect_half_size=templSize/2;
-        double rect_hs_tmp = Math.max(rect_half_size, 0.7*rect_half_size+sArea);
-        if (rect_hs_tmp>dmin)
-        {
-        	rect_half_size =(int) Math.min((dmin-sArea)/0.7, dmin);
-        }
-        
        
         proi_free.setPointType(3);
         ov.addElement(proi_free);
@@ -552,46 +523,36 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         		IJ.showMessageWithCancel("Error", "Point is not selected.\nPlease follow the instruction or press cancel to stop."));
         
         if (proi_att==null) return false;
-        refX_att=proi_att.getFloatPolygon().xpoints[0];
-        refY_att=proi_att.getFloatPolygon().ypoints[0];
-        
-        h0_x=refX_free-refX_att;
-        h0_y=refY_free-refY_att;
-        hord_ini=Math.sqrt(h0_x*h0_x+h0_y*h0_y);
-        
-        full_angle_ini=Math.acos(h0_x/hord_ini);
-        if (refY_free>refY_att) full_angle_ini=-full_angle_ini;
+        config.attachedX=proi_att.getFloatPolygon().xpoints[0];
+        config.attachedY=proi_att.getFloatPolygon().ypoints[0];
         
         proi_att.setPointType(3);
         ov.addElement(proi_att); 
-        Line crystal_line = new Line(refX_free,refY_free,refX_att,refY_att);
+        Line crystal_line = new Line(config.freeX,config.freeY,config.attachedX,config.attachedY);
         ov.addElement(crystal_line);
         imp.setOverlay(ov);
         
         
-        refX_mid = (refX_free + refX_att)/2;
-        refY_mid = (refY_free + refY_att)/2;
-        
         int dialogButton = JOptionPane.YES_NO_OPTION;
         int dialogResult = JOptionPane.showConfirmDialog(null, "Is the cristal initially straight?", 
         													"Initial crystal bending", dialogButton);
-        if(dialogResult == 0) {
-          length_ini=hord_ini;
+        config.straight = (dialogResult == 0);
+        if(config.straight) {
           if (setStandardCrystalLength()) {
-        	  proi_att.setLocation(refX_att, refY_att);
+        	  proi_att.setLocation(config.attachedX, config.attachedY);
         	  ov.addElement(proi_att); 
-        	  crystal_line = new Line(refX_free,refY_free,refX_att,refY_att);
+        	  crystal_line = new Line(config.freeX,config.freeY,config.attachedX,config.attachedY);
               ov.addElement(crystal_line);
               imp.setOverlay(ov);
           }
           
           
         } else {
-        	double x0 = refX_mid,
-     			   y0 = refY_mid,
+        	double x0 = (config.freeX + config.attachedX)/2,
+     			   y0 = (config.freeY + config.attachedY)/2,
      			  
-     			   dx = -(refY_free-refY_att),
-     			   dy = refX_free-refX_att,
+     			   dx = -(config.freeY-config.attachedY),
+     			   dy = config.freeX-config.attachedX,
      			   dr = Math.sqrt(dx*dx+dy*dy),
      			   dh = height/2;
              
@@ -618,8 +579,8 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
              		IJ.showMessageWithCancel("Error", "Point is not selected.\nPlease follow the instruction or press cancel to stop."));
             
              if (proi_mid==null) return false;
-             refX_mid=proi_mid.getFloatPolygon().xpoints[0];
-             refY_mid=proi_mid.getFloatPolygon().ypoints[0];
+             config.midX=proi_mid.getFloatPolygon().xpoints[0];
+             config.midY=proi_mid.getFloatPolygon().ypoints[0];
              
              
             
@@ -631,18 +592,6 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         
         
         
-        
-        
-        calcBendingParams(reselect);
-        
-        deflection_angle_ini=deflection_angle;
-        bending_angle_ini=bending_angle;
-        curvature_ini=curvature;
-        initial_angle=full_angle_ini+0.5*bending_angle_ini;
-        
-        
-        
-        
         imp.killRoi();
         do {
          	IJ.setTool("rect");
@@ -656,146 +605,36 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
          		IJ.showMessageWithCancel("Error", "Region is not selected.\nPlease follow the instruction or press cancel to stop."));
         
          if (holder_roi==null || !holder_roi.isArea()) return false;
-            holder_rect = holder_roi.getBounds();
+            config.holderRect = holder_roi.getBounds();
             imp.killRoi();
-            holder_roi = new Roi(holder_rect);
+            holder_roi = new Roi(config.holderRect);
 
         
         ov.addElement(holder_roi);
         imp.setOverlay(ov);
         
-        ref_Image.killRoi();
-        ref_Image.setRoi(holder_roi);
-        holder_ref=ref_Image.crop();
-        if (matchIntensity) {
-        	ImageConverter holder_ic = new ImageConverter(holder_ref);
-        	holder_ic.convertToGray32();
+        // the templates are cut from the reference frame and the crystal is measured there by the engine
+        double oldL0 = engine.length_ini;
+        try {
+        	engine.setReference(refSlice, ref_Image.getProcessor(), reselect);
+        } catch (IllegalArgumentException e) {
+        	IJ.showMessage("Error", e.getMessage());
+        	return false;
         }
-        gaussianBlur = new GaussianBlur();
-        
-        ImageProcessor ip_tmp=holder_ref.getProcessor();
-        gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
+        if (reselect) IJ.showMessage("Initial length is changed from "+oldL0+ "\nto "+engine.length_ini+"\nas the result of new selection");
         
-        
-        ImagePlus tmp_Ip;
-        if (refBitDepth==24 && !matchIntensity) {
-				tmp_Ip = holder_ref.duplicate();
-				ImageConverter ic = new ImageConverter(tmp_Ip);
-        	ic.convertToGray32();
-			} else tmp_Ip=holder_ref;
-		ImageRoi imageRoi_att = new ImageRoi(holder_rect.x, holder_rect.y,tmp_Ip.getProcessor());
+		ImageRoi imageRoi_att = new ImageRoi(engine.holder_rect.x, engine.holder_rect.y,overlayImage(engine.holder_ref).getProcessor());
         imageRoi_att.setOpacity(0.3);
         ov.addElement(imageRoi_att);
-        imp.setOverlay(ov);
-       
-       
-         
-        free_roi=new Roi(refX_free-rect_half_size,refY_free-rect_half_size,2*rect_half_size,2*rect_half_size);
-        free_rect = free_roi.getBounds();
-        
         
-        
-        free_roi=new Roi(free_rect);
-        
-        freeRefCenterShiftX = refX_free - free_rect.x - (free_rect.width - 1)/2.0;
-        freeRefCenterShiftY = refY_free - free_rect.y - (free_rect.height - 1)/2.0;
-        
-        
-        ref_Image.killRoi();
-        ref_Image.setRoi(free_roi);
-        free_ref = ref_Image.crop();
-        if (matchIntensity) {
-        	ImageConverter ic = new ImageConverter(free_ref);
-        	ic.convertToGray32();
-        }
-        
-        ip_tmp=free_ref.getProcessor();
-        gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
-
-        free_rect.x+=(int)(free_rect.width*0.15);
-        free_rect.y+=(int)(free_rect.height*0.15);
-        free_rect.width=(int)(free_rect.width*0.7);
-        free_rect.height=(int)(free_rect.height*0.7);
-        refCropRoi =  new Roi((int)(free_ref.getWidth()*0.15), (int)(free_ref.getHeight()*0.15), 
-				(int)(free_ref.getWidth()*0.7), (int)(free_ref.getHeight()*0.7));
-       
-        tmp_Ip = free_ref.duplicate();
-		tmp_Ip.setRoi(refCropRoi);
-		tmp_Ip = tmp_Ip.crop();
-        if (refBitDepth==24 && !matchIntensity) {
-				
-				ImageConverter ic = new ImageConverter(tmp_Ip);
-        	ic.convertToGray32();
-			} 
-		imageRoi_att = new ImageRoi(free_rect.x, free_rect.y,tmp_Ip.getProcessor());
+        // the templates as they are matched, cropped from the reference regions
+		imageRoi_att = new ImageRoi(engine.free_rect.x, engine.free_rect.y,overlayImage(engine.free_tpl).getProcessor());
         imageRoi_att.setOpacity(0.3);
         ov.addElement(imageRoi_att);
-        imp.setOverlay(ov);
-        
-        
-        d1 = refX_mid;
-        d2 = width - refX_mid;
-        d3 = refY_mid;
-        d4 = height - refY_mid;
-        dmin = Math.min(Math.min(d1, d2), Math.min(d3, d4));
-        if (dmin<=sArea+1)
-        {
-        	IJ.showMessage("Error", "Search point is to close to the edge");
-            return false;
-        }
-        
-        rect_half_size=templSize/2;
-        rect_hs_tmp = Math.max(rect_half_size, 0.7*rect_half_size+sArea);
-        if (rect_hs_tmp>dmin)
-        {
-        	rect_half_size =(int) Math.min((dmin-sArea)/0.7, dmin);
-        }
-        
-        middle_roi=new Roi(refX_mid-rect_half_size,refY_mid-rect_half_size,2*rect_half_size,2*rect_half_size);
-        mid_rect = middle_roi.getBounds();
-        middle_roi=new Roi(mid_rect);
-        
-        midRefCenterShiftX = refX_mid -  mid_rect.x - ( mid_rect.width - 1)/2.0 ;
-        midRefCenterShiftY = refY_mid -  mid_rect.y - ( mid_rect.height - 1)/2.0;
-        
-        
-        
-        ref_Image.killRoi();
-        ref_Image.setRoi(middle_roi);
-        
-
-        mid_rect.x+=(int)(mid_rect.width*0.15);
-        mid_rect.y+=(int)(mid_rect.height*0.15);
-        mid_rect.width=(int)(mid_rect.width*0.7);
-        mid_rect.height=(int)(mid_rect.height*0.7);
         
-        mid_ref = ref_Image.crop();
-        if (matchIntensity) {
-        	ImageConverter ic_mid = new ImageConverter(mid_ref);
-        	ic_mid.convertToGray32();
-        }
-        
-        ip_tmp=mid_ref.getProcessor();
-        gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
-        mid_refCropRoi =  new Roi((int)(mid_ref.getWidth()*0.15), 
-        						  (int)(mid_ref.getHeight()*0.15), 
-        						  (int)(mid_ref.getWidth()*0.7), 
-        						  (int)(mid_ref.getHeight()*0.7));
-
-        
-        
-        tmp_Ip = mid_ref.duplicate();
-		tmp_Ip.setRoi(mid_refCropRoi);
-		tmp_Ip = tmp_Ip.crop();
-        if (refBitDepth==24 && !matchIntensity) {
-				
-				ImageConverter ic = new ImageConverter(tmp_Ip);
-        	ic.convertToGray32();
-			} 
-		imageRoi_att = new ImageRoi(mid_rect.x, mid_rect.y,tmp_Ip.getProcessor());
+		imageRoi_att = new ImageRoi(engine.mid_rect.x, engine.mid_rect.y,overlayImage(engine.mid_tpl).getProcessor());
         imageRoi_att.setOpacity(0.3);
         ov.addElement(imageRoi_att);
-        imp.setOverlay(ov);
         
         for(ImagePlus refBin : refBinaryFrames) {
         	ImageRoi ref_ImageRoi = new ImageRoi(0, 0,refBin.getProcessor());
@@ -884,11 +723,35 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
 	public void run(ImageProcessor ip) {
 
 		if (stopPlugin) {
-			if (javacvInstalled) IJ.showMessage("Error", "No source chosen. Stopping.");
+			if (javacvInstalled || config.matchBackend == MatchWorkspace.JAVA) IJ.showMessage("Error", "No source chosen. Stopping.");
 			return;
 		}
 		
-		
+		try {
+			track();
+			if (display != null) display.flush();
+			reviewFlaggedFrames();
+		} finally {
+			if (display != null) display.close();
+			if (series != null) series.close();
+			closeResultsWriter();
+			if (engine != null && engine.checkpointError() != null) 
+				IJ.log(pluginName + ": the tracking state is not saved (" + engine.checkpointError().getMessage() + ")");
+			// native buffers are freed as soon as the tracking stops
+			if (engine != null) engine.close();
+			endPrefetch();
+		}
+	}
+	
+	// the stack read ahead is replaced by its source again
+	private void endPrefetch() {
+		if (prefetch_stack == null) return;
+		if (imp.getStack() == prefetch_stack) imp.setStack(prefetch_stack.getSource());
+		prefetch_stack.close();
+		prefetch_stack = null;
+	}
+	
+	private void track() {
 		
 		fontParamInfo =  new Font("Arial", Font.BOLD, 40);
 		imgWindow=imp.getWindow();
@@ -948,13 +811,15 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         }
         
         
-		curv_list = new ArrayList<Double>();
-        deform_list = new ArrayList<Double>();
-        time_list = new ArrayList<Double>();
-        
-        freeEnd_matchRes = new ArrayList<Double>();
-        attEnd_matchRes = new ArrayList<Double>();
-        mid_matchRes = new ArrayList<Double>();
+        // the series of a very long video are kept in a temporary file
+        series = new SeriesStore(4);
+        if (stack.getSize() > SeriesStore.SPILL_ROWS) {
+        	try {
+        		series = new SeriesStore(4, null);
+        	} catch (IOException e) {
+        		IJ.log(pluginName + ": the results are kept in memory (" + e.getMessage() + ")");
+        	}
+        }
         
         
         PlotWindow.noGridLines = false; // draw grid lines
@@ -978,7 +843,25 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
             if (!getUserParameters()) { return;
             }
             
-            if (!selectPoints(false)) return;
+            FileInfo fi = null;
+            String directory = "";
+            
+            if(!videoInput){
+            	fi = imp.getOriginalFileInfo();
+            	directory = fi.directory;
+            }
+            // the frames are tracked by the engine, the results are shown as they come
+            engine = new TrackerEngine(config, new StackFrameSource(stack, directory, videoInput, useTimeStamps, impliedFrameRate));
+            engine.setListener(this::frameTracked);
+            // the frames put aside by a failure policy are reviewed at the end
+            if (config.failurePolicy == null) engine.setFailureHandler(this::matchFailed);
+            
+            if (!resumeFromCheckpoint(directory)) {
+            	if (!selectPoints(false)) return;
+            	if (!videoInput) saveSetup(directory);
+            }
+            openResultsWriter(directory);
+            if (!videoInput) engine.setCheckpoint(new File(directory, Checkpoint.FILE_NAME), config.checkpointInterval);
             
             
 
@@ -1004,18 +887,11 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         }
         
         
-        FileInfo fi = null;
-        String directory = "";
-        String name = "";
-        
-        if(!videoInput){
-        	fi = imp.getOriginalFileInfo();
-        	directory = fi.directory;
-        	name = stack.getSliceLabel(refSlice);
-        }
-        
-    	first_shot_time = getShotTime(directory + name, refSlice);
-    	if (first_shot_time==null) exifTime=false;
+    	// without the time of the reference frame a constant time step is used
+    	if (!engine.exifTime && resumedSlice == 0) {
+    		setAltTimeMeasure();
+    		engine.timeStep = config.timeStep;
+    	}
     	
     	if (saveFlatten) {
     		
@@ -1033,10 +909,10 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
             if (videoInput) rt.addValue("File", imp.getTitle() + ":" +stack.getSliceLabel(refSlice).replaceAll(" ", ""));
             else rt.addValue("File", stack.getSliceLabel(refSlice));
             
-			rt.addValue("bendAngle", bending_angle_ini);
-			rt.addValue("defAngle", deflection_angle_ini);
-			rt.addValue("Length", length_ini);
-			rt.addValue("Curvature", curvature_ini);
+			rt.addValue("bendAngle", engine.bending_angle_ini);
+			rt.addValue("defAngle", engine.deflection_angle_ini);
+			rt.addValue("Length", engine.length_ini);
+			rt.addValue("Curvature", engine.curvature_ini);
 			rt.addValue("Deformation", 0.0);
 			
 			
@@ -1055,13 +931,10 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         }
 
 		imp.deleteRoi();
-		ref_Image.deleteRoi();
+		if (ref_Image != null) ref_Image.deleteRoi();
 		
-		curv_list.add(curvature_ini);
-        deform_list.add(0.0);
-        time_list.add(0.0);
-        
-        curv_min=curv_max=curvature_ini;
+        series.append(0.0, engine.curvature_ini, 0.0, refSlice);
+        if (results_writer != null && resumedSlice == 0) results_writer.frameTracked(engine.result(refSlice));
         
 		
                                                     // new plot window
@@ -1070,6 +943,7 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         
         plotDefImage = new ImagePlus("Deformation plot", (new Plot("Deformation Plot","Time, s","Deformation")).getProcessor());
         plotDefImage.show();
+        display = new DisplayUpdater(config.displayRate);
         
         
 //        StopThread = new Thread(new Runnable()
@@ -1099,11 +973,16 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         
         startControlThread();
         
+        // the next images of a virtual stack are read and decoded while the current one is tracked
+        if (config.prefetchFrames > 0 && !videoInput && PrefetchStack.canWrap(stack)) {
+        	prefetch_stack = new PrefetchStack((VirtualStack)stack, config.prefetchFrames, config.prefetchThreads);
+        	imp.setStack(prefetch_stack);
+        }
 		
         //int i;
         //Random rand = new Random(); 
         //for (int i_slice = refSlice + 1; i_slice < stack.getSize() + 1; i_slice++) {     //align slices after reference slice.
-		for (int i = refSlice + 1; i < stack.getSize() + 1; i++) {     //align slices after reference slice.
+		for (int i = Math.max(refSlice, resumedSlice) + 1; i < stack.getSize() + 1; i++) {     //align slices after reference slice.
         	//i=doRandomAnalysis?rand.nextInt(stack.getSize() + 1 - refSlice) + refSlice:i_slice;
         	if (!stopThread.isAlive()) {
         		if (stopReason == 0) {
@@ -1142,29 +1021,15 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
 					//&& imp_new.getBitDepth()==refBitDepth)){
 
 				
-					double  tmp_disX_free=disX_free,
-							tmp_disY_free=disY_free,
-							tmp_disX_holder=disX_holder,
-							tmp_disY_holder=disY_holder,
-							tmp_disX_mid=disX_mid,
-							tmp_disY_mid=disY_mid;
-					
-					
 					imp.setSliceWithoutUpdate(i);
 					//int matchresult = analyzeSlice(i, stack.getProcessor(i));
-					int matchresult = analyzeSlice(i, nextIp);
+					int matchresult = engine.track(i, nextIp);
 					
 				    
-					if (matchresult==1) {
-							disX_free=tmp_disX_free;
-							disY_free=tmp_disY_free;
-							disX_holder=tmp_disX_holder;
-							disY_holder=tmp_disY_holder;
-							disX_mid=tmp_disX_mid;
-							disY_mid=tmp_disY_mid;
+					if (matchresult==TrackerEngine.SKIPPED) {
 						continue;
 					}
-					if (matchresult==2) {
+					if (matchresult==TrackerEngine.STOPPED) {
 						
 						if (stopDlg!=null) {
 				        	stopDlg.dispose();//.close();
@@ -1177,73 +1042,29 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
 				        }
 						return;
 					}
-					if (matchresult==3) {
+					if (matchresult==TrackerEngine.RESELECT) {
 						selectPoints(true);
+						addResult(engine.result(i));
 					}
-		            
-		            
-		            
-		            if (showRT) {
-		            	rt.incrementCounter();
-		            	
-		                rt.addValue("Time", seconds);
-		                if (videoInput) rt.addValue("File", imp.getTitle() + ":" +stack.getSliceLabel(i).replaceAll(" ", ""));
-		                else rt.addValue("File", stack.getSliceLabel(i));
-		                
-		                rt.addValue("bendAngle", bending_angle);
-						rt.addValue("defAngle", deflection_angle);
-						rt.addValue("Length", cr_length);
-						rt.addValue("Curvature", curvature);
-						rt.addValue("Deformation", deformation);
-						
-						
-						rt.setDecimalPlaces(2, 6);
-						rt.setDecimalPlaces(3, 6);
-						rt.setDecimalPlaces(4, 2);
-						rt.setDecimalPlaces(5, 9);
-						rt.setDecimalPlaces(6, 6);
-						
-		
-		                rt.show("Results");
-		                //rt.showRowNumbers(false);
-		                
-		           
-		                
-		            }
-					curv_list.add(curvature);
-		            deform_list.add(deformation);
-		            time_list.add(seconds);
-		            
-		            if (curvature>curv_max) curv_max=curvature;
-		            if (curvature<curv_min) curv_min=curvature;
-		            if (deformation>def_max) def_max=deformation;
-		            if (deformation<def_min) def_min=deformation;
-		            
-					
-					  double y_height=curv_max-curv_min; if (y_height==0.0) y_height=1.0; double
-					  y_min=curv_min-0.1*y_height, y_max=curv_max+0.1*y_height;
-					  
-					  Plot plot1 = new Plot("Curvature Plot","Time, s","Curvature");
-					  plot1.setLimits(0, seconds, y_min, y_max); plot1.addPoints(time_list,
-					  curv_list, Plot.BOX); ImageProcessor plotIp = plot1.getProcessor();
-					  plotImage.setProcessor(null, plotIp);
-					  
-					  y_height=def_max-def_min; if (y_height==0.0) y_height=1.0;
-					  y_min=def_min-0.1*y_height; y_max=def_max+0.1*y_height; Plot plot2 = new
-					  Plot("Deformation Plot","Time, s","Deformation"); plot2.setLimits(0, seconds,
-					  y_min, y_max); plot2.addPoints(time_list, deform_list, Plot.BOX);
-					  ImageProcessor plotIp2 = plot2.getProcessor();
-					  plotDefImage.setProcessor(null, plotIp2);
-					 
         	} else {
-        		stack.deleteSlice(i--);
-        		imp.setStack(stack);
+        		stack.deleteSlice(i);
+        		// the flags, the positions and the series follow the frames that move down one slice
+        		engine.sliceDeleted(i);
+        		series.decrementAbove(SLICE, i--);
+        		if (prefetch_stack != null) {
+        			// the slices read ahead are renumbered
+        			prefetch_stack.invalidate();
+        			imp.setStack(prefetch_stack);
+        		} else imp.setStack(stack);
         	}
 			Instant finishTime = Instant.now();
 			long timeElapsed = Duration.between(startTime, finishTime).toMillis();
 			IJ.showStatus(timeElapsed+" ms");
             
         }
+        endPrefetch();
+        // every frame of the stack is tracked
+        engine.finishCheckpoint();
        
         
         
@@ -1305,191 +1126,74 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
 				}
 		}
 			
+	        // the new images are reported by the file system, the control dialog is checked in between
+	        FolderMonitor monitor = new FolderMonitor(new File(directory));
+	        try {
 	        while (true) {
 	        	if (!stopThread.isAlive()){
 		        	if (stopReason == 0) {
 		        		break;
-		        		
-		        		
 	        		} else {
 	        			if (!selectPoints(true)) break;
 	        			startControlThread();
 	        		}
 	        	}
 	        	
+	        	// an image that cannot be opened yet (still written) is tried again, it stays after the current slice
+	        	VirtualStack vstack = (VirtualStack)imp.getStack();
+	        	String[] imageList = monitor.imagesAfter(vstack.getSliceLabel(imp.getCurrentSlice()));
+	        	for (int j = 0; j<imageList.length;j++)
+	        	{
+	        		if (!stopThread.isAlive()) break;
+	        		
+	        		Opener opener = new Opener();  
+	        		String imageFilePath = directory+imageList[j];
+	        		ImagePlus imp_new = opener.openImage(imageFilePath);
+	        		if (imp_new!=null 
+	        				&& imp_new.getWidth()==width 
+	        				&& imp_new.getHeight()==height 
+	        				&& imp_new.getBitDepth()==refBitDepth){
+	        			
+	        			vstack.addSlice(imageList[j]);
+	        			imp.setStack(vstack);
+	        			
+	        			Instant startTime = Instant.now();
+	        			imp.setSliceWithoutUpdate(vstack.getSize());
+	        			int matchresult = engine.track(vstack.getSize(),imp_new.getProcessor());
+	        			Instant finishTime = Instant.now();
+	        			long timeElapsed = Duration.between(startTime, finishTime).toMillis();
+	        			IJ.showStatus(timeElapsed+" ms");
+	        			
+	        			if (matchresult==TrackerEngine.SKIPPED) {
+	        				continue;
+	        			}
+	        			if (matchresult==TrackerEngine.STOPPED) {
+	        				if (stopDlg!=null) {
+	        					stopDlg.dispose();//.close();
+	        					try {
+	        						stopThread.join();
+	        					} catch (InterruptedException e) {
+	        						// TODO Auto-generated catch block
+	        						e.printStackTrace();
+	        					}
+	        				}
+	        				return;
+	        			}
+	        			if (matchresult==TrackerEngine.RESELECT) {
+	        				selectPoints(true);
+	        				addResult(engine.result(vstack.getSize()));
+	        			}
+	        		}
+	        	}
 	        	
-	        	
-	        	
-	            	File[] fileList = (new File(directory)).listFiles();
-	            	if (fileList != null) {
-	            		
-		
-		            	// Exclude directories
-		            	String[] tmplist = new String[fileList.length];
-		            	
-		            	
-		            	int c = 0;
-		            	for (int i_file = 0; i_file < fileList.length; i_file++)
-		            		if (fileList[i_file].isFile())
-		            			tmplist[c++] = fileList[i_file].getName();
-		            	if (c>0) {
-			            	String[] list = new String[c];
-			            	for (int i_file = 0; i_file < c; i_file++) list[i_file] = tmplist[i_file];
-			            	
-			
-			            	// Now exclude non-image files as per the ImageJ FolderOpener
-			            	FolderOpener fo = new FolderOpener();
-			            	list = fo.trimFileList(list);
-			            	if (list != null && list.length>0){
-				            	
-				            	VirtualStack vstack = (VirtualStack)imp.getStack();
-				           
-				            	if (list.length > vstack.getSize()) {
-				            		String[] imageList = fo.sortFileList(list);
-				            		String LastSliceName = vstack.getSliceLabel(imp.getCurrentSlice());//vstack.getSliceLabel(vstack.getSize());
-				            		int foundPosition=0;
-				            		boolean filefound=false;
-				            		for (foundPosition = imageList.length-1; foundPosition>= 0; foundPosition--)
-				            		{
-				            			if (LastSliceName.equalsIgnoreCase(imageList[foundPosition])){
-				            				filefound=true;
-				            				break;
-				            			}
-				            		}
-				            		if (filefound)	
-				            				for (int j = foundPosition+1; j<imageList.length;j++)
-				            				{
-				            					
-				            					if (!stopThread.isAlive()) break;
-				            					
-				            					Opener opener = new Opener();  
-				            					String imageFilePath = directory+imageList[j];
-				            					ImagePlus imp_new = opener.openImage(imageFilePath);
-				            					if (imp_new!=null 
-				            							&& imp_new.getWidth()==width 
-				            							&& imp_new.getHeight()==height 
-				            							&& imp_new.getBitDepth()==refBitDepth){
-				            						
-				            		        		vstack.addSlice(imageList[j]);
-					            					
-					            					imp.setStack(vstack);
-					            					
-					            					//imp.setSlice(vstack.getSize());
-					            					
-					            					
-					            					double  tmp_disX_free=disX_free,
-					            							tmp_disY_free=disY_free,
-					            							tmp_disX_holder=disX_holder,
-					            							tmp_disY_holder=disY_holder,
-					            							tmp_disX_mid=disX_mid,
-					            							tmp_disY_mid=disY_mid;
-					            				    	
-					            					Instant startTime = Instant.now();
-					            					imp.setSliceWithoutUpdate(vstack.getSize());
-					            					int matchresult = analyzeSlice(vstack.getSize(),imp_new.getProcessor());
-					            					Instant finishTime = Instant.now();
-					            					long timeElapsed = Duration.between(startTime, finishTime).toMillis();
-					            					IJ.showStatus(timeElapsed+" ms");
-					            						
-					            						if (matchresult==1) {
-					            							disX_free=tmp_disX_free;
-					            							disY_free=tmp_disY_free;
-					            							disX_holder=tmp_disX_holder;
-					            							disY_holder=tmp_disY_holder;
-					            							disX_mid=tmp_disX_mid;
-					            							disY_mid=tmp_disY_mid;
-					            						continue;
-					            						}
-					            						if (matchresult==2) {
-					            							if (stopDlg!=null) {
-					            					        	stopDlg.dispose();//.close();
-					            					        	try {
-					            									stopThread.join();
-					            								} catch (InterruptedException e) {
-					            									// TODO Auto-generated catch block
-					            									e.printStackTrace();
-					            								}
-					            					        }
-					            							return;
-					            						}
-					            						if (matchresult==3) {
-					            							selectPoints(true);
-					            						}
-						            					
-						            		            
-						            		            if (showRT) {
-						            		            	rt.incrementCounter();
-						            		            	rt.addValue("Time", seconds);
-						            		            	rt.addValue("File", stack.getSliceLabel(vstack.getSize()));
-						            		                
-						            		                rt.addValue("bendAngle", bending_angle);
-						            						rt.addValue("defAngle", deflection_angle);
-						            						rt.addValue("Length", cr_length);
-						            						rt.addValue("Curvature", curvature);
-						            						rt.addValue("Deformation", deformation);
-						            												            											            						
-						            						
-						            						rt.setDecimalPlaces(2, 6);
-						            						rt.setDecimalPlaces(3, 6);
-						            						rt.setDecimalPlaces(4, 2);
-						            						rt.setDecimalPlaces(5, 9);
-						            						rt.setDecimalPlaces(6, 6);
-						            						
-						            		                
-						            		                rt.show("Results");
-						            		                //rt.showRowNumbers(false);
-						            		                
-						            		               
-						            		                
-						            		            }
-						            		            
-						            					curv_list.add(curvature);
-						            		            deform_list.add(deformation);
-						            		            time_list.add(seconds);
-						            		            
-						            		            if (curvature>curv_max) curv_max=curvature;
-						            		            if (curvature<curv_min) curv_min=curvature;
-						            		            if (deformation>def_max) def_max=deformation;
-						            		            if (deformation<def_min) def_min=deformation;
-						            		            
-						            		            
-						            		            double y_height=curv_max-curv_min;
-						            		            if (y_height==0.0) y_height=1.0;
-						            		            double y_min=curv_min-0.1*y_height,
-						            		            	   y_max=curv_max+0.1*y_height;
-						            		            Plot plot1 = new Plot("Curvature Plot","Time, s","Curvature");
-						            		            plot1.setLimits(0, seconds, y_min, y_max);
-						            		    		plot1.addPoints(time_list, curv_list, Plot.BOX);
-						            		    		ImageProcessor plotIp = plot1.getProcessor();
-						            		    		plotImage.setProcessor(null, plotIp);
-						            		    		
-						            		    		y_height=def_max-def_min;
-						            		            if (y_height==0.0) y_height=1.0;
-						            		            y_min=def_min-0.1*y_height;
-						            		            y_max=def_max+0.1*y_height;
-						            		             Plot plot2 = new Plot("Deformation Plot","Time, s","Deformation");
-						            		             plot2.setLimits(0, seconds, y_min, y_max);
-						            		      		plot2.addPoints(time_list, deform_list, Plot.BOX);
-						            		     		ImageProcessor plotIp2 = plot2.getProcessor();
-						            		     		plotDefImage.setProcessor(null, plotIp2);
-				            					}
-				            				}
-				            			
-				            		}
-				            		
-				            	}
-			            	}
-		            	}
-	            	
-	            	
-	            	synchronized (this){
-		            	try {	
-						this.wait(300);
-						} catch (InterruptedException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-	            	}
+	        	try {
+	        		monitor.await(FolderMonitor.POLL_MILLIS);
+	        	} catch (InterruptedException e) {
+	        		break;
+	        	}
+	        }
+	        } finally {
+	        	monitor.close();
 	        }
 	        if (saveFlatten){
             	
@@ -1498,118 +1202,6 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         new WaitForUserDialog("Bending Crystal Tracking", "The tracking is finished.").show();
     }
 	
-	private Instant getShotTime(String imageFilePath, int videoSlice)
-	{
-		 // the creation time of the image is taken from the EXIF metadata
-        
-		if (videoInput){
-			long timeStampMicroSec = Math.round(Double.parseDouble(stack.getSliceLabel(videoSlice).replaceAll(" s", ""))*1000000);// ((FFmpeg_FrameReader)stack).getFrameTimeStamp(videoSlice - 1);
-			if (useTimeStamps) return Instant.ofEpochSecond(0L, timeStampMicroSec*1000L);
-			else return Instant.ofEpochSecond(0L, Math.round(1000000000.0*(videoSlice - 1)/impliedFrameRate));
-		}
-	       
-		File jpegFile = new File(imageFilePath);
-		
-		Metadata metadata;
-		
-		try {
-			metadata = ImageMetadataReader.readMetadata(jpegFile);
-			ExifSubIFDDirectory md_directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-		    return md_directory.getDateOriginal().toInstant();//new DateTime(md_directory.getDateOriginal());
-			
-		} catch (Exception e) {
-			setAltTimeMeasure();
-			return null;
-		}
-				
-	}
-	
-	/*
-	private boolean testMatchResult(double result, double ref, int method) {
-	
-		boolean successfulMatch = true;
-		double thrsh=matchThreshold[method];
-		switch (method) {
-    	case 0:
-    		if (result/ref>thrsh) successfulMatch = false;
-    		break;
-    	case 1:
-    		if (result>thrsh) successfulMatch = false;
-    		break;
-    	case 2:
-    		if (Math.abs((result-ref)/ref)>thrsh) successfulMatch = false;
-    		break;
-    	case 3:
-    		if (Math.abs(result-ref)>thrsh) successfulMatch = false;
-    		break;
-    	case 4:
-    		if (Math.abs(result-ref)/ref>thrsh) successfulMatch = false;
-    		break;
-    	case 5:
-    		if (Math.abs(result-ref)>thrsh) successfulMatch = false;
-    		break;
-		}
-		return successfulMatch;
-    
-	}
-*/
-	
-	private boolean testMatchResult(double result, double ref, int method, double x, double y, int searchWidth, int tplSize) {
-		
-		boolean successfulMatch = true;
-		double distTrsh=Math.min(0.05*tplSize, 0.05*searchWidth);
-		double thrsh=matchThreshold[method];
-		switch (method) {
-    	case 0:
-    		if (result/ref>thrsh) successfulMatch = false;
-    		break;
-    	case 1:
-    		if (result>thrsh) successfulMatch = false;
-    		break;
-    	case 2:
-    		if (Math.abs((result-ref)/ref)>thrsh) successfulMatch = false;
-    		break;
-    	case 3:
-    		if (Math.abs(result-ref)>thrsh) successfulMatch = false;
-    		break;
-    	case 4:
-    		if (Math.abs(result-ref)/ref>thrsh) successfulMatch = false;
-    		break;
-    	case 5:
-    		if (Math.abs(result-ref)>thrsh) successfulMatch = false;
-    		break;
-		}
-		if (searchWidth!=0 &&  ((x<distTrsh) || (y<distTrsh) || (x>searchWidth-distTrsh) || (y>searchWidth-distTrsh))) successfulMatch = false;
-		
-		
-		return successfulMatch;
-    
-	}
-	
-	private void adjustThreshold(double result, double ref, int method) {
-		
-		
-		switch (method) {
-    	case 0:
-    		matchThreshold[method] =1.1*result/ref;
-    		break;
-    	case 1:
-    		matchThreshold[method] =1.1*result;
-    		break;
-    	case 2:
-    	case 4:
-    		matchThreshold[method] =1.1*Math.abs((result-ref)/ref);
-    		break;
-    	case 3:
-    	case 5:	
-    		matchThreshold[method] =1.1*Math.abs(result-ref);
-    		break;
-    	
-		}
-		
-    
-	}
-	
 	private int failureQuestionDlg(int place) {
 		Object[] options1 = { "Keep the result", "Skip the frame",
         "Stop tracking", "Reselect points" };
@@ -1633,711 +1225,96 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
 		return result;
 	}
 
-    private int analyzeSlice(int slice, ImageProcessor slice_proc) {
-
- 
-//    	long timeElapsed0=0, timeElapsed1=0, timeElapsed2=0, timeElapsed3=0, timeElapsed4=0, timeElapsed5=0, timeElapsed6=0;
-//    	Instant CPUTime6 = Instant.now();
-        double[] coord_res = new double[3]; 
-        Overlay overlay;
-        
-        ImagePlus free_tar = new ImagePlus("",slice_proc);
-        ImagePlus holder_tar= new ImagePlus("",slice_proc);
-        ImagePlus mid_tar = new ImagePlus("",slice_proc);
-        ImagePlus tmpIp;
-        
-         int xStart_free=0 ,yStart_free=0, sWX_free=width, sWY_free=height, 
-        	 xStart_holder=0, yStart_holder=0, sWX_holder=width, sWY_holder=height,
-        	 xStart_mid=0 ,yStart_mid=0, sWX_mid=width, sWY_mid=height;
-        
-        double dxtmp=0.0, dytmp=0.0;
-
-        if (sArea != 0) {
-
-
-        	// Specifying coordinates of the search rectangle around the free end
-        	
-            xStart_free = free_rect.x + (int)disX_free - sArea;
-            yStart_free = free_rect.y + (int)disY_free - sArea;
-            sWX_free = free_rect.width + 2 * sArea;
-            sWY_free = free_rect.height + 2 * sArea;
-
-            if (xStart_free < 0) {
-                xStart_free = 0;
-            }
-            if (yStart_free < 0) {
-                yStart_free = 0;
-            }
-            if (xStart_free + sWX_free > width) {
-                xStart_free = width - sWX_free;
-            }
-            if (yStart_free + sWY_free > height) {
-                yStart_free = height - sWY_free;
-            }
-            
-            // Small image containing free crystal's end
-            free_tar.setRoi(xStart_free, yStart_free, sWX_free, sWY_free);
-            free_tar=free_tar.crop();
-            
-           
-            
-            // Specifying coordinates of the search rectangle around the holder part
-            
-            xStart_holder = holder_rect.x + (int)disX_holder - sArea;
-            yStart_holder = holder_rect.y + (int)disY_holder - sArea;
-            
-            sWX_holder = holder_rect.width + 2 * sArea;
-            sWY_holder = holder_rect.height + 2 * sArea;
-
-            if (xStart_holder < 0) {
-                xStart_holder = 0;
-            }
-            if (yStart_holder < 0) {
-                yStart_holder = 0;
-            }
-            if (xStart_holder + sWX_holder > width) {
-                xStart_holder = width - sWX_holder;
-            }
-            if (yStart_holder + sWY_holder > height) {
-                yStart_holder = height - sWY_holder;
-            }
-            
-            // Small image containing needed holder part
-            holder_tar.setRoi(xStart_holder, yStart_holder, sWX_holder, sWY_holder);
-            holder_tar=holder_tar.crop();
-            
-            
-// Specifying coordinates of the search rectangle around the middle part
-            
-            double x0 = (refX_free+disX_free+refX_att+disX_holder)/2.0,
-     			   y0 = (refY_free+disY_free+refY_att+disY_holder)/2.0,
-     			   
-     			   x1,y1,
-     			   dx = -(refY_free+disY_free-(refY_att+disY_holder)),
-     			   dy = refX_free+disX_free-(refX_att+disX_holder),
-     			   dr = Math.sqrt(dx*dx+dy*dy),
-     			   dh=0.0;
-            if (curvature!=0.0)
-            	dh = (1-Math.cos(curvature*cr_length/2.0))/curvature;
-             
-     				dx/=dr;
-     				dy/=dr;
-     				
-     				x1 = x0 + dx*dh;
-     				y1 = y0 + dy*dh;
-            
-           
-            
-     		xStart_mid = (int)(x1 - (mid_rect.width)/2.0 - sArea);
-     	    yStart_mid = (int)(y1 - (mid_rect.height)/2.0 - sArea);
-            
-            
- 			
-            sWX_mid = mid_rect.width + 2 * sArea;
-            sWY_mid = mid_rect.height + 2 * sArea;
-
-            if (xStart_mid < 0) {
-                xStart_mid = 0;
-            }
-            if (yStart_mid < 0) {
-                yStart_mid = 0;
-            }
-            if (xStart_mid + sWX_mid > width) {
-                xStart_mid = width - sWX_mid;
-            }
-            if (yStart_mid + sWY_mid > height) {
-                yStart_mid = height - sWY_mid;
-            }
-            
-            // Small image containing central crystal's part
-            mid_tar.setRoi(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
-            mid_tar=mid_tar.crop();
-            
-            
- 
-        } else {
-        	// Needed parts will be searched over the whole slice
-          
-        }
-        
-        if (matchIntensity) {
-        	ImageConverter ic = new ImageConverter(free_tar);
-        	ic.convertToGray32();
-        	ImageConverter holder_ic = new ImageConverter(holder_tar);
-        	holder_ic.convertToGray32();
-        	ImageConverter mid_ic = new ImageConverter(mid_tar);
-        	mid_ic.convertToGray32();
-        }
-        gaussianBlur.blurGaussian(free_tar.getProcessor(), 2, 2, 0.02);
-        gaussianBlur.blurGaussian(holder_tar.getProcessor(), 2, 2, 0.02);
-        gaussianBlur.blurGaussian(mid_tar.getProcessor(), 2, 2, 0.02);
-        
-        //int idealMethod=(method==0?2:method);
-        att_mideal= doMatch_test(holder_ref.getProcessor(),(method==0?2:method));
-        coord_res = doMatch_coord_res(holder_tar.getProcessor(), holder_ref.getProcessor(), method, subPixel, null);
-        
-        boolean ignoreFrame=false, stopTracking=false, reselectPoints=false;
-        if (!testMatchResult(coord_res[2], att_mideal, method, coord_res[0], coord_res[1], sArea*2, Math.min(holder_rect.width, holder_rect.height))) { ///////// The holder is not found...
-        	if (sArea!=0) {										  ///////// Let's try global search if it was local search before
-        		
-        		/*
-        		overlay = new Overlay();
-        		if (refBitDepth==24 && !matchIntensity) {
-     				tmpIp = holder_ref.duplicate();
-     				ImageConverter ic = new ImageConverter(tmpIp);
-                	ic.convertToGray32();
-     			} else tmpIp=holder_ref;
-    			ImageRoi imageRoi_att1 = new ImageRoi((int)coord_res[0]+xStart_holder, (int)coord_res[1]+yStart_holder,tmpIp.getProcessor());
-    	        imageRoi_att1.setOpacity(0.3);
-    	        overlay.addElement(imageRoi_att1);
-    			imp.setSlice(slice);
-    			imp.setOverlay(overlay);
-    			*/
-        		
-        		xStart_holder=yStart_holder=0;        		
-        		ImagePlus full_tar= new ImagePlus("",slice_proc);
-        		if (matchIntensity) {
-        			ImageConverter ic = new ImageConverter(full_tar);
-        			ic.convertToGray32();
-        			
-        		}
-        		gaussianBlur.blurGaussian(full_tar.getProcessor(), 2, 2, 0.02);
-        		coord_res = doMatch_coord_res(full_tar.getProcessor(), holder_ref.getProcessor(), method, subPixel, null);
-        		if (!testMatchResult(coord_res[2], att_mideal, method, coord_res[0], coord_res[1], 0, Math.min(holder_rect.width, holder_rect.height))) { ////////////// Not found globally
-        			overlay = new Overlay();
-        			if (refBitDepth==24 && !matchIntensity) {
-         				tmpIp = holder_ref.duplicate();
-         				ImageConverter ic = new ImageConverter(tmpIp);
-                    	ic.convertToGray32();
-         			} else tmpIp=holder_ref;
-        			ImageRoi imageRoi_att = new ImageRoi((int)coord_res[0], (int)coord_res[1],tmpIp.getProcessor());
-        	        imageRoi_att.setOpacity(0.3);
-        	        overlay.addElement(imageRoi_att);
-        			imp.setSlice(slice);
-        			imp.setOverlay(overlay);
-        			int failureAnswer = failureQuestionDlg(0); 
-        			if (failureAnswer==0) adjustThreshold(coord_res[2], att_mideal, method);
-        			ignoreFrame = (failureAnswer==1);
-        			stopTracking = (failureAnswer==2);
-        			reselectPoints = (failureAnswer==3);
-        		} else {												///////////// The holder was found shifted. Shift search areas and continue
-        			
-        			        free_tar = new ImagePlus("",slice_proc);
-        	               	mid_tar = new ImagePlus("",slice_proc);
-        					double xShift = coord_res[0] - holder_rect.x - disX_holder,
-        							yShift = coord_res[1] - holder_rect.y - disY_holder;
-
-        					xStart_free += xShift;
-        		            yStart_free += yShift;
-        		            
-
-        		            if (xStart_free < 0) {
-        		                xStart_free = 0;
-        		            }
-        		            if (yStart_free < 0) {
-        		                yStart_free = 0;
-        		            }
-        		            if (xStart_free + sWX_free > width) {
-        		                xStart_free = width - sWX_free;
-        		            }
-        		            if (yStart_free + sWY_free > height) {
-        		                yStart_free = height - sWY_free;
-        		            }
-        		            
-        		            // Small image containing free crystal's end
-        		            free_tar.setRoi(xStart_free, yStart_free, sWX_free, sWY_free);
-        		            free_tar=free_tar.crop();
-        		            
-        		            xStart_mid += xShift;
-        		     	    yStart_mid += yShift;
-        		            
-        		            if (xStart_mid < 0) {
-        		                xStart_mid = 0;
-        		            }
-        		            if (yStart_mid < 0) {
-        		                yStart_mid = 0;
-        		            }
-        		            if (xStart_mid + sWX_mid > width) {
-        		                xStart_mid = width - sWX_mid;
-        		            }
-        		            if (yStart_mid + sWY_mid > height) {
-        		                yStart_mid = height - sWY_mid;
-        		            }
-        		            
-        		            // Small image containing central crystal's part
-        		            mid_tar.setRoi(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
-        		            mid_tar=mid_tar.crop();
-        		            
-        		            if (matchIntensity) {
-        		            	ImageConverter ic = new ImageConverter(free_tar);
-        		            	ic.convertToGray32();
-        		            	ImageConverter mid_ic = new ImageConverter(mid_tar);
-        		            	mid_ic.convertToGray32();
-        		            }
-        		            gaussianBlur.blurGaussian(free_tar.getProcessor(), 2, 2, 0.02);        
-        		            gaussianBlur.blurGaussian(mid_tar.getProcessor(), 2, 2, 0.02);
-        		            
-       		            
-        		}
-        	} else { ///////////////// The search was initially global but the holder was not found 
-        		overlay = new Overlay();
-        		if (refBitDepth==24 && !matchIntensity) {
-     				tmpIp = holder_ref.duplicate();
-     				ImageConverter ic = new ImageConverter(tmpIp);
-                	ic.convertToGray32();
-     			} else tmpIp=holder_ref;
-    			ImageRoi imageRoi_att = new ImageRoi((int)coord_res[0], (int)coord_res[1],tmpIp.getProcessor());
-    	        imageRoi_att.setOpacity(0.3);
-    	        overlay.addElement(imageRoi_att);
-    			imp.setSlice(slice);
-    			imp.setOverlay(overlay);
-        		int failureAnswer = failureQuestionDlg(0); 
-        		if (failureAnswer==0) adjustThreshold(coord_res[2], att_mideal, method);
-    			ignoreFrame = (failureAnswer==1);
-    			stopTracking = (failureAnswer==2);
-    			reselectPoints = (failureAnswer==3);
-        	}
-        }
-        
-        if (ignoreFrame) return 1;
-        if (stopTracking) return 2;
-        if (reselectPoints) return 3;
-        
-        attEnd_matchRes.add(coord_res[2]);
-        
-        disX_holder = coord_res[0] + xStart_holder - holder_rect.x;
-        disY_holder = coord_res[1] + yStart_holder - holder_rect.y;
-        
-        //// not working part of the template update code
-        
-        //if (updateTemplates)
-        //{
-        //	holder_ref = new ImagePlus("",tmptar);
-        //	holder_ref.setRoi(new Roi(holder_rect.x + disX_holder, holder_rect.y + disY_holder, (double)holder_rect.width, (double)holder_rect.height));
-        //    holder_ref=holder_ref.crop();
-        //    ImageConverter holder_ic = new ImageConverter(holder_ref);
-        //    holder_ic.convertToGray8();
-        //    gaussianBlur = new GaussianBlur();
-        //    ImageProcessor ip_tmp=holder_ref.getProcessor();
-        //    gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
-        	
-        //}
-        
-        // The block of the free end search
-        // We make iterations to find position of the rotated template 
-        // of the free crystal's end
-        // Iterations finish upon the convergence (but not more than 10 iterations are taken)
-        
-        for (int iter=0;iter<10;iter++)
-        {
-        	
-        	// rotation angle is computed from the previous value of the bending angle  
-        	
-        	double angle = - (full_angle + 0.5*bending_angle - initial_angle)*180/Math.PI;
-    		
-    		
-    			// A copy of the template is rotated..
-    			free_tpl = free_ref.duplicate();
-      			ImageProcessor tpl_ip = free_tpl.getProcessor();
-    			tpl_ip.setInterpolationMethod(ImageProcessor.BICUBIC);
-    			tpl_ip.rotate(angle);
-    			free_tpl.setRoi(refCropRoi);
-    			free_tpl=free_tpl.crop();
-    			
-    			
-    			// ... and fitted
-    			free_mideal=doMatch_test(free_tpl.getProcessor(), (method==0?2:method));
-    			coord_res = doMatch_coord_res(free_tar.getProcessor(), free_tpl.getProcessor(), method, subPixel, null);
-    			if (!testMatchResult(coord_res[2], free_mideal, method, coord_res[0], coord_res[1], sArea*2, Math.min(free_rect.width, free_rect.height))) {
-    				
-    				
-    				int sArea_new=sArea;
-    				boolean newfreePositionFound=false, leftBound=false, rightBound=false, bottomBound=false, upperBound=false;
-    				while(!newfreePositionFound && !(leftBound && rightBound && bottomBound && upperBound)){
-    				
-    					
-    					sArea_new*=2;
-    					//IJ.showMessage("Try to find in area = " + sArea_new);
-    					xStart_free = free_rect.x + (int)disX_free - sArea_new;
-    		            yStart_free = free_rect.y + (int)disY_free - sArea_new;
-    		            sWX_free = free_rect.width + 2 * sArea_new;
-    		            sWY_free = free_rect.height + 2 * sArea_new;
-
-    		            if (xStart_free < 0) {
-    		                xStart_free = 0;
-    		                leftBound=true;
-    		            }
-    		            if (yStart_free < 0) {
-    		                yStart_free = 0;
-    		                upperBound=true;
-    		            }
-    		            if (xStart_free + sWX_free > width) {
-    		                xStart_free = width - sWX_free;
-    		                rightBound=true;
-    		            }
-    		            if (yStart_free + sWY_free > height) {
-    		                yStart_free = height - sWY_free;
-    		                bottomBound=true;
-    		            }
-    		            
-    		            free_tar = new ImagePlus("",slice_proc);
-    		            // Small image containing free crystal's end
-    		            free_tar.setRoi(xStart_free, yStart_free, sWX_free, sWY_free);
-    		            free_tar=free_tar.crop();
-    		            
-    		            if (matchIntensity) {
-    		            	ImageConverter ic = new ImageConverter(free_tar);
-    		            	ic.convertToGray32();
-    		            	
-    		            }
-    		            gaussianBlur.blurGaussian(free_tar.getProcessor(), 2, 2, 0.02);        
-    		            
-    		            coord_res = doMatch_coord_res(free_tar.getProcessor(), free_tpl.getProcessor(), method, subPixel, null);
-    		            
-    	    			if (!testMatchResult(coord_res[2], free_mideal, method, coord_res[0], coord_res[1], sArea_new*2, Math.min(free_rect.width, free_rect.height))) {
-    	    				
-    	    				
-    	    				if (refBitDepth==24 && !matchIntensity) {
-    	         				tmpIp = free_tpl.duplicate();
-    	         				ImageConverter ic = new ImageConverter(tmpIp);
-    	                    	ic.convertToGray32();
-    	         			} else tmpIp=free_tpl;
-    	        			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_free, (int)coord_res[1]+ yStart_free,tmpIp.getProcessor());
-    	        	        imageRoi.setOpacity(0.3);
-    	        	        overlay = new Overlay();
-    	        	        overlay.addElement(imageRoi);
-    	        			//imp.setSlice(slice);
-    	        	        //WaitForUserDialog dlg = new WaitForUserDialog("Not found", "angle = "+angle+"\nfull_angle = "+full_angle+"\nbending_angle = "+bending_angle+"\ninitial_angle = "+initial_angle+"\nideal res = "+free_mideal);
-    	        	        //dlg.show();
-    	        			overlay.addElement(new Roi(xStart_free, yStart_free, sWX_free, sWY_free));
-    	        			imp.setSlice(slice);
-    	        			imp.setOverlay(overlay);
-    	        			//IJ.showMessage("Not found in Area=" + sArea_new);
-    	    				
-    	    			} else {
-    	    				//IJ.showMessage("Found in Area = " + sArea_new);
-    	    				newfreePositionFound=true;
-    	    			}
-    		            
-    				}
-    				
-    				
-    				
-    				
-    				
-    				if (!newfreePositionFound){
-	    				overlay = new Overlay();
-	    				if (refBitDepth==24 && !matchIntensity) {
-	         				tmpIp = free_tpl.duplicate();
-	         				ImageConverter ic = new ImageConverter(tmpIp);
-	                    	ic.convertToGray32();
-	         			} else tmpIp=free_tpl;
-	        			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_free, (int)coord_res[1]+ yStart_free,tmpIp.getProcessor());
-	        	        imageRoi.setOpacity(0.3);
-	        	        overlay.addElement(imageRoi);
-	        			imp.setSlice(slice);
-	        			imp.setOverlay(overlay);
-	        			
-	    				int failureAnswer = failureQuestionDlg(1); 
-	    				if (failureAnswer==0) adjustThreshold(coord_res[2], free_mideal, method);
-	        			ignoreFrame = (failureAnswer==1);
-	        			stopTracking = (failureAnswer==2);
-	        			reselectPoints = (failureAnswer==3);
-    				}
-        		}
-    			
-    			if (ignoreFrame) return 1;
-    	        if (stopTracking) return 2;
-    	        if (reselectPoints) return 3;
- 
-    	        if (iter>0) freeEnd_matchRes.remove(freeEnd_matchRes.size()-1);
-    			freeEnd_matchRes.add(coord_res[2]);
-    			
-    			disX_free = coord_res[0] + xStart_free - free_rect.x;
-                disY_free = coord_res[1] + yStart_free - free_rect.y;
-                if (subPixel) {
-                	
-                	disX_free += freeRefCenterShiftX*(Math.cos(angle*Math.PI/180.0) - 1.0) + freeRefCenterShiftY*Math.sin(angle*Math.PI/180.0);
-                	disY_free += freeRefCenterShiftY*(Math.cos(angle*Math.PI/180.0) - 1.0) - freeRefCenterShiftX*Math.sin(angle*Math.PI/180.0);
-                }
-
-            
-            
-            mid_tpl = mid_ref.duplicate();
-			
-			ImageProcessor mid_ip = mid_tpl.getProcessor();
-			mid_ip.setInterpolationMethod(ImageProcessor.BICUBIC);
-		
-			double H_x=refX_free+disX_free-(refX_att+disX_holder),
-		          	   H_y=refY_free+disY_free-(refY_att+disY_holder),
-		          	   H=Math.sqrt(H_x*H_x+H_y*H_y),
-		          	   cos_full_angle=(H_x)/H,
-		          	   mid_angle = (Math.signum(-H_y)*Math.acos(cos_full_angle) - full_angle_ini)*180/Math.PI;
-			
-			mid_ip.rotate(-mid_angle);
-			mid_tpl.setRoi(mid_refCropRoi);
-			mid_tpl=mid_tpl.crop();
-			mid_mideal=doMatch_test(mid_tpl.getProcessor(),(method==0?2:method));
-			
-
-
-			double x0 = (refX_free+disX_free+refX_att+disX_holder)/2.0 - (mid_rect.width)/2.0 - xStart_mid,
-				   y0 = (refY_free+disY_free+refY_att+disY_holder)/2.0 - (mid_rect.height)/2.0 - yStart_mid,
-				   dx = -(refY_free+disY_free-(refY_att+disY_holder)),
-				   dy = refX_free+disX_free-(refX_att+disX_holder),
-				   dr = Math.sqrt(dx*dx+dy*dy);
-			
-			
-			double dh=0.0;
-            if (curvature!=0.0)
-            	dh = (1-Math.cos(curvature*cr_length/2.0))/curvature;
-             
-     				dx/=dr;
-     				dy/=dr;
-     				
-     				x0 += dx*dh;
-     				y0 += dy*dh;
-			
-     		double[] lineCoord = new double[4];
-     		lineCoord[0]=x0;
-     		lineCoord[1]=y0;
-     		lineCoord[2]=dx;
-     		lineCoord[3]=dy;
-     		coord_res = doMatch_coord_res(mid_tar.getProcessor(), mid_tpl.getProcessor(), method, subPixel, lineCoord);
-     		
-     		if (!testMatchResult(coord_res[2], mid_mideal, method, coord_res[0], coord_res[1], sArea*2, Math.min(mid_rect.width, mid_rect.height))) {
-     			
-     			
-     			
-     			int sArea_new=sArea;
-				boolean newmidPositionFound=false, leftBound=false, rightBound=false, bottomBound=false, upperBound=false;
-				while(!newmidPositionFound && !(leftBound && rightBound && bottomBound && upperBound)){
-				
-					
-					sArea_new*=2;
-					//IJ.showMessage("Try to find in area = " + sArea_new);
-					xStart_mid = mid_rect.x + (int)disX_mid - sArea_new;
-		            yStart_mid = mid_rect.y + (int)disY_mid - sArea_new;
-		            sWX_mid = mid_rect.width + 2 * sArea_new;
-		            sWY_mid = mid_rect.height + 2 * sArea_new;
-
-		            if (xStart_mid < 0) {
-		                xStart_mid = 0;
-		                leftBound=true;
-		            }
-		            if (yStart_mid < 0) {
-		                yStart_mid = 0;
-		                upperBound=true;
-		            }
-		            if (xStart_mid + sWX_mid > width) {
-		                xStart_mid = width - sWX_mid;
-		                rightBound=true;
-		            }
-		            if (yStart_mid + sWY_mid > height) {
-		                yStart_mid = height - sWY_mid;
-		                bottomBound=true;
-		            }
-		            
-		            
-		             x0 = (refX_free+disX_free+refX_att+disX_holder)/2.0 - (mid_rect.width)/2.0 - xStart_mid;
-		 				   y0 = (refY_free+disY_free+refY_att+disY_holder)/2.0 - (mid_rect.height)/2.0 - yStart_mid;
-		 				   dx = -(refY_free+disY_free-(refY_att+disY_holder));
-		 				   dy = refX_free+disX_free-(refX_att+disX_holder);
-		 				   dr = Math.sqrt(dx*dx+dy*dy);
-		 			
-		 			
-		 			 dh=0.0;
-		             if (curvature!=0.0)
-		             	dh = (1-Math.cos(curvature*cr_length/2.0))/curvature;
-		              
-		      				dx/=dr;
-		      				dy/=dr;
-		      				
-		      				x0 += dx*dh;
-		      				y0 += dy*dh;
-		 			
-		      		//double[] lineCoord = new double[4];
-		      		lineCoord[0]=x0;
-		      		lineCoord[1]=y0;
-		      		lineCoord[2]=dx;
-		      		lineCoord[3]=dy;
-		            
-		            
-		            mid_tar = new ImagePlus("",slice_proc);
-		            // Small image containing free crystal's end
-		            mid_tar.setRoi(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
-		            mid_tar=mid_tar.crop();
-		            
-		            if (matchIntensity) {
-		            	
-		            	ImageConverter mid_ic = new ImageConverter(mid_tar);
-		            	mid_ic.convertToGray32();
-		            }
-		                  
-		            gaussianBlur.blurGaussian(mid_tar.getProcessor(), 2, 2, 0.02);
-		            coord_res = doMatch_coord_res(mid_tar.getProcessor(), mid_tpl.getProcessor(), method, subPixel, lineCoord);
-		            
-	    			if (!testMatchResult(coord_res[2], mid_mideal, method, coord_res[0], coord_res[1], sArea_new*2, Math.min(mid_rect.width, mid_rect.height))) {
-	    				
-	    				
-	    				if (refBitDepth==24 && !matchIntensity) {
-	         				tmpIp = mid_tpl.duplicate();
-	         				ImageConverter ic = new ImageConverter(tmpIp);
-	                    	ic.convertToGray32();
-	         			} else tmpIp=mid_tpl;
-	        			ImageRoi imageRoi = new ImageRoi((int)coord_res[0] + xStart_mid, (int)coord_res[1]+ yStart_mid,tmpIp.getProcessor());
-	        	        imageRoi.setOpacity(0.3);
-	        	        overlay = new Overlay();
-	        	        overlay.addElement(imageRoi);
-	        			//imp.setSlice(slice);
-	        			Roi rectroi = new Roi(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
-	        			rectroi.setStrokeWidth(3);
-	        			rectroi.enableSubPixelResolution();
-	        			overlay.addElement(rectroi);
-	        			imp.setSlice(slice);
-	        			imp.setOverlay(overlay);
-	        			//IJ.showMessage("Not found in Area=" + sArea_new);
-	    				
-	    			} else {
-	    				//IJ.showMessage("Found in Area = " + sArea_new);
-	    				newmidPositionFound=true;
-	    			}
-		            
-				}
-     			
-				if (!newmidPositionFound){
-	     			overlay = new Overlay();
-	     			
-	     			if (refBitDepth==24 && !matchIntensity) {
-	     				tmpIp = mid_tpl.duplicate();
-	     				ImageConverter ic = new ImageConverter(tmpIp);
-	                	ic.convertToGray32();
-	     			} else tmpIp=mid_tpl;
-	    			ImageRoi imageRoi = new ImageRoi((int)coord_res[0]+xStart_mid, (int)coord_res[1]+yStart_mid,tmpIp.getProcessor());
-	    	        imageRoi.setOpacity(0.3);
-	    	        overlay.addElement(imageRoi);
-	    			imp.setSlice(slice);
-	    			imp.setOverlay(overlay);
-	    			//WindowManager.setCurrentWindow(imgWindow);
-	    			//WindowManager.setWindow(imgWindow);
-	    			//imp.setActivated();
-	    			//imgWindow.toFront();
-	    		
-	    			
-					int failureAnswer = failureQuestionDlg(2); 
-					if (failureAnswer==0) adjustThreshold(coord_res[2], mid_mideal, method);
-	    			ignoreFrame = (failureAnswer==1);
-	    			stopTracking = (failureAnswer==2);
-	    			reselectPoints = (failureAnswer==3);
-				}
-    		}
-			
-			if (ignoreFrame) return 1;
-	        if (stopTracking) return 2;
-	        if (reselectPoints) return 3;
-     		
-
-		
-			if (iter>0) mid_matchRes.remove(mid_matchRes.size()-1);
-			mid_matchRes.add(coord_res[2]);
-			
-			disX_mid = coord_res[0] + xStart_mid - mid_rect.x;
-            disY_mid = coord_res[1] + yStart_mid - mid_rect.y;
-            
-            if (subPixel) {
-            	
-            	disX_mid += midRefCenterShiftX*(Math.cos(-mid_angle*Math.PI/180.0) - 1.0) + midRefCenterShiftY*Math.sin(-mid_angle*Math.PI/180.0);
-            	disY_mid += midRefCenterShiftY*(Math.cos(-mid_angle*Math.PI/180.0) - 1.0) - midRefCenterShiftX*Math.sin(-mid_angle*Math.PI/180.0);
-            }
-            
-            // current bending is computed and checked for the convergence
-            calcBendingParams(false);
-            if (Math.abs(disX_free-dxtmp)<1.0e-5 && Math.abs(disY_free-dytmp)<1.0e-5) break;
-            dxtmp=disX_free;
-            dytmp=disY_free;
-        }
-		
-        
-        
-        // the creation time of the image is taken from the EXIF metadata or incremented by timeStep
-        
-        if (exifTime)
-        {
-        	Instant shot_time;
-        	if(videoInput) shot_time = getShotTime("", slice);
-        	else shot_time = getShotTime(imp.getOriginalFileInfo().directory + stack.getSliceLabel(slice), slice);
-             
-        	if (shot_time!=null) seconds = Duration.between(first_shot_time, shot_time).toNanos()/1000000000.0;//(new Duration(first_shot_time,shot_time)).getMillis()/1000.0;
-        	else 
-        	{	
-        		exifTime=false;
-        		if (seconds!=0.0) seconds+=timeStep;
-        	}
-        }
-        else seconds+=timeStep;
-		
-        //slice_proc.translate(disX_holder, disY_holder);
-		
-        
-		// Supposed central line of the bent crystal is plotted
+	// What to do when a region is not found: the template is shown at its best position and the user is asked
+	private int matchFailed(int slice, int region, ImageProcessor template, double x, double y, double score) {
+		// the views waiting for a refresh are drawn before the question
+		if (display != null) display.flush();
+		Overlay overlay = new Overlay();
+		ImageRoi imageRoi = new ImageRoi((int)x, (int)y, overlayImage(new ImagePlus("", template)).getProcessor());
+		imageRoi.setOpacity(0.3);
+		overlay.addElement(imageRoi);
+		imp.setSlice(slice);
+		imp.setOverlay(overlay);
+		return failureQuestionDlg(region);
+	}
+	
+	// RGB templates are shown in gray
+	private ImagePlus overlayImage(ImagePlus tpl) {
+		if (refBitDepth==24 && !config.matchIntensity) {
+			ImagePlus tmpIp = tpl.duplicate();
+			ImageConverter ic = new ImageConverter(tmpIp);
+			ic.convertToGray32();
+			return tmpIp;
+		}
+		return tpl;
+	}
+	
+	// a frame tracked by the engine
+	private void frameTracked(FrameResult result) {
+		showTrackedFrame(result.slice, saveFlatten);
+		if (saveFlatten){
+			FileInfo fi = imp.getOriginalFileInfo();
+			String directory = fi.directory + "flatten"+File.separatorChar;
+			saveFlattenFrames(directory, result.seconds, false);
+		}
+		addResult(result);
+	}
+	
+	// Supposed central line of the bent crystal and the templates at the found positions are drawn over the frame
+	// The overlay is drawn with the other views unless it is needed at once (for a flatten copy of the frame)
+	private void showTrackedFrame(int slice, boolean now) {
+		ImagePlus tmpIp;
+		Overlay overlay;
 		
         
         float[] xpf=new float[11], ypf=new float[11];
         for (int astep=0;astep<11;astep++)
         {
-        	double ang=astep*bending_angle/10,
-        			y=-(1.0-Math.cos(ang))/curvature,
-        			x=Math.sin(ang)/curvature;
-        	xpf[astep]=(float)(refX_att+disX_holder+Math.cos(deflection_angle)*x+Math.sin(deflection_angle)*y);
-        	ypf[astep]=(float)(refY_att+disY_holder-Math.sin(deflection_angle)*x+Math.cos(deflection_angle)*y);
+        	double ang=astep*engine.bending_angle/10,
+        			y=-(1.0-Math.cos(ang))/engine.curvature,
+        			x=Math.sin(ang)/engine.curvature;
+        	xpf[astep]=(float)(engine.refX_att+engine.disX_holder+Math.cos(engine.deflection_angle)*x+Math.sin(engine.deflection_angle)*y);
+        	ypf[astep]=(float)(engine.refY_att+engine.disY_holder-Math.sin(engine.deflection_angle)*x+Math.cos(engine.deflection_angle)*y);
         	
         }
         PolygonRoi needle_line=new PolygonRoi(xpf,ypf,Roi.FREELINE);
         needle_line.setStrokeWidth(3);
         needle_line.enableSubPixelResolution();
         
-        if (refBitDepth==24 && !matchIntensity) {
-				tmpIp = free_tpl.duplicate();
-				ImageConverter ic = new ImageConverter(tmpIp);
-            	ic.convertToGray32();
-			} else tmpIp=free_tpl;
-        ImageRoi imageRoi_free = new ImageRoi((int)disX_free+free_rect.x, (int)disY_free+free_rect.y,tmpIp.getProcessor());
+        tmpIp = overlayImage(engine.free_tpl);
+        ImageRoi imageRoi_free = new ImageRoi((int)engine.disX_free+engine.free_rect.x, (int)engine.disY_free+engine.free_rect.y,tmpIp.getProcessor());
         imageRoi_free.setOpacity(0.3);
         overlay = new Overlay(imageRoi_free);
-        proi_free = new PointRoi(refX_free+disX_free,refY_free+disY_free);
+        proi_free = new PointRoi(engine.refX_free+engine.disX_free,engine.refY_free+engine.disY_free);
         proi_free.setPointType(3);
         overlay.addElement(proi_free);
         overlay.addElement(needle_line);
         
         
-        if (refBitDepth==24 && !matchIntensity) {
-				tmpIp = mid_tpl.duplicate();
-				ImageConverter ic = new ImageConverter(tmpIp);
-            	ic.convertToGray32();
-			} else tmpIp=mid_tpl;
-        ImageRoi imageRoi_mid = new ImageRoi((int)disX_mid+mid_rect.x, (int)disY_mid+mid_rect.y,tmpIp.getProcessor());
+        tmpIp = overlayImage(engine.mid_tpl);
+        ImageRoi imageRoi_mid = new ImageRoi((int)engine.disX_mid+engine.mid_rect.x, (int)engine.disY_mid+engine.mid_rect.y,tmpIp.getProcessor());
         imageRoi_mid.setOpacity(0.3);
         overlay.addElement(imageRoi_mid);
-        proi_mid = new PointRoi(refX_mid+disX_mid,refY_mid+disY_mid);
+        proi_mid = new PointRoi(engine.refX_mid+engine.disX_mid,engine.refY_mid+engine.disY_mid);
         proi_mid.setPointType(3);
         overlay.addElement(proi_mid);
         
-        Line hord_line =   new Line(refX_free + disX_free,
-					        		refY_free + disY_free, 
-					        		refX_att + disX_holder, 
-					        		refY_att + disY_holder);
+        Line hord_line =   new Line(engine.refX_free + engine.disX_free,
+					        		engine.refY_free + engine.disY_free, 
+					        		engine.refX_att + engine.disX_holder, 
+					        		engine.refY_att + engine.disY_holder);
         hord_line.setStrokeWidth(3);
         hord_line.enableSubPixelResolution();
         overlay.addElement(hord_line);
         
-        double x0 = (refX_free+disX_free+refX_att+disX_holder)/2.0,
-			   y0 = (refY_free+disY_free+refY_att+disY_holder)/2.0,
+        double x0 = (engine.refX_free+engine.disX_free+engine.refX_att+engine.disX_holder)/2.0,
+			   y0 = (engine.refY_free+engine.disY_free+engine.refY_att+engine.disY_holder)/2.0,
 
 			   x1,y1,
-			   dx = -(refY_free+disY_free-(refY_att+disY_holder)),
-			   dy = refX_free+disX_free-(refX_att+disX_holder),
+			   dx = -(engine.refY_free+engine.disY_free-(engine.refY_att+engine.disY_holder)),
+			   dy = engine.refX_free+engine.disX_free-(engine.refX_att+engine.disX_holder),
 			   dr = Math.sqrt(dx*dx+dy*dy),
-			   dh = (1-Math.cos(curvature*cr_length/2.0))/curvature;
+			   dh = (1-Math.cos(engine.curvature*engine.cr_length/2.0))/engine.curvature;
         
 				dx/=dr;
 				dy/=dr;
@@ -2354,63 +1331,225 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         
         
         // Overlays of the templates are placed over the obtained positions  
-        if (refBitDepth==24 && !matchIntensity) {
-				tmpIp = holder_ref.duplicate();
-				ImageConverter ic = new ImageConverter(tmpIp);
-            	ic.convertToGray32();
-			} else tmpIp=holder_ref;
-        ImageRoi imageRoi_att = new ImageRoi((int)disX_holder+holder_rect.x, (int)disY_holder+holder_rect.y,tmpIp.getProcessor());
+        tmpIp = overlayImage(engine.holder_ref);
+        ImageRoi imageRoi_att = new ImageRoi((int)engine.disX_holder+engine.holder_rect.x, (int)engine.disY_holder+engine.holder_rect.y,tmpIp.getProcessor());
         imageRoi_att.setOpacity(0.3);
         overlay.addElement(imageRoi_att);
-        proi_att = new PointRoi(refX_att+disX_holder,refY_att+disY_holder);
+        proi_att = new PointRoi(engine.refX_att+engine.disX_holder,engine.refY_att+engine.disY_holder);
         proi_att.setPointType(3);
         overlay.addElement(proi_att);
         
-        Roi holderroi = new Roi(xStart_holder, yStart_holder, sWX_holder, sWY_holder);
+        Roi holderroi = new Roi(engine.holder_window);
         holderroi.setStrokeWidth(3);
         holderroi.enableSubPixelResolution();
 		overlay.addElement(holderroi);
         
-		Roi midroi = new Roi(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
+		Roi midroi = new Roi(engine.mid_window);
         midroi.setStrokeWidth(3);
         midroi.enableSubPixelResolution();
 		overlay.addElement(midroi);
 		
-		Roi freeroi = new Roi(xStart_free, yStart_free, sWX_free, sWY_free);
+		Roi freeroi = new Roi(engine.free_window);
 		freeroi.setStrokeWidth(3);
 		freeroi.enableSubPixelResolution();
 		overlay.addElement(freeroi);
 		
        
 		for(ImagePlus refBin : refBinaryFrames) {
-        	ImageRoi ref_ImageRoi = new ImageRoi((int)disX_holder, (int)disY_holder,refBin.getProcessor());
+        	ImageRoi ref_ImageRoi = new ImageRoi((int)engine.disX_holder, (int)engine.disY_holder,refBin.getProcessor());
 	        ref_ImageRoi.setOpacity(0.2);
 	        ref_ImageRoi.setZeroTransparent(true);
 	        overlay.addElement(ref_ImageRoi);
         }
         
         
-//        ImageRoi ref_ImageRoi = new ImageRoi((int)disX_holder, (int)disY_holder,refImageBinary.getProcessor());
+//        ImageRoi ref_ImageRoi = new ImageRoi((int)engine.disX_holder, (int)engine.disY_holder,refImageBinary.getProcessor());
 //        ref_ImageRoi.setOpacity(0.3);
 //        ref_ImageRoi.setZeroTransparent(true);
 //        overlay.addElement(ref_ImageRoi);
 		
-        imp.setSlice(slice);
-        imp.setOverlay(overlay);
-        
-        if (saveFlatten){
-        	//FileSaver flattenSave = new FileSaver(imp.flatten());
-        	FileInfo fi = imp.getOriginalFileInfo();
-        	String directory = fi.directory + "flatten"+File.separatorChar;
-        	saveFlattenFrames(directory, seconds, false);
+        if (now) {
+        	imp.setSlice(slice);
+        	imp.setOverlay(overlay);
+        } else {
+        	// the frame is already in the image, the tracking thread has moved to it
+        	display.post("overlay", () -> {
+        		imp.setOverlay(overlay);
+        		if (imp.getWindow() instanceof StackWindow) ((StackWindow) imp.getWindow()).updateSliceSelector();
+        	});
         }
-        
-        
-        
-        return 0;
-    }
-    
-    
+	}
+	
+	// The reference setup is kept with the sequence, the batch runs track the sequence with it
+	private void saveSetup(String directory) {
+		config.referenceFrame = stack.getSliceLabel(refSlice);
+		try {
+			config.save(new File(directory, TrackerConfig.SETUP_FILE));
+		} catch (IOException e) {
+			IJ.log(pluginName + ": the setup is not saved (" + e.getMessage() + ")");
+		}
+	}
+
+	// The results go to the directory of the sequence (of the video file, named after it) while they are tracked,
+	// an interrupted run keeps them
+	private void openResultsWriter(String directory) {
+		if (config.resultsFiles == 0) return;
+		File base;
+		if (videoInput) {
+			FileInfo fi = imp.getOriginalFileInfo();
+			if (fi == null || fi.directory == null || fi.directory.isEmpty()) {
+				IJ.log(pluginName + ": the results are not written, the directory of the video is not known");
+				return;
+			}
+			base = new File(fi.directory, imp.getTitle() + ".results");
+		} else base = new File(directory, ResultsWriter.FILE_NAME);
+		try {
+			results_writer = new ResultsWriter(base, config.resultsFiles, resumedSlice > 0);
+		} catch (IOException e) {
+			IJ.log(pluginName + ": the results are not written (" + e.getMessage() + ")");
+		}
+	}
+
+	private void closeResultsWriter() {
+		if (results_writer == null) return;
+		try {
+			results_writer.close();
+		} catch (IOException e) {
+			IJ.log(pluginName + ": the results are not written completely (" + e.getMessage() + ")");
+		}
+		results_writer = null;
+	}
+
+	// A checkpoint left in the directory of the sequence by an interrupted run is offered, the tracking then
+	// continues after its frame with the points of the saved setup
+	private boolean resumeFromCheckpoint(String directory) {
+		if (videoInput) return false;
+		File file = new File(directory, Checkpoint.FILE_NAME);
+		if (!file.isFile()) return false;
+		int slice;
+		try {
+			slice = Checkpoint.slice(file);
+		} catch (IOException e) {
+			return false;
+		}
+		if (!IJ.showMessageWithCancel(pluginName, "The tracking of this sequence was saved at frame " + slice + " of " + stack.getSize() 
+				+ ".\nPress OK to continue from there, Cancel to select the points again.")) return false;
+		try {
+			// the checkpoint must have been made with the points of the saved setup
+			config.copyPoints(TrackerConfig.load(new File(directory, TrackerConfig.SETUP_FILE)));
+			resumedSlice = engine.resume(file);
+		} catch (IOException e) {
+			IJ.log(pluginName + ": the tracking is not resumed (" + e.getMessage() + ")");
+			return false;
+		}
+		refSlice = engine.refSlice;
+		imp.setSlice(resumedSlice);
+		return true;
+	}
+
+	// The frames flagged by the failure policy are analyzed again one by one, now the user answers the failed matches.
+	private void reviewFlaggedFrames() {
+		if (engine == null || display == null || engine.reviewQueue().isEmpty()) return;
+		int[] slices = engine.reviewQueue().slices();
+		if (!IJ.showMessageWithCancel(pluginName, slices.length + " frames were flagged during the tracking.\n"
+				+ "Press OK to analyze them again and answer the failed matches.")) return;
+		for (int slice : slices) {
+			imp.setSlice(slice);
+			int status = engine.reanalyze(slice, this::matchFailed, this::frameReviewed);
+			if (status == TrackerEngine.STOPPED) break;
+		}
+	}
+	
+	// a frame analyzed again replaces its results, a frame that was skipped is added
+	private void frameReviewed(FrameResult result) {
+		showTrackedFrame(result.slice, true);
+		int i = series.lastIndexOf(SLICE, result.slice);
+		if (i < 0) {
+			addResult(result);
+			return;
+		}
+		// the file keeps both records, the later one is valid
+		if (results_writer != null) results_writer.frameTracked(result);
+		series.set(i, TIME, result.seconds);
+		series.set(i, CURVATURE, result.curvature);
+		series.set(i, DEFORMATION, result.deformation);
+		if (showRT) {
+			final int row = i;
+			display.post("row " + row, () -> {
+				rt.setValue("Time", row, result.seconds);
+				rt.setValue("bendAngle", row, result.bendingAngle);
+				rt.setValue("defAngle", row, result.deflectionAngle);
+				rt.setValue("Length", row, result.length);
+				rt.setValue("Curvature", row, result.curvature);
+				rt.setValue("Deformation", row, result.deformation);
+			});
+		}
+		display.post("results", this::showResults);
+	}
+	
+	// The row of the results table and the points of the plots
+	// the results are kept in the series at once, the table and the plots are redrawn by the display
+	private void addResult(FrameResult result) {
+		series.append(result.seconds, result.curvature, result.deformation, result.slice);
+		if (results_writer != null) results_writer.frameTracked(result);
+		if (showRT) synchronized (pending_rows) {
+			pending_rows.add(result);
+		}
+		display.post("results", this::showResults);
+	}
+	
+	// the rows added since the last refresh and the plots of all the frames
+	private void showResults() {
+		if (showRT) {
+			List<FrameResult> rows;
+			synchronized (pending_rows) {
+				rows = new ArrayList<FrameResult>(pending_rows);
+				pending_rows.clear();
+			}
+			for (FrameResult result : rows) {
+				rt.incrementCounter();
+				
+				rt.addValue("Time", result.seconds);
+				if (videoInput) rt.addValue("File", imp.getTitle() + ":" +result.label.replaceAll(" ", ""));
+				else rt.addValue("File", result.label);
+				
+				rt.addValue("bendAngle", result.bendingAngle);
+				rt.addValue("defAngle", result.deflectionAngle);
+				rt.addValue("Length", result.length);
+				rt.addValue("Curvature", result.curvature);
+				rt.addValue("Deformation", result.deformation);
+			}
+			rt.show("Results");
+		}
+		
+		double[][] values = series.snapshot();
+		double[] time = values[TIME], curv = values[CURVATURE], deform = values[DEFORMATION];
+		// the plots are extended to the time of the last frame
+		double lastTime = series.max(TIME),
+			   c_min = series.min(CURVATURE), c_max = series.max(CURVATURE),
+			   d_min = series.min(DEFORMATION), d_max = series.max(DEFORMATION);
+		
+		double y_height=c_max-c_min;
+		if (y_height==0.0) y_height=1.0;
+		double y_min=c_min-0.1*y_height,
+			   y_max=c_max+0.1*y_height;
+		Plot plot1 = new Plot("Curvature Plot","Time, s","Curvature");
+		plot1.setLimits(0, lastTime, y_min, y_max);
+		plot1.addPoints(time, curv, Plot.BOX);
+		ImageProcessor plotIp = plot1.getProcessor();
+		plotImage.setProcessor(null, plotIp);
+		
+		y_height=d_max-d_min;
+		if (y_height==0.0) y_height=1.0;
+		y_min=d_min-0.1*y_height;
+		y_max=d_max+0.1*y_height;
+		Plot plot2 = new Plot("Deformation Plot","Time, s","Deformation");
+		plot2.setLimits(0, lastTime, y_min, y_max);
+		plot2.addPoints(time, deform, Plot.BOX);
+		ImageProcessor plotIp2 = plot2.getProcessor();
+		plotDefImage.setProcessor(null, plotIp2);
+	}
+	
     private void saveFlattenFrames(String directory, double seconds, boolean lastFrame) {
     	
     	
@@ -2443,8 +1582,8 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
     			}
     			
     			ImagePlus flatten_img = imp.flatten();
-    			flatten_img.getProcessor().translate(-disX_holder, -disY_holder);
-    			String paramInfo = String.format("1/R  = %.2E 1/pixel\ndL/L = %.2f %%", curvature, deformation*100.0);
+    			flatten_img.getProcessor().translate(-engine.disX_holder, -engine.disY_holder);
+    			String paramInfo = String.format("1/R  = %.2E 1/pixel\ndL/L = %.2f %%", engine.curvature, engine.deformation*100.0);
     			TextRoi textoverlay = new TextRoi(50,50,paramInfo,fontParamInfo);
     			Overlay ov = new Overlay();  
     			ov.add(textoverlay);
@@ -2460,80 +1599,33 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
     	}
     }
     
-    private void calcBendingParams(boolean reselect) {
-    	
-    	
-    	
-    	double H_x=refX_free+disX_free-(refX_att+disX_holder),
-          	   H_y=refY_free+disY_free-(refY_att+disY_holder),
-          	   H=Math.sqrt(H_x*H_x+H_y*H_y),
-          	   cos_full_angle=H_x/H,
-          	   
-          	   H1_x=refX_mid+disX_mid-(refX_att+disX_holder),
-               H1_y=refY_mid+disY_mid-(refY_att+disY_holder),
-               H1=Math.sqrt(H1_x*H1_x+H1_y*H1_y),
-               
-               H2_x=refX_mid+disX_mid-(refX_free+disX_free),
-               H2_y=refY_mid+disY_mid-(refY_free+disY_free),
-               H2=Math.sqrt(H2_x*H2_x+H2_y*H2_y),
-               
-               H_mid_x=refX_mid+disX_mid-(refX_att+disX_holder+refX_free+disX_free)/2.0,
-               H_mid_y=refY_mid+disY_mid-(refY_att+disY_holder+refY_free+disY_free)/2.0,
-               sign=Math.signum(H_x*H_mid_y-H_y*H_mid_x);
-    	
-    	 full_angle=Math.acos(cos_full_angle);
-         if (H_y>0.0) full_angle=-full_angle;
-     	
-        double cos_half_bend=(H*H-H1*H1-H2*H2)/2.0/H1/H2;
-        if (cos_half_bend>=1.0) bending_angle=0.0;
-        else if (cos_half_bend<=-1.0) bending_angle=2.0*Math.PI;
-        else bending_angle=2.0*sign*Math.acos(cos_half_bend);
-     	curvature=2.0*Math.sin(bending_angle/2.0)/H;
-     	deflection_angle=full_angle-bending_angle/2.0;
-     	if (curvature!=0.0) cr_length=Math.abs(bending_angle/curvature);
-     	else cr_length=H;
-     	if (length_ini==0.0) length_ini=cr_length;
-     	if (reselect) {
-     		
-     		double  oldL0 = length_ini;
-     		length_ini=cr_length/(1.0 + deform_list.get(deform_list.size()-1));
-     		
-     		IJ.showMessage("Initial length is changed from "+oldL0+ "\nto "+length_ini+"\nas the result of new selection");
-     	}
-        deformation=(cr_length-length_ini)/length_ini;
-    }
-
- 
-
-	
     private boolean getUserParameters() {
 
         //boolean showFlattenOption = false;
     	
-    	method =  (int) Prefs.get("BendingCrystalTrack.method", 5);
-    	templSize=(int) Prefs.get("BendingCrystalTrack.templSize", 300);
-    	sArea =   (int) Prefs.get("BendingCrystalTrack.sArea", 20);
-    	subPixel =		Prefs.get("BendingCrystalTrack.subPixel", true);
-    	matchIntensity =Prefs.get("BendingCrystalTrack.matchIntensity", true);
-    	String[] methods = {"Square difference", "Normalized square difference", "Cross correlation", "Normalized cross correlation", "Correlation coefficient", "Normalized correlation coefficient"};
+    	config = TrackerConfig.fromPrefs();
         //String[] itpMethods = {"Bilinear", "Bicubic"};
 
         GenericDialog gd = new GenericDialog(pluginName);
         gd.addMessage("Only virtual stacks of time lapse images are supported currently.\n"
         		+ "Adjust the settings and follow the instructions to select templates to track.");
-        gd.addChoice("Matching method", methods, methods[method]);
-        gd.addNumericField("Template rectangle size (rectangle ROI size in pixels) ", templSize, 0);
+        gd.addChoice("Matching method", TemplateMatcher.matchMethods, TemplateMatcher.matchMethods[config.method]);
+        gd.addNumericField("Template rectangle size (rectangle ROI size in pixels) ", config.templSize, 0);
         //gd.addMessage("(Template will be searched on the whole image if search area =0)");
-        gd.addNumericField("Search area(pixels around ROI) ", sArea, 0);
+        gd.addNumericField("Search area(pixels around ROI) ", config.sArea, 0);
         gd.addMessage("(Template will be searched on the whole image if search area =0)");
-        gd.addCheckbox("Subpixel registration", subPixel);
-        gd.addCheckbox("Match RGB images using intensity", matchIntensity);
+        gd.addCheckbox("Subpixel registration", config.subPixel);
+        gd.addCheckbox("Match RGB images using intensity", config.matchIntensity);
+        gd.addChoice("When a match fails", failureChoices, failureChoices[config.failurePolicy == null ? 0 : config.failurePolicy.ordinal() + 1]);
+        gd.addCheckbox("Adjust performance settings", false);
         //gd.addCheckbox("Save flatten copies of images with overlays", saveFlatten);
        
         //gd.addChoice("Interpolation method for subpixel translation", itpMethods, itpMethods[itpMethod]);
        
         //gd.addCheckbox("update templates?", false);
         
+        // the button panel is added by showDialog
+        final int gdComponentCount = gd.getComponentCount() + 1;
         Component[] gd_components = gd.getComponents();
         for (Component comp : gd_components)
         comp.addKeyListener(new KeyListener(){  
@@ -2546,7 +1638,7 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
             @Override
             public void keyPressed(KeyEvent e) {
             	
-            	 if (gd.getComponentCount()==11 && e.isControlDown() && e.getKeyCode() == KeyEvent.VK_T) {
+            	 if (gd.getComponentCount()==gdComponentCount && e.isControlDown() && e.getKeyCode() == KeyEvent.VK_T) {
             		 //IJ.showMessage("Info", "pressed");
             		 //GenericDialog d = (GenericDialog)e.getSource();
             		 gd.addCheckbox("Save flatten copies of images with overlays", saveFlatten);
@@ -2567,25 +1659,87 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
         if (gd.wasCanceled()) {
             return false;
         }
-        method = gd.getNextChoiceIndex();
-        templSize=(int) gd.getNextNumber();
-        sArea = (int) gd.getNextNumber();
-        subPixel = gd.getNextBoolean();
-        matchIntensity  = gd.getNextBoolean();
-        if (gd.getComponentCount()==12) saveFlatten = gd.getNextBoolean();
-        
-        
-        Prefs.set("BendingCrystalTrack.method", method);
-    	Prefs.set("BendingCrystalTrack.templSize", templSize);
-    	Prefs.set("BendingCrystalTrack.sArea", sArea);
-    	Prefs.set("BendingCrystalTrack.subPixel", subPixel);
-    	Prefs.set("BendingCrystalTrack.matchIntensity", matchIntensity);
+        config.method = gd.getNextChoiceIndex();
+        config.templSize=(int) gd.getNextNumber();
+        config.sArea = (int) gd.getNextNumber();
+        config.subPixel = gd.getNextBoolean();
+        config.matchIntensity  = gd.getNextBoolean();
+        int failureChoice = gd.getNextChoiceIndex();
+        config.failurePolicy = failureChoice == 0 ? null : FailurePolicy.values()[failureChoice - 1];
+        boolean adjustPerformance = gd.getNextBoolean();
+        if (gd.getComponentCount()==gdComponentCount+1) saveFlatten = gd.getNextBoolean();
+        
+        
+        config.saveMatchingPrefs();
         //itpMethod = gd.getNextChoiceIndex();
         //updateTemplates = gd.getNextBoolean();
         showRT = true;
 
+        getPerformanceParameters(adjustPerformance);
+        
         return true;
     }
+    
+    private boolean getPerformanceParameters(boolean showDialog) {
+    	
+    	// the settings are loaded with the main ones
+    	if (!showDialog) return true;
+    	
+    	GenericDialog gd = new GenericDialog(pluginName + " - performance");
+    	gd.addMessage("Rotated templates are cached at angles rounded to the angular step.\n"
+    			+ "Set the step to 0 to rotate the templates exactly (no cache).");
+    	gd.addNumericField("Template rotation step (degrees) ", config.tplAngleStep, 3);
+    	gd.addNumericField("Rotated templates kept in memory (per template) ", config.tplCacheSize, 0);
+    	gd.addCheckbox("Prepare rotated templates in advance (parallel)", config.prewarmTemplates);
+    	gd.addChoice("Correlation engine", FftCorrelator.modes, FftCorrelator.modes[config.correlationMode]);
+    	gd.addMessage("(Automatic chooses FFT correlation for large search areas and templates)");
+    	gd.addChoice("Search when the track is lost", recoveryModes, recoveryModes[config.recoveryMode]);
+    	gd.addChoice("Free end rotation", rotationModes, rotationModes[config.rotationMode]);
+    	gd.addCheckbox("Predict the motion to place and size the search areas", config.motionPrediction);
+    	gd.addCheckbox("Adapt the search area of each region to its motion", config.adaptiveSearch);
+    	gd.addCheckbox("Match the regions in parallel", config.parallelRegions);
+    	gd.addMessage("(The prediction keeps the search areas within the one set in the main dialog,\n"
+    			+ "the adaptive areas start from it and may grow up to 8 times larger)");
+    	gd.addNumericField("Images read ahead (0 - off) ", config.prefetchFrames, 0);
+    	gd.addNumericField("Threads reading images ahead ", config.prefetchThreads, 0);
+    	gd.addMessage("(For image sequences opened as a virtual stack)");
+    	gd.addNumericField("Redraw the table and the plots (per second, 0 - every frame) ", config.displayRate, 1);
+    	gd.addChoice("Write the results as they come", resultsFileChoices, resultsFileChoices[config.resultsFiles & 3]);
+    	gd.addNumericField("Save the tracking state every (frames, 0 - never) ", config.checkpointInterval, 0);
+    	gd.addMessage("(An interrupted track of an image sequence can be resumed from the state saved last)");
+    	gd.addChoice("Matching backend", MatchWorkspace.backends, MatchWorkspace.backends[config.matchBackend]);
+    	gd.addMessage("(Pure Java works without the JavaCV libraries, the correlation engine\n"
+    			+ "and the Fourier-Mellin estimate are used with OpenCV only)");
+    	gd.showDialog();
+    	if (gd.wasCanceled()) {
+            return false;
+        }
+    	config.tplAngleStep = Math.max(0.0, gd.getNextNumber());
+    	config.tplCacheSize = Math.max(1, (int) gd.getNextNumber());
+    	config.prewarmTemplates = gd.getNextBoolean();
+    	config.correlationMode = gd.getNextChoiceIndex();
+    	config.recoveryMode = gd.getNextChoiceIndex();
+    	config.rotationMode = gd.getNextChoiceIndex();
+    	config.motionPrediction = gd.getNextBoolean();
+    	config.adaptiveSearch = gd.getNextBoolean();
+    	config.parallelRegions = gd.getNextBoolean();
+    	config.prefetchFrames = Math.max(0, (int) gd.getNextNumber());
+    	config.prefetchThreads = Math.max(1, (int) gd.getNextNumber());
+    	config.displayRate = Math.max(0.0, gd.getNextNumber());
+    	config.resultsFiles = gd.getNextChoiceIndex();
+    	config.checkpointInterval = Math.max(0, (int) gd.getNextNumber());
+    	config.matchBackend = gd.getNextChoiceIndex();
+    	if (config.matchBackend == MatchWorkspace.OPENCV && !javacvInstalled) {
+    		javacvInstalled = checkJavaCV("1.5", true, "opencv");
+    		if (!javacvInstalled) {
+    			IJ.log("JavaCV is not available, the pure Java matching is used.");
+    			config.matchBackend = MatchWorkspace.JAVA;
+    		}
+    	}
+    	
+    	config.savePerformancePrefs();
+    	return true;
+    }
     /*
 	public static IplImage toIplImage(BufferedImage bufImage) {
 
@@ -2606,275 +1760,6 @@ private boolean checkJavaCV(String version, boolean treatAsMinVer, String compon
 	
 
     
-    public static double[]  doMatch_coord_res(ImageProcessor src, ImageProcessor tpl, int method, boolean subPix, double[] searchLine) {
-
-        BufferedImage bi = null, bi2 = null;
-        Mat sourceMat, templateMat, temp, temp2;
-        int srcW = src.getWidth();
-        int srcH = src.getHeight();
-        int tplW = tpl.getWidth();
-        int tplH = tpl.getHeight();
-        sourceMat = null;
-        templateMat = null;
-        double[] coord_res = new double[3];
-        
-        switch (src.getBitDepth()) {
-    
-            case 16:
-                //since cvMatchTemplate don't accept 16bit image, we have to convert it to 32bit
-                bi = ((ShortProcessor) src).get16BitBufferedImage();
-                temp = toMatcv(bi);
-                temp.convertTo(sourceMat, CV_32FC1, 1 / 65535.0, 0);
-                bi2 = ((ShortProcessor) tpl).get16BitBufferedImage();
-                temp2 = toMatcv(bi2);
-                temp2.convertTo(templateMat, CV_32FC1, 1 / 65535.0, 0);
-                break;
-            case 32:   
-            case 24:	
-            case 8:
-            	
-                bi = src.getBufferedImage();
-                sourceMat = toMatcv(bi);
-
-                bi2 = tpl.getBufferedImage();
-                templateMat = toMatcv(bi2);
-
-                break;
-            default:
-                IJ.error("Unsupported image type");
-                break;
-        }
-
-       
-        
-        Mat resMat = new Mat(new Size(srcW - tplW + 1, srcH - tplH + 1), CV_32FC1);
-        
-
-        
-        //CV_TM_SQDIFF        = 0,
-        //CV_TM_SQDIFF_NORMED = 1,
-        //CV_TM_CCORR         = 2,
-        //CV_TM_CCORR_NORMED  = 3,
-        //CV_TM_CCOEFF        = 4,
-        //CV_TM_CCOEFF_NORMED = 5;
-         
-
-        ///
-        /// This is the template matching function from the cv library 
-        ///
-       
-        //cvMatchTemplate(iplSrc, iplTpl, res, method);
-        matchTemplate(sourceMat, templateMat, resMat, method);
-        
-        //////Search the location of the template
-        
-        
-        FloatIndexer resVal = resMat.createIndexer();
-        if (searchLine!=null && !(searchLine[2]==0.0 && searchLine[3]==0.0)){  //////////////////// Searching the middle part along the normal line
-        	
-        	int[] coord = new int[2];
-            coord[0]=0;
-            coord[1]=0;
-            double minmax=0.0;
-            boolean firstPointFound=false;
-            int sWh, sWw;
-            sWh = resMat.rows();
-            sWw = resMat.cols();
-            double x0=searchLine[0], y0=searchLine[1], dx0=searchLine[2], dy0=searchLine[3];
-            boolean searchMin = (method == 0 || method == 1);
-            if (Math.abs(dx0)>Math.abs(dy0))
-            {
-            	for (int col = 0; col < sWw; col++) {
-                	int row = (int)(y0 + dy0*(col-x0)/dx0);
-                	if (row>=0 && row < sWh)
-                	{
-                		double val=resVal.get(row, col);
-                		if (!firstPointFound) {
-                			firstPointFound = true;
-                			minmax=val;
-                			coord[0] = col;
-     	                    coord[1] = row;
-                		}
-    	                if ((searchMin && val < minmax) || (!searchMin && val > minmax)) {
-    	                    minmax = val;
-    	                    coord[0] = col;
-    	                    coord[1] = row;
-    	                }
-                	}
-                }
-            	
-            } else {
-            	for (int row = 0; row < sWh; row++) {
-                	int col = (int)(x0 + dx0*(row-y0)/dy0);
-                	if (col>=0 && col < sWw)
-                	{
-                		double val=resVal.get(row, col);
-                		if (!firstPointFound) {
-                			firstPointFound = true;
-                			minmax=val;
-                			coord[0] = col;
-     	                    coord[1] = row;
-                		}
-    	                if ((searchMin && val < minmax) || (!searchMin && val > minmax)) {
-    	                    minmax = val;
-    	                    coord[0] = col;
-    	                    coord[1] = row;
-    	                }
-                	}
-                }
-            }
-            coord_res[0] = coord[0];
-        	coord_res[1] = coord[1];
-        	coord_res[2] = minmax;
-        	
-        	if (subPix){
-            	double dx, dy;
-            	int x = (int)coord_res[0], y = (int)coord_res[1]; 
-            	double lineAngle = Math.atan2(dy0, dx0), sin = Math.sin(lineAngle), cos = Math.cos(lineAngle);
-                
-                // border values
-                if (x == 0
-                        || x == resMat.cols() - 1
-                        || y == 0
-                        || y == resMat.rows() - 1) {
-                    dx = 0.0;
-                    dy = 0.0;
-                } else {
-                	
-                	double fxx=resVal.get(y, x - 1) - 2.0 * resVal.get( y, x) + resVal.get(y, x + 1),
-                		   fyy=resVal.get(y - 1, x) - 2.0 * resVal.get( y, x) + resVal.get(y + 1, x),
-                		   fxy=(resVal.get(y + 1, x + 1) + resVal.get(y - 1, x - 1)
-                		   		- resVal.get(y - 1, x + 1) - resVal.get(y + 1, x - 1))/4.0,
-                		   fx=(resVal.get(y, x + 1) - resVal.get(y, x - 1))/2.0,
-                		   fy=(resVal.get(y + 1, x) - resVal.get(y - 1, x))/2.0,
-                		   fr=fx*cos + fy*sin,
-                		   frr=fxx*cos*cos + fyy*sin*sin + fxy*sin*cos;
-                	
-                	if (frr==0.0) {
-                		dx = 0.0;
-                		dy = 0.0;
-                	} else {
-                		 dx = -fr/frr*cos;
-                         dy = -fr/frr*sin;
-                         if (Math.abs(dx)>1.0 || Math.abs(dy)>1.0) {
-                        	dx = 0.0;
-                     		dy = 0.0;
-                         }
-                	}
-                		
-                   
-                }
-                coord_res[0]+=dx;
-                coord_res[1]+=dy;
-            }
-            
-        	
-        } else { /////////////////// Searching matching position inside the search area
-        	DoublePointer minVal= new DoublePointer(0.0);
-        	DoublePointer maxVal= new DoublePointer(0.0);
-            Point min = new  Point();
-            Point max = new  Point();
-            minMaxLoc(resMat, minVal, maxVal, min, max, null);
-            if (method == 0 || method == 1) {
-            	coord_res[0] = min.x();
-            	coord_res[1] = min.y();
-            	coord_res[2] = minVal.get();
-            } else {
-            	coord_res[0] = max.x();
-            	coord_res[1] = max.y();
-            	coord_res[2] = maxVal.get();
-            }
-            
-            if (subPix){
-            	double dx, dy;
-            	int x = (int)coord_res[0], y = (int)coord_res[1]; 
-                
-                // border values
-                if (x == 0
-                        || x == resMat.cols() - 1
-                        || y == 0
-                        || y == resMat.rows() - 1) {
-                    dx = 0.0;
-                    dy = 0.0;
-                } else {
-                	
-                	double fxx=resVal.get(y, x - 1) - 2.0 * resVal.get( y, x) + resVal.get(y, x + 1),
-                		   fyy=resVal.get(y - 1, x) - 2.0 * resVal.get( y, x) + resVal.get(y + 1, x),
-                		   fxy=(resVal.get(y + 1, x + 1) + resVal.get(y - 1, x - 1)
-                		   		- resVal.get(y - 1, x + 1) - resVal.get(y + 1, x - 1))/4.0,
-                		   fx=(resVal.get(y, x + 1) - resVal.get(y, x - 1))/2.0,
-                		   fy=(resVal.get(y + 1, x) - resVal.get(y - 1, x))/2.0;
-                	double denom = fxy*fxy - fxx*fyy;
-                	if (denom==0.0) {
-                		dx = 0.0;
-                		dy = 0.0;
-                	} else {
-                		 dx = (fyy*fx - fxy*fy)/denom;
-                         dy = (fxx*fy - fxy*fx)/denom;
-                         if (Math.abs(dx)>1.0 || Math.abs(dy)>1.0) {
-                        	dx = 0.0;
-                     		dy = 0.0;
-                         }
-                	}
-                		
-                   
-                }
-                coord_res[0]+=dx;
-                coord_res[1]+=dy;
-            }
-        	
-        }
-        
-        return coord_res;
-    }
-     
-    public static double doMatch_test(ImageProcessor src, int method) {
-
-    	
-    	
-    	
-    	BufferedImage bi = null;
-    	//bi = src.getBufferedImage();
-    	//Mat sourceMat = toMatcv(bi);
-    	
-        Mat sourceMat, temp;
-        sourceMat = null;
-        
-    	
-    	switch (src.getBitDepth()) {
-    	             
-    	            case 16:
-    	            	
-    	                
-    	                bi = ((ShortProcessor) src).get16BitBufferedImage();
-    	                temp = toMatcv(bi);
-    	                temp.convertTo(sourceMat, CV_32FC1, 1 / 65535.0, 0);
-    	                break;
-    	            case 32: 
-    	            case 24:	
-    	            case 8:
-    	            	
-    	                bi = src.getBufferedImage();
-    	                sourceMat = toMatcv(bi);
-    	                break;
-    	            default:
-    	                IJ.error("Unsupported image type");
-    	                break;
-    	        }
-    	
-    	
-    	
-        
-       Size size = new Size(1, 1);
-       Mat result = new Mat(size, CV_32FC1);
-       matchTemplate(sourceMat, sourceMat, result, method);
-       FloatIndexer idx = result.createIndexer(); 
-       return idx.get(0);
-       
-    }
-    
-
-
 	@Override
 	public boolean dialogItemChanged(GenericDialog arg0, AWTEvent arg1) {
 		if (arg0.wasOKed() || arg0.wasCanceled()) folderMonitoring=true;
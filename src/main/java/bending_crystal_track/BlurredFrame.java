@@ -0,0 +1,181 @@
+package bending_crystal_track;
+
+import ij.ImagePlus;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/* The current frame prepared as the search windows are (converted to 32-bit gray if the intensity is matched
+ * and blurred), computed once per frame and shared by the regions.
+ * The search windows of the holder, the free end and the middle part are blurred in blocks: windows that overlap
+ * (or whose bounding box is not larger than the windows together) are blurred as one block, so no pixel is
+ * blurred twice in a frame. Each region gets a copy of its window from the block.
+ * The whole frame is prepared only when a region has to be searched again with a larger window,
+ * then all the retries of the frame (of any region and any size) are cut from it.
+ * The window sums of the matching (WindowStats) are built at most once per frame for a block and for the
+ * whole frame, the windows and the retries cut from them use the tables at their offset. The regions may be
+ * matched in parallel, the methods are synchronized.
+ */
+final class BlurredFrame {
+
+	private final GaussianBlur gaussianBlur = new GaussianBlur();
+	private WindowFilter windowFilter;
+	private ImageProcessor frame, blurred;
+	private boolean gray;
+	// blurred blocks of the frame and their positions, the buffers are reused when the size does not change
+	private final ArrayList<Rectangle> blocks = new ArrayList<Rectangle>();
+	private final ArrayList<FloatProcessor> blockImages = new ArrayList<FloatProcessor>();
+	private final ArrayList<WindowStats> blockStats = new ArrayList<WindowStats>();
+	private int blockCount;
+	private WindowStats wholeStats;
+	// the tables of the last frame, filled again for the next one
+	private WindowStats reuseWhole;
+	// the images cut from the frame (by their pixel array): the block they were cut from (-1: the whole frame)
+	// and their position in it
+	private final IdentityHashMap<Object, int[]> cuts = new IdentityHashMap<Object, int[]>();
+
+	// a new frame, nothing is computed until it is needed
+	synchronized void reset(ImageProcessor frame, boolean gray) {
+		this.frame = frame;
+		this.gray = gray;
+		blurred = null;
+		blockCount = 0;
+		for (int i = 0; i < blockStats.size(); i++) blockStats.set(i, null);
+		if (wholeStats != null) reuseWhole = wholeStats;
+		wholeStats = null;
+		cuts.clear();
+	}
+
+	// blurs the (gray) windows of the frame, the overlapping ones together
+	synchronized void prepare(Rectangle... windows) {
+		Rectangle bounds = new Rectangle(frame.getWidth(), frame.getHeight());
+		ArrayList<Rectangle> merged = new ArrayList<Rectangle>();
+		for (Rectangle w : windows) {
+			Rectangle r = w.intersection(bounds);
+			if (!r.isEmpty()) merged.add(r);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			search:
+			for (int i = 0; i < merged.size(); i++)
+				for (int j = i + 1; j < merged.size(); j++) {
+					Rectangle a = merged.get(i), b = merged.get(j), u = a.union(b);
+					if (a.intersects(b) || area(u) <= area(a) + area(b)) {
+						merged.set(i, u);
+						merged.remove(j);
+						changed = true;
+						break search;
+					}
+				}
+		}
+		for (Rectangle r : merged) addBlock(r);
+	}
+
+	private static long area(Rectangle r) {
+		return (long) r.width * r.height;
+	}
+
+	private FloatProcessor addBlock(Rectangle r) {
+		if (windowFilter == null) windowFilter = new WindowFilter();
+		FloatProcessor reuse = blockCount < blockImages.size() ? blockImages.get(blockCount) : null;
+		FloatProcessor block = windowFilter.apply(frame, r.x, r.y, r.width, r.height, reuse);
+		if (blockCount < blocks.size()) {
+			blocks.set(blockCount, r);
+			blockImages.set(blockCount, block);
+			blockStats.set(blockCount, null);
+		} else {
+			blocks.add(r);
+			blockImages.add(block);
+			blockStats.add(null);
+		}
+		blockCount++;
+		return block;
+	}
+
+	// The gray window (x, y, w, h), clipped by the frame, copied into out if it has the size of the window
+	// (otherwise into a new processor, which is returned). A window outside the prepared blocks is blurred
+	// as a new block.
+	synchronized FloatProcessor window(int x, int y, int w, int h, FloatProcessor out) {
+		Rectangle r = new Rectangle(x, y, w, h).intersection(new Rectangle(frame.getWidth(), frame.getHeight()));
+		ImageProcessor source = null;
+		Rectangle origin = null;
+		int block = -1;
+		if (blurred != null) {
+			source = blurred;
+			origin = new Rectangle(frame.getWidth(), frame.getHeight());
+		} else {
+			for (int i = 0; i < blockCount && source == null; i++)
+				if (blocks.get(i).contains(r)) {
+					source = blockImages.get(i);
+					origin = blocks.get(i);
+					block = i;
+				}
+			if (source == null) {
+				block = blockCount;
+				source = addBlock(r);
+				origin = r;
+			}
+		}
+		if (out == null || out.getWidth() != r.width || out.getHeight() != r.height) out = new FloatProcessor(r.width, r.height);
+		float[] src = (float[]) source.getPixels(), dst = (float[]) out.getPixels();
+		int stride = source.getWidth();
+		for (int j = 0; j < r.height; j++)
+			System.arraycopy(src, (r.y - origin.y + j) * stride + r.x - origin.x, dst, j * r.width, r.width);
+		out.resetMinAndMax();
+		cuts.put(out.getPixels(), new int[]{block, r.x - origin.x, r.y - origin.y});
+		return out;
+	}
+
+	synchronized ImageProcessor whole() {
+		if (blurred == null) {
+			if (gray) {
+				if (windowFilter == null) windowFilter = new WindowFilter();
+				// a new image every frame, the matching caches its window sums by the pixel array
+				blurred = windowFilter.apply(frame, 0, 0, frame.getWidth(), frame.getHeight(), null);
+			} else {
+				// the frame itself is not changed
+				blurred = frame.duplicate();
+				gaussianBlur.blurGaussian(blurred, 2, 2, 0.02);
+			}
+			cuts.put(blurred.getPixels(), new int[]{-1, 0, 0});
+		}
+		return blurred;
+	}
+
+	synchronized ImagePlus crop(int x, int y, int w, int h) {
+		ImageProcessor ip = whole();
+		Rectangle r = new Rectangle(x, y, w, h).intersection(new Rectangle(ip.getWidth(), ip.getHeight()));
+		ip.setRoi(r);
+		ImageProcessor window = ip.crop();
+		ip.resetRoi();
+		cuts.put(window.getPixels(), new int[]{-1, r.x, r.y});
+		return new ImagePlus("", window);
+	}
+
+	// The window sums of an image cut from this frame (not changed since), from the tables of its block or of the
+	// whole frame; null for another image
+	synchronized WindowStats stats(ImageProcessor image) {
+		int[] cut = cuts.get(image.getPixels());
+		if (cut == null) return null;
+		WindowStats tables;
+		if (cut[0] < 0) {
+			if (wholeStats == null) {
+				wholeStats = WindowStats.of(blurred, reuseWhole);
+				reuseWhole = null;
+			}
+			tables = wholeStats;
+		} else {
+			tables = blockStats.get(cut[0]);
+			if (tables == null) {
+				tables = WindowStats.of(blockImages.get(cut[0]));
+				blockStats.set(cut[0], tables);
+			}
+		}
+		return tables.at(image, cut[1], cut[2]);
+	}
+}
@@ -0,0 +1,386 @@
+package bending_crystal_track;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/* The complete state of a tracker engine after a frame: the reference points and templates, the positions,
+ * the bending parameters, the adapted thresholds, the time, the motion predictors and search margins, the
+ * positions the flagged frames are analyzed again from and the flagged frames. A resumed engine tracks the
+ * next frames as the engine that saved the state would.
+ * The file is a gzipped stream of primitives, it is written next to the old one and then renamed over it,
+ * so a crash while writing leaves the previous checkpoint. A checkpoint is read whole before it replaces the
+ * state of an engine, an engine is not changed by a file that is cut or damaged.
+ */
+final class Checkpoint {
+
+	static final String FILE_NAME = "BendingCrystalTrack.checkpoint";
+	static final int MAGIC = 0x42435443, VERSION = 2;
+	// the doubles of the bending parameters, the positions and the time
+	private static final int VALUES = 40;
+
+	final int slice;
+	private String label;
+	private int method, refSlice, width, height, refBitDepth;
+	private boolean matchIntensity, exifTime;
+	// the points and the holder rectangle selected in the reference frame
+	private TrackerConfig setup;
+	private double[] values, thresholds;
+	private Instant firstShotTime;
+	private Rectangle[] rects;
+	private ImageProcessor[] templates;
+	// the motion predictors and the search margins as they are written
+	private byte[] dynamics;
+	private TreeMap<Integer, double[]> positions;
+	private List<ReviewQueue.Flag> flags;
+
+	private Checkpoint(int slice) {
+		this.slice = slice;
+	}
+
+	// a copy of the state of the engine after the slice, it can be written by another thread
+	Checkpoint(TrackerEngine e, int slice) {
+		this(slice);
+		label = label(e.source.label(slice));
+		method = e.method;
+		matchIntensity = e.matchIntensity;
+		refSlice = e.refSlice;
+		width = e.width;
+		height = e.height;
+		refBitDepth = e.refBitDepth;
+		setup = new TrackerConfig();
+		setup.copyPoints(e.config);
+		values = new double[]{
+				e.refX_free, e.refY_free, e.refX_att, e.refY_att, e.refX_mid, e.refY_mid,
+				e.freeRefCenterShiftX, e.freeRefCenterShiftY, e.midRefCenterShiftX, e.midRefCenterShiftY,
+				e.disX_free, e.disY_free, e.disX_holder, e.disY_holder, e.disX_mid, e.disY_mid,
+				e.length_ini, e.cr_length, e.hord_ini, e.curvature_ini, e.curvature,
+				e.bending_angle_ini, e.bending_angle, e.deflection_angle_ini, e.deflection_angle,
+				e.full_angle, e.full_angle_ini, e.initial_angle, e.deformation, e.last_deformation,
+				e.h0_x, e.h0_y, e.free_mideal, e.att_mideal, e.mid_mideal,
+				e.holder_score, e.free_score, e.mid_score, e.seconds, e.timeStep};
+		thresholds = e.matchThreshold.clone();
+		exifTime = e.exifTime;
+		firstShotTime = e.first_shot_time;
+		rects = new Rectangle[]{new Rectangle(e.holder_rect), new Rectangle(e.free_rect), new Rectangle(e.mid_rect),
+				e.refCropRoi.getBounds(), e.mid_refCropRoi.getBounds(),
+				new Rectangle(e.holder_window), new Rectangle(e.free_window), new Rectangle(e.mid_window)};
+		// the templates are replaced, not changed, by a new reference
+		templates = new ImageProcessor[]{e.holder_ref.getProcessor(), e.free_ref.getProcessor(), e.mid_ref.getProcessor()};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			for (MotionPredictor m : new MotionPredictor[]{e.holder_motion, e.free_motion, e.mid_motion}) m.write(out);
+			for (SearchMargin m : new SearchMargin[]{e.holder_margin, e.free_margin, e.mid_margin}) m.write(out);
+		} catch (IOException ex) {
+			// not thrown by a stream in memory
+			throw new IllegalStateException(ex);
+		}
+		dynamics = bytes.toByteArray();
+		positions = new TreeMap<Integer, double[]>(e.tracked_positions);
+		flags = e.review.flags();
+	}
+
+	void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(slice);
+			out.writeUTF(label);
+			out.writeInt(method);
+			out.writeBoolean(matchIntensity);
+			out.writeInt(refSlice);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(refBitDepth);
+			for (double v : new double[]{setup.freeX, setup.freeY, setup.attachedX, setup.attachedY, setup.midX, setup.midY})
+				out.writeDouble(v);
+			out.writeBoolean(setup.straight);
+			out.writeBoolean(setup.holderRect != null);
+			if (setup.holderRect != null) writeRect(out, setup.holderRect);
+
+			for (double v : values) out.writeDouble(v);
+			out.writeInt(thresholds.length);
+			for (double v : thresholds) out.writeDouble(v);
+			out.writeBoolean(exifTime);
+			out.writeBoolean(firstShotTime != null);
+			if (firstShotTime != null) {
+				out.writeLong(firstShotTime.getEpochSecond());
+				out.writeInt(firstShotTime.getNano());
+			}
+
+			for (Rectangle r : rects) writeRect(out, r);
+			for (ImageProcessor ip : templates) writeImage(out, ip);
+			out.write(dynamics);
+
+			out.writeInt(positions.size());
+			for (Map.Entry<Integer, double[]> p : positions.entrySet()) {
+				out.writeInt(p.getKey());
+				for (double v : p.getValue()) out.writeDouble(v);
+			}
+			out.writeInt(flags.size());
+			for (ReviewQueue.Flag f : flags) {
+				out.writeInt(f.slice);
+				out.writeUTF(label(f.label));
+				out.writeInt(f.region);
+				out.writeInt(f.answer);
+				out.writeDouble(f.score);
+			}
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	// the slice tracked last before the checkpoint
+	static int slice(File file) throws IOException {
+		try (DataInputStream in = open(file)) {
+			return in.readInt();
+		}
+	}
+
+	// the whole file is read before anything is given to an engine
+	static Checkpoint read(File file) throws IOException {
+		try (DataInputStream in = open(file)) {
+			Checkpoint c = new Checkpoint(in.readInt());
+			c.label = in.readUTF();
+			c.method = in.readInt();
+			c.matchIntensity = in.readBoolean();
+			c.refSlice = in.readInt();
+			c.width = in.readInt();
+			c.height = in.readInt();
+			c.refBitDepth = in.readInt();
+			c.setup = new TrackerConfig();
+			c.setup.freeX = in.readDouble();
+			c.setup.freeY = in.readDouble();
+			c.setup.attachedX = in.readDouble();
+			c.setup.attachedY = in.readDouble();
+			c.setup.midX = in.readDouble();
+			c.setup.midY = in.readDouble();
+			c.setup.straight = in.readBoolean();
+			c.setup.holderRect = in.readBoolean() ? readRect(in) : null;
+
+			c.values = new double[VALUES];
+			for (int i = 0; i < c.values.length; i++) c.values[i] = in.readDouble();
+			c.thresholds = new double[in.readInt()];
+			for (int i = 0; i < c.thresholds.length; i++) c.thresholds[i] = in.readDouble();
+			c.exifTime = in.readBoolean();
+			c.firstShotTime = in.readBoolean() ? Instant.ofEpochSecond(in.readLong(), in.readInt()) : null;
+
+			c.rects = new Rectangle[8];
+			for (int i = 0; i < c.rects.length; i++) c.rects[i] = readRect(in);
+			c.templates = new ImageProcessor[3];
+			for (int i = 0; i < c.templates.length; i++) c.templates[i] = readImage(in);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				for (int i = 0; i < 3; i++) {
+					MotionPredictor m = new MotionPredictor();
+					m.read(in);
+					m.write(out);
+				}
+				for (int i = 0; i < 3; i++) {
+					SearchMargin m = new SearchMargin();
+					m.read(in);
+					m.write(out);
+				}
+			}
+			c.dynamics = bytes.toByteArray();
+
+			c.positions = new TreeMap<Integer, double[]>();
+			for (int n = in.readInt(); n > 0; n--) {
+				int s = in.readInt();
+				double[] p = new double[7];
+				for (int i = 0; i < p.length; i++) p[i] = in.readDouble();
+				c.positions.put(s, p);
+			}
+			c.flags = new ArrayList<ReviewQueue.Flag>();
+			for (int n = in.readInt(); n > 0; n--)
+				c.flags.add(new ReviewQueue.Flag(in.readInt(), in.readUTF(), in.readInt(), in.readInt(), in.readDouble()));
+			return c;
+		}
+	}
+
+	// The state replaces the one of the engine. The engine is not changed if the checkpoint does not
+	// belong to its frames, its matching method and the points selected in its configuration.
+	void apply(TrackerEngine e) throws IOException {
+		if (slice < 1 || slice > e.source.size() || !label.equals(label(e.source.label(slice))))
+			throw new IOException("the checkpoint belongs to another sequence (frame " + slice + ": " + label + ")");
+		if (method != e.method || matchIntensity != e.matchIntensity)
+			throw new IOException("the checkpoint was made with another matching method");
+		if (!setup.samePoints(e.config))
+			throw new IOException("the checkpoint was made with other reference points");
+		e.refSlice = refSlice;
+		e.width = width;
+		e.height = height;
+		e.refBitDepth = refBitDepth;
+
+		int i = 0;
+		e.refX_free = values[i++];
+		e.refY_free = values[i++];
+		e.refX_att = values[i++];
+		e.refY_att = values[i++];
+		e.refX_mid = values[i++];
+		e.refY_mid = values[i++];
+		e.freeRefCenterShiftX = values[i++];
+		e.freeRefCenterShiftY = values[i++];
+		e.midRefCenterShiftX = values[i++];
+		e.midRefCenterShiftY = values[i++];
+		e.disX_free = values[i++];
+		e.disY_free = values[i++];
+		e.disX_holder = values[i++];
+		e.disY_holder = values[i++];
+		e.disX_mid = values[i++];
+		e.disY_mid = values[i++];
+		e.length_ini = values[i++];
+		e.cr_length = values[i++];
+		e.hord_ini = values[i++];
+		e.curvature_ini = values[i++];
+		e.curvature = values[i++];
+		e.bending_angle_ini = values[i++];
+		e.bending_angle = values[i++];
+		e.deflection_angle_ini = values[i++];
+		e.deflection_angle = values[i++];
+		e.full_angle = values[i++];
+		e.full_angle_ini = values[i++];
+		e.initial_angle = values[i++];
+		e.deformation = values[i++];
+		e.last_deformation = values[i++];
+		e.h0_x = values[i++];
+		e.h0_y = values[i++];
+		e.free_mideal = values[i++];
+		e.att_mideal = values[i++];
+		e.mid_mideal = values[i++];
+		e.holder_score = values[i++];
+		e.free_score = values[i++];
+		e.mid_score = values[i++];
+		e.seconds = values[i++];
+		e.timeStep = values[i++];
+		e.matchThreshold = thresholds.clone();
+		e.exifTime = exifTime;
+		e.first_shot_time = firstShotTime;
+
+		e.holder_rect = new Rectangle(rects[0]);
+		e.free_rect = new Rectangle(rects[1]);
+		e.mid_rect = new Rectangle(rects[2]);
+		e.refCropRoi = new Roi(rects[3]);
+		e.mid_refCropRoi = new Roi(rects[4]);
+		e.holder_window.setBounds(rects[5]);
+		e.free_window.setBounds(rects[6]);
+		e.mid_window.setBounds(rects[7]);
+		e.holder_ref = new ImagePlus("holder", templates[0]);
+		e.free_ref = new ImagePlus("free end", templates[1]);
+		e.mid_ref = new ImagePlus("middle", templates[2]);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(dynamics));
+		for (MotionPredictor m : new MotionPredictor[]{e.holder_motion, e.free_motion, e.mid_motion}) m.read(in);
+		for (SearchMargin m : new SearchMargin[]{e.holder_margin, e.free_margin, e.mid_margin}) m.read(in);
+
+		e.tracked_positions.clear();
+		e.tracked_positions.putAll(positions);
+		e.review.clear();
+		e.lastFlagged = 0;
+		for (ReviewQueue.Flag f : flags) {
+			e.review.add(f);
+			e.lastFlagged = Math.max(e.lastFlagged, f.slice);
+		}
+		e.buildTemplates();
+	}
+
+	// the stream after the magic number and the version
+	private static DataInputStream open(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 1 << 16));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			in.close();
+			throw new IOException("Not a checkpoint: " + file);
+		}
+		return in;
+	}
+
+	private static String label(String label) {
+		return label == null ? "" : label;
+	}
+
+	private static void writeRect(DataOutputStream out, Rectangle r) throws IOException {
+		out.writeInt(r.x);
+		out.writeInt(r.y);
+		out.writeInt(r.width);
+		out.writeInt(r.height);
+	}
+
+	private static Rectangle readRect(DataInputStream in) throws IOException {
+		return new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+	}
+
+	// the templates are 8, 16, 32 bit or RGB images
+	private static void writeImage(DataOutputStream out, ImageProcessor ip) throws IOException {
+		int w = ip.getWidth(), h = ip.getHeight();
+		out.writeInt(ip.getBitDepth());
+		out.writeInt(w);
+		out.writeInt(h);
+		switch (ip.getBitDepth()) {
+		case 8:
+			out.write((byte[]) ip.getPixels());
+			break;
+		case 16:
+			for (short v : (short[]) ip.getPixels()) out.writeShort(v);
+			break;
+		case 24:
+			for (int v : (int[]) ip.getPixels()) out.writeInt(v);
+			break;
+		default:
+			for (float v : (float[]) ip.getPixels()) out.writeFloat(v);
+		}
+	}
+
+	private static ImageProcessor readImage(DataInputStream in) throws IOException {
+		int depth = in.readInt(), w = in.readInt(), h = in.readInt();
+		switch (depth) {
+		case 8:
+			byte[] bytes = new byte[w * h];
+			in.readFully(bytes);
+			return new ByteProcessor(w, h, bytes);
+		case 16:
+			short[] shorts = new short[w * h];
+			for (int i = 0; i < shorts.length; i++) shorts[i] = in.readShort();
+			return new ShortProcessor(w, h, shorts, null);
+		case 24:
+			int[] rgb = new int[w * h];
+			for (int i = 0; i < rgb.length; i++) rgb[i] = in.readInt();
+			return new ColorProcessor(w, h, rgb);
+		case 32:
+			float[] floats = new float[w * h];
+			for (int i = 0; i < floats.length; i++) floats[i] = in.readFloat();
+			return new FloatProcessor(w, h, floats);
+		default:
+			throw new IOException("Unknown template depth " + depth);
+		}
+	}
+}
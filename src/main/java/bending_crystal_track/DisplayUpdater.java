@@ -0,0 +1,72 @@
+package bending_crystal_track;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/* Redraws the views of a running track (the results table, the plots, the overlay of the frame) at a limited
+ * rate on a thread of its own, so the tracking does not wait for them. The tracking thread posts what has
+ * changed; the updates of a view posted between two refreshes are coalesced and only the latest one is drawn.
+ * With the rate 0 every update is drawn at once on the posting thread.
+ */
+final class DisplayUpdater {
+
+	private final ScheduledExecutorService timer;
+	// the views waiting for a refresh in the order of their latest updates
+	private final Map<String, Runnable> pending = new LinkedHashMap<String, Runnable>();
+	// a refresh and a flush do not draw at the same time
+	private final Object drawLock = new Object();
+
+	// rate: refreshes per second
+	DisplayUpdater(double rate) {
+		if (rate > 0.0) {
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "BendingCrystalTrack display");
+				t.setDaemon(true);
+				return t;
+			});
+			long period = Math.max(1L, Math.round(1000.0 / rate));
+			timer.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+		} else timer = null;
+	}
+
+	void post(String view, Runnable update) {
+		if (timer == null) {
+			update.run();
+			return;
+		}
+		synchronized (pending) {
+			pending.remove(view);
+			pending.put(view, update);
+		}
+	}
+
+	// draws the waiting updates now, on the calling thread
+	void flush() {
+		synchronized (drawLock) {
+			List<Runnable> updates;
+			synchronized (pending) {
+				if (pending.isEmpty()) return;
+				updates = new ArrayList<Runnable>(pending.values());
+				pending.clear();
+			}
+			for (Runnable update : updates) {
+				try {
+					update.run();
+				} catch (RuntimeException e) {
+					// a view closed by the user is not redrawn, the tracking goes on
+				}
+			}
+		}
+	}
+
+	// the last updates are drawn
+	void close() {
+		if (timer != null) timer.shutdownNow();
+		flush();
+	}
+}
@@ -0,0 +1,18 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+/* Decides what to do when a region is not found in a frame even by the extended search.
+ * The template and its best (rejected) position in the frame are given, score is the match score there.
+ */
+public interface FailureHandler {
+
+	// answers: accept the match (the threshold is relaxed to it), skip the frame, stop, select the points again,
+	// accept the match keeping the threshold, search the whole frame with the template rotated further
+	// (the frame is skipped if the region is not found there either)
+	int KEEP = 0, SKIP = 1, STOP = 2, RESELECT = 3, ACCEPT = 4, SEARCH = 5;
+	// added to an answer: the frame is put in the review queue of the engine
+	int REVIEW = 16;
+
+	int matchFailed(int slice, int region, ImageProcessor template, double x, double y, double score);
+}
@@ -0,0 +1,36 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+/* Answers to the failed matches that do not wait for a user, for the runs nobody watches.
+ * The frames are flagged in any case, so they can be analyzed again with a user when the run is over.
+ */
+public enum FailurePolicy implements FailureHandler {
+
+	SKIP("Skip the frame", FailureHandler.SKIP),
+	// as "Keep the result" of the dialog, the next frames are matched with the relaxed threshold
+	ADAPT("Accept and relax the threshold", KEEP),
+	// only the free end and the middle part are rotated, a holder that is lost skips the frame
+	RESEARCH("Search the whole frame again", SEARCH),
+	MARK("Accept and mark the frame", ACCEPT);
+
+	public final String title;
+	private final int answer;
+
+	FailurePolicy(String title, int answer) {
+		this.title = title;
+		this.answer = answer;
+	}
+
+	@Override
+	public int matchFailed(int slice, int region, ImageProcessor template, double x, double y, double score) {
+		return answer | REVIEW;
+	}
+
+	// the policy of the name, null for an unknown name
+	public static FailurePolicy of(String name) {
+		for (FailurePolicy p : values())
+			if (p.name().equals(name)) return p;
+		return null;
+	}
+}
@@ -0,0 +1,102 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+
+/* Template matching in the frequency domain.
+ * The source is padded to an optimal DFT size and transformed once, the spectrum of the template
+ * is kept in the workspace and reused while the template and the padded size stay the same
+ * (the holder template never changes, the rotated templates come from the template bank).
+ * The cross term is obtained from a single inverse transform, the other terms of the score
+ * are added by ScoreNormalizer. Only single channel images are supported.
+ */
+final class FftCorrelator {
+
+	static final int AUTO = 0, SPATIAL = 1, FFT = 2;
+	static final String[] modes = {"Automatic", "Spatial (OpenCV matchTemplate)", "FFT"};
+
+	// relative cost of one real-to-complex transform element (with the product, the inverse and the normalization)
+	private static final double FFT_COST_FACTOR = 12.0;
+	// round-off of the cross term relative to the energies of the source and of the template (float transforms)
+	private static final double FFT_EPS = 1e-6;
+
+	private FftCorrelator() {
+	}
+
+	static boolean supported(ImageProcessor src, ImageProcessor tpl) {
+		return src.getNChannels() == 1 && tpl.getNChannels() == 1;
+	}
+
+	// cost estimate of the direct correlation against the one of the FFT correlation
+	static boolean preferred(int srcW, int srcH, int tplW, int tplH) {
+		double spatial = (double) (srcW - tplW + 1) * (srcH - tplH + 1) * tplW * tplH;
+		double n = (double) getOptimalDFTSize(srcW) * getOptimalDFTSize(srcH);
+		double fft = FFT_COST_FACTOR * n * Math.log(n) / Math.log(2.0);
+		return spatial > fft;
+	}
+
+	static boolean use(int mode, ImageProcessor src, ImageProcessor tpl) {
+		if (mode == SPATIAL || !supported(src, tpl)) return false;
+		return mode == FFT || preferred(src.getWidth(), src.getHeight(), tpl.getWidth(), tpl.getHeight());
+	}
+
+	// sourceMat and templateMat hold the pixels of src and tpl, resMat is filled with the scores of the method
+	static void match(ImageProcessor src, ImageProcessor tpl, Mat sourceMat, Mat templateMat, Mat resMat, int method, MatchWorkspace ws) {
+		int srcW = src.getWidth(), srcH = src.getHeight();
+		int tplW = tpl.getWidth(), tplH = tpl.getHeight();
+		int dftW = getOptimalDFTSize(srcW), dftH = getOptimalDFTSize(srcH);
+		int resW = srcW - tplW + 1, resH = srcH - tplH + 1;
+
+		// spectrum of the template, reused as long as the template and the transform size are the same
+		if (ws.fftTemplateKey != tpl.getPixels() || ws.fftTemplateSpectrum.cols() != dftW || ws.fftTemplateSpectrum.rows() != dftH) {
+			pad(templateMat, ws.fftTemplateSpectrum, dftW, dftH, ws.fftStaging);
+			dft(ws.fftTemplateSpectrum, ws.fftTemplateSpectrum, 0, tplH);
+			ws.fftTemplateKey = tpl.getPixels();
+		}
+
+		Mat spectrum = ws.fftSpectrum;
+		pad(sourceMat, spectrum, dftW, dftH, ws.fftStaging);
+		dft(spectrum, spectrum, 0, srcH);
+		mulSpectrums(spectrum, ws.fftTemplateSpectrum, spectrum, 0, true);
+		dft(spectrum, spectrum, DFT_INVERSE | DFT_SCALE | DFT_REAL_OUTPUT, resH);
+
+		Rect validRect = new Rect(0, 0, resW, resH);
+		Mat valid = new Mat(spectrum, validRect);
+		valid.copyTo(resMat);
+		valid.close();
+		validRect.close();
+
+		if (method != 2) {
+			float[] res = new float[resW * resH];
+			FloatPointer resData = new FloatPointer(resMat.data());
+			resData.get(res);
+			WindowStats stats = ws.windowStats(src);
+			TemplateStats tplStats = TemplateStats.of(tpl);
+			// a cross term below the round-off is zero, as matchTemplate gives it in a flat window (the normed
+			// score of a window of zeros would be the ratio of two round-off errors)
+			double noise = FFT_EPS * Math.sqrt(Math.max(stats.sumSq(0, 0, srcW, srcH), 0.0) * tplStats.totalSumSq());
+			for (int i = 0; i < res.length; i++)
+				if (Math.abs(res[i]) < noise) res[i] = 0f;
+			ScoreNormalizer.normalize(res, resW, resH, stats, tplStats, method);
+			resData.put(res);
+		}
+	}
+
+	// copies the image into the top left corner of a zero filled 32-bit matrix of the transform size
+	private static void pad(Mat image, Mat padded, int dftW, int dftH, Mat staging) {
+		Mat img32 = image;
+		if (image.depth() != CV_32F) {
+			image.convertTo(staging, CV_32F);
+			img32 = staging;
+		}
+		Scalar zero = new Scalar(0.0);
+		copyMakeBorder(img32, padded, 0, dftH - img32.rows(), 0, dftW - img32.cols(), BORDER_CONSTANT, zero);
+		zero.close();
+	}
+}
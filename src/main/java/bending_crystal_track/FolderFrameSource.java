@@ -0,0 +1,63 @@
+package bending_crystal_track;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.FolderOpener;
+import ij.process.ImageProcessor;
+import ij.util.StringSorter;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.Arrays;
+
+/* The image files of a directory, sorted as ImageJ sorts an image sequence. The frames are opened
+ * from the disk when they are asked for, nothing is kept in memory, so many sequences can be tracked
+ * at the same time. The frames are dated by the EXIF data.
+ */
+public final class FolderFrameSource implements FrameSource {
+
+	private final File directory;
+	private final String[] files;
+
+	public FolderFrameSource(File directory) {
+		this.directory = directory;
+		String[] list = directory.list((dir, name) -> new File(dir, name).isFile());
+		list = list == null ? null : images(list);
+		files = list == null ? new String[0] : StringSorter.sortNumerically(list);
+	}
+
+	// the names of the images among the file names, null if there is none
+	static String[] images(String[] names) {
+		// the setup, the results and the checkpoints kept in the directory are not frames
+		String[] list = Arrays.stream(names).filter(name -> !name.startsWith("BendingCrystalTrack.")).toArray(String[]::new);
+		return list.length == 0 ? null : new FolderOpener().trimFileList(list);
+	}
+
+	@Override
+	public int size() {
+		return files.length;
+	}
+
+	@Override
+	public ImageProcessor frame(int n) {
+		ImagePlus frame = IJ.openImage(new File(directory, files[n - 1]).getPath());
+		return frame == null ? null : frame.getProcessor();
+	}
+
+	@Override
+	public String label(int n) {
+		return files[n - 1];
+	}
+
+	@Override
+	public Instant shotTime(int n) {
+		return StackFrameSource.exifTime(new File(directory, files[n - 1]));
+	}
+
+	// the slice of the file, 0 if it is not in the sequence
+	public int indexOf(String fileName) {
+		for (int i = 0; i < files.length; i++)
+			if (files[i].equals(fileName)) return i + 1;
+		return 0;
+	}
+}
@@ -0,0 +1,185 @@
+package bending_crystal_track;
+
+import ij.util.StringSorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/* Watches the directory of an image sequence for new images. The images are kept in an index sorted as
+ * ImageJ sorts an image sequence; the directory is listed once and the new images are inserted as the file
+ * system reports them, so a new image is seen at once and a quiet directory costs nothing.
+ * Where the file system cannot be watched (or is only watched by polling in the JVM) the directory is
+ * listed every POLL_MILLIS milliseconds instead, the images not indexed yet are inserted.
+ * The file system reports an image as soon as its writing starts, so a new image is indexed only when its
+ * length and time of modification have not changed for STABLE_MILLIS milliseconds (a partly written image
+ * would be tracked once and never again).
+ * A monitor is used by one thread.
+ */
+final class FolderMonitor {
+
+	static final long POLL_MILLIS = 300, STABLE_MILLIS = 500;
+	// two names in the order of StringSorter.sortNumerically
+	static final Comparator<String> ORDER = (a, b) ->
+		a.equals(b) ? 0 : StringSorter.sortNumerically(new String[]{a, b})[0].equals(a) ? -1 : 1;
+
+	private final File directory;
+	private final List<String> index = new ArrayList<String>();
+	// the names in the index and the names that are not images
+	private final Set<String> known = new HashSet<String>(), ignored = new HashSet<String>();
+	// the images not indexed yet: their length, time of modification and when these were seen first
+	private final Map<String, long[]> pending = new HashMap<String, long[]>();
+	private WatchService watcher;
+
+	FolderMonitor(File directory) {
+		this.directory = directory;
+		String[] list = directory.list();
+		String[] images = list == null ? null : FolderFrameSource.images(list);
+		if (images != null) {
+			long now = System.currentTimeMillis();
+			for (String name : StringSorter.sortNumerically(images)) {
+				File file = new File(directory, name);
+				if (!file.isFile()) continue;
+				// the images changed just before may still be written
+				if (now - file.lastModified() < STABLE_MILLIS) pending.put(name, new long[]{file.length(), file.lastModified(), now});
+				else if (known.add(name)) index.add(name);
+			}
+		}
+		try {
+			watcher = directory.toPath().getFileSystem().newWatchService();
+			// a watch service polling the directory itself reacts only after seconds
+			if (watcher.getClass().getName().contains("Polling")) {
+				watcher.close();
+				watcher = null;
+			} else directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException | UnsupportedOperationException e) {
+			close();
+		}
+	}
+
+	// false when the directory is listed periodically
+	boolean isWatching() {
+		return watcher != null;
+	}
+
+	int size() {
+		return index.size();
+	}
+
+	// The images after the named one in the order of the sequence, none if it is not in the index
+	String[] imagesAfter(String name) {
+		int i = Collections.binarySearch(index, name, ORDER);
+		if (i < 0 || !index.get(i).equalsIgnoreCase(name)) {
+			for (i = index.size() - 1; i >= 0; i--)
+				if (index.get(i).equalsIgnoreCase(name)) break;
+			if (i < 0) return new String[0];
+		}
+		return index.subList(i + 1, index.size()).toArray(new String[0]);
+	}
+
+	// Waits up to the timeout for a new image to be indexed. Returns true if an image was indexed.
+	// The images still written are checked again every POLL_MILLIS milliseconds.
+	boolean await(long timeoutMillis) throws InterruptedException {
+		if (!pending.isEmpty()) timeoutMillis = Math.min(timeoutMillis, POLL_MILLIS);
+		if (watcher == null) {
+			Thread.sleep(Math.min(timeoutMillis, POLL_MILLIS));
+			rescan();
+			return settle();
+		}
+		try {
+			WatchKey key = watcher.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+			while (key != null) {
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) rescan();
+					else {
+						String name = ((Path) event.context()).getFileName().toString();
+						if (!known.contains(name)) add(name);
+					}
+				}
+				// the directory is not watched any more (deleted or moved)
+				if (!key.reset()) {
+					close();
+					break;
+				}
+				key = watcher.poll();
+			}
+		} catch (ClosedWatchServiceException e) {
+			close();
+		}
+		return settle();
+	}
+
+	void close() {
+		if (watcher == null) return;
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			// the directory is not watched any more
+		}
+		watcher = null;
+	}
+
+	// the images of the directory not indexed yet are watched
+	private void rescan() {
+		String[] list = directory.list();
+		if (list == null) return;
+		for (String name : list)
+			if (!known.contains(name) && !ignored.contains(name) && !pending.containsKey(name)) add(name);
+	}
+
+	// a new or changed image is watched until it is stable
+	private void add(String name) {
+		if (ignored.contains(name)) return;
+		String[] image = FolderFrameSource.images(new String[]{name});
+		File file = new File(directory, name);
+		if (image == null || image.length == 0 || file.isDirectory()) {
+			ignored.add(name);
+			return;
+		}
+		if (!file.isFile()) return;
+		pending.put(name, new long[]{file.length(), file.lastModified(), System.currentTimeMillis()});
+	}
+
+	// the images that have not changed for STABLE_MILLIS are indexed, returns true if one was
+	private boolean settle() {
+		boolean added = false;
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, long[]>> it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, long[]> p = it.next();
+			File file = new File(directory, p.getKey());
+			long[] seen = p.getValue();
+			if (!file.isFile()) {
+				it.remove();
+				continue;
+			}
+			long length = file.length(), modified = file.lastModified();
+			if (length != seen[0] || modified != seen[1] || length == 0) {
+				seen[0] = length;
+				seen[1] = modified;
+				seen[2] = now;
+			} else if (now - seen[2] >= STABLE_MILLIS) {
+				it.remove();
+				known.add(p.getKey());
+				int i = Collections.binarySearch(index, p.getKey(), ORDER);
+				index.add(i < 0 ? -i - 1 : i, p.getKey());
+				added = true;
+			}
+		}
+		return added;
+	}
+}
@@ -0,0 +1,36 @@
+package bending_crystal_track;
+
+/* Bending parameters of the crystal measured in one frame, angles in radians, lengths in pixels.
+ * The displacements of the regions are relative to the reference frame.
+ */
+public final class FrameResult {
+
+	public final int slice;
+	public final String label;
+	public final double seconds;
+	public final double bendingAngle, deflectionAngle, length, curvature, deformation;
+	public final double holderScore, freeScore, midScore;
+	public final double holderX, holderY, freeX, freeY, midX, midY;
+
+	FrameResult(int slice, String label, double seconds, double bendingAngle, double deflectionAngle, double length,
+			double curvature, double deformation, double holderScore, double freeScore, double midScore,
+			double holderX, double holderY, double freeX, double freeY, double midX, double midY) {
+		this.slice = slice;
+		this.label = label;
+		this.seconds = seconds;
+		this.bendingAngle = bendingAngle;
+		this.deflectionAngle = deflectionAngle;
+		this.length = length;
+		this.curvature = curvature;
+		this.deformation = deformation;
+		this.holderScore = holderScore;
+		this.freeScore = freeScore;
+		this.midScore = midScore;
+		this.holderX = holderX;
+		this.holderY = holderY;
+		this.freeX = freeX;
+		this.freeY = freeY;
+		this.midX = midX;
+		this.midY = midY;
+	}
+}
@@ -0,0 +1,19 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+import java.time.Instant;
+
+/* Frames of a time lapse series or of a video, numbered from 1 as the slices of a stack. */
+public interface FrameSource {
+
+	int size();
+
+	// the frame, null if it cannot be read
+	ImageProcessor frame(int n);
+
+	String label(int n);
+
+	// the time the frame was taken, null if it is not known
+	Instant shotTime(int n);
+}
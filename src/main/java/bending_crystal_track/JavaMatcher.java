@@ -0,0 +1,167 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* Template matching without the OpenCV natives, all six matchTemplate methods.
+ * The images are split into float planes (scaled as for OpenCV, RGB as three channels),
+ * the cross term is accumulated row by row in double precision and the other terms
+ * are added by ScoreNormalizer. The innermost loop runs along a row of the source with
+ * a constant template value, the JIT compiles it to SIMD instructions.
+ * The result rows are split between the fork/join workers.
+ */
+final class JavaMatcher {
+
+	// multiply-adds below which a block of rows is not split further
+	private static final long MIN_TASK_WORK = 1L << 21;
+
+	private JavaMatcher() {
+	}
+
+	static void match(ImageProcessor src, ImageProcessor tpl, int method, MatchSurface res, MatchWorkspace ws) {
+		int srcW = src.getWidth(), srcH = src.getHeight();
+		int tplW = tpl.getWidth(), tplH = tpl.getHeight();
+		int resW = srcW - tplW + 1, resH = srcH - tplH + 1;
+		res.resize(resW, resH);
+
+		float[][] srcPlanes = sourcePlanes(src, ws), tplPlanes = templatePlanes(tpl, ws);
+
+		ForkJoinPool.commonPool().invoke(new CrossRows(srcPlanes, tplPlanes, srcW, tplW, tplH, res.data, resW, 0, resH));
+		if (method != 2) ScoreNormalizer.normalize(res.data, resW, resH, ws.windowStats(src), TemplateStats.of(tpl), method);
+	}
+
+	// planes of the source and of the template, the buffers are kept in the workspace
+	// (pixel arrays of float images are used directly and must not be reused as buffers)
+	static float[][] sourcePlanes(ImageProcessor src, MatchWorkspace ws) {
+		float[][] planes = planes(src, ws.javaSource);
+		if (planes[0] != src.getPixels()) ws.javaSource = planes;
+		return planes;
+	}
+
+	static float[][] templatePlanes(ImageProcessor tpl, MatchWorkspace ws) {
+		float[][] planes = planes(tpl, ws.javaTemplate);
+		if (planes[0] != tpl.getPixels()) ws.javaTemplate = planes;
+		return planes;
+	}
+
+	// Pixels of every channel as float, 16-bit values are taken as they are (as in TemplateStats).
+	// Float images are used without copying, the other types reuse the arrays of the previous call when possible.
+	static float[][] planes(ImageProcessor ip, float[][] reuse) {
+		Object pixels = ip.getPixels();
+		int n = ip.getWidth() * ip.getHeight();
+		if (pixels instanceof float[]) return new float[][]{(float[]) pixels};
+
+		int channels = pixels instanceof int[] ? 3 : 1;
+		float[][] planes = reuse;
+		if (planes == null || planes.length != channels || planes[0] == null || planes[0].length != n) {
+			planes = new float[channels][n];
+		}
+		if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			float[] dst = planes[0];
+			for (int i = 0; i < n; i++) dst[i] = p[i] & 0xffff;
+		} else if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			float[] dst = planes[0];
+			for (int i = 0; i < n; i++) dst[i] = p[i] & 0xff;
+		} else if (pixels instanceof int[]) {
+			int[] p = (int[]) pixels;
+			for (int ch = 0; ch < 3; ch++) {
+				float[] dst = planes[ch];
+				int shift = 8 * ch;
+				for (int i = 0; i < n; i++) dst[i] = (p[i] >> shift) & 0xff;
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported image type");
+		}
+		return planes;
+	}
+
+	private static final class CrossRows extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final float[][] src, tpl;
+		private final int srcW, tplW, tplH, resW, rowFrom, rowTo;
+		private final float[] res;
+
+		CrossRows(float[][] src, float[][] tpl, int srcW, int tplW, int tplH, float[] res, int resW, int rowFrom, int rowTo) {
+			this.src = src;
+			this.tpl = tpl;
+			this.srcW = srcW;
+			this.tplW = tplW;
+			this.tplH = tplH;
+			this.res = res;
+			this.resW = resW;
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
+		}
+
+		@Override
+		protected void compute() {
+			int rows = rowTo - rowFrom;
+			if (rows > 1 && (long) rows * resW * tplW * tplH * src.length > MIN_TASK_WORK) {
+				int mid = rowFrom + rows / 2;
+				invokeAll(new CrossRows(src, tpl, srcW, tplW, tplH, res, resW, rowFrom, mid),
+						new CrossRows(src, tpl, srcW, tplW, tplH, res, resW, mid, rowTo));
+				return;
+			}
+			// every template row is accumulated in float and added to the double sums of the result row
+			double[] acc = new double[resW];
+			float[] rowAcc = new float[resW];
+			for (int y = rowFrom; y < rowTo; y++) {
+				Arrays.fill(acc, 0.0);
+				for (int ch = 0; ch < src.length; ch++) {
+					float[] s = src[ch], t = tpl[ch];
+					for (int j = 0; j < tplH; j++) {
+						Arrays.fill(rowAcc, 0f);
+						correlateRow(s, (y + j) * srcW, t, j * tplW, tplW, rowAcc, resW);
+						for (int x = 0; x < resW; x++) acc[x] += rowAcc[x];
+					}
+				}
+				int offset = y * resW;
+				for (int x = 0; x < resW; x++) res[offset + x] = (float) acc[x];
+			}
+		}
+	}
+
+	// sum of t*s over the template placed at (x, y) of the source, summed over the channels;
+	// four independent accumulators break the dependency chain of the additions
+	static double cross(float[][] src, int srcW, int x, int y, float[][] tpl, int tplW, int tplH) {
+		double a0 = 0.0, a1 = 0.0, a2 = 0.0, a3 = 0.0;
+		for (int ch = 0; ch < src.length; ch++) {
+			float[] s = src[ch], t = tpl[ch];
+			for (int j = 0; j < tplH; j++) {
+				int so = (y + j) * srcW + x, to = j * tplW;
+				int i = 0;
+				for (; i + 3 < tplW; i += 4) {
+					a0 += t[to + i] * s[so + i];
+					a1 += t[to + i + 1] * s[so + i + 1];
+					a2 += t[to + i + 2] * s[so + i + 2];
+					a3 += t[to + i + 3] * s[so + i + 3];
+				}
+				for (; i < tplW; i++) a0 += t[to + i] * s[so + i];
+			}
+		}
+		return a0 + a1 + a2 + a3;
+	}
+
+	// rowAcc[x] += sum over i of t[tplOff+i]*s[srcOff+x+i], four template values per pass over the row
+	// to reduce the loads and stores of the accumulator
+	static void correlateRow(float[] s, int srcOff, float[] t, int tplOff, int tplW, float[] rowAcc, int resW) {
+		int i = 0;
+		for (; i + 3 < tplW; i += 4) {
+			float t0 = t[tplOff + i], t1 = t[tplOff + i + 1], t2 = t[tplOff + i + 2], t3 = t[tplOff + i + 3];
+			int b = srcOff + i;
+			for (int x = 0; x < resW; x++)
+				rowAcc[x] += t0 * s[b + x] + t1 * s[b + x + 1] + t2 * s[b + x + 2] + t3 * s[b + x + 3];
+		}
+		for (; i < tplW; i++) {
+			float t0 = t[tplOff + i];
+			int b = srcOff + i;
+			for (int x = 0; x < resW; x++) rowAcc[x] += t0 * s[b + x];
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+
+/* Template matching restricted to a search line (the middle part of the crystal is searched
+ * along the normal to the chord only). The score is computed at the cells crossed by the line
+ * and then at the eight neighbours of the best one, which are needed by the subpixel fit,
+ * so the cost is O(L*T) instead of O(W*H*T) of the full match. The window sums come from
+ * the summed-area tables of the workspace, the cross term is a dot product of the template
+ * with the window (by OpenCV or in Java, depending on the backend).
+ * Other cells of the surface are left undefined.
+ */
+final class LineMatcher {
+
+	// cross term of the template placed at (x, y)
+	private interface Cell {
+		double cross(int x, int y);
+	}
+
+	private LineMatcher() {
+	}
+
+	static double[] match(ImageProcessor src, ImageProcessor tpl, int method, boolean subPix, double[] searchLine, MatchWorkspace ws) {
+		final int srcW = src.getWidth(), srcH = src.getHeight();
+		final int tplW = tpl.getWidth(), tplH = tpl.getHeight();
+		MatchSurface surface = ws.surface.resize(srcW - tplW + 1, srcH - tplH + 1);
+
+		Cell cell;
+		if (ws.backend == MatchWorkspace.JAVA) {
+			final float[][] srcPlanes = JavaMatcher.sourcePlanes(src, ws), tplPlanes = JavaMatcher.templatePlanes(tpl, ws);
+			cell = (x, y) -> JavaMatcher.cross(srcPlanes, srcW, x, y, tplPlanes, tplW, tplH);
+		} else {
+			if (!ws.loadNative(src, tpl)) throw new IllegalArgumentException("Unsupported image type");
+			// vectorized dot product of the template with the window (summed over the channels)
+			cell = (x, y) -> {
+				Rect rect = new Rect(x, y, tplW, tplH);
+				Mat window = new Mat(ws.source, rect);
+				double cross = window.dot(ws.template);
+				window.close();
+				rect.close();
+				return cross;
+			};
+		}
+		// TM_CCORR is the cross term alone
+		WindowStats stats = method != 2 ? ws.windowStats(src) : null;
+		TemplateStats tplStats = TemplateStats.of(tpl);
+
+		for (int i : surface.lineCells(searchLine))
+			evaluate(surface, i % surface.width, i / surface.width, cell, stats, tplStats, method);
+		if (subPix) {
+			double[] best = surface.peakOnLine(method, false, searchLine);
+			int bx = (int) best[0], by = (int) best[1];
+			for (int y = Math.max(0, by - 1); y <= Math.min(surface.height - 1, by + 1); y++)
+				for (int x = Math.max(0, bx - 1); x <= Math.min(surface.width - 1, bx + 1); x++)
+					if (x != bx || y != by) evaluate(surface, x, y, cell, stats, tplStats, method);
+		}
+		return surface.peakOnLine(method, subPix, searchLine);
+	}
+
+	private static void evaluate(MatchSurface surface, int x, int y, Cell cell, WindowStats stats, TemplateStats tplStats, int method) {
+		if (stats == null) {
+			surface.data[y * surface.width + x] = (float) cell.cross(x, y);
+			return;
+		}
+		int tplW = tplStats.width, tplH = tplStats.height;
+		double[] wndSum = new double[tplStats.channels];
+		for (int ch = 0; ch < wndSum.length; ch++) wndSum[ch] = stats.sum(ch, x, y, tplW, tplH);
+		surface.data[y * surface.width + x] = (float) ScoreNormalizer.score(cell.cross(x, y), wndSum, stats.sumSq(x, y, tplW, tplH), tplStats, method);
+	}
+}
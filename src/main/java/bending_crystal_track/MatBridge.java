@@ -0,0 +1,65 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.ShortPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+
+/* Direct bridge between ImageJ processors and OpenCV matrices.
+ * The pixel array of the processor is copied straight into the data block of a Mat
+ * of the corresponding type (float -> CV_32F, short -> CV_16U, byte -> CV_8U, RGB -> CV_8UC3),
+ * so no BufferedImage or Frame is created on the way and the 32-bit data keep their full precision.
+ * Java heap arrays cannot be shared with native code, so one memory copy is the minimum here.
+ */
+final class MatBridge {
+
+	private MatBridge() {
+	}
+
+	public static Mat toMat(ImageProcessor ip) {
+		return toMat(ip, null);
+	}
+
+	// dst is reused if it already has the proper size and type, otherwise it is (re)allocated
+	public static Mat toMat(ImageProcessor ip, Mat dst) {
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		Object pixels = ip.getPixels();
+
+		if (pixels instanceof float[]) {
+			dst = allocate(dst, h, w, CV_32FC1);
+			new FloatPointer(dst.data()).put((float[]) pixels);
+		} else if (pixels instanceof short[]) {
+			dst = allocate(dst, h, w, CV_16UC1);
+			new ShortPointer(dst.data()).put((short[]) pixels);
+		} else if (pixels instanceof byte[]) {
+			dst = allocate(dst, h, w, CV_8UC1);
+			dst.data().put((byte[]) pixels);
+		} else if (pixels instanceof int[]) {
+			// packed RGB is split into the BGR channel order used by OpenCV
+			int[] rgb = (int[]) pixels;
+			byte[] bgr = new byte[3 * rgb.length];
+			for (int i = 0, j = 0; i < rgb.length; i++) {
+				int c = rgb[i];
+				bgr[j++] = (byte) c;
+				bgr[j++] = (byte) (c >> 8);
+				bgr[j++] = (byte) (c >> 16);
+			}
+			dst = allocate(dst, h, w, CV_8UC3);
+			dst.data().put(bgr);
+		} else {
+			throw new IllegalArgumentException("Unsupported image type");
+		}
+		return dst;
+	}
+
+	private static Mat allocate(Mat dst, int rows, int cols, int type) {
+		if (dst == null) dst = new Mat();
+		// create() does nothing if the size and the type are already the same
+		dst.create(rows, cols, type);
+		return dst;
+	}
+}
@@ -0,0 +1,127 @@
+package bending_crystal_track;
+
+import java.util.Arrays;
+
+/* Score surface of a template match, width x height values stored row by row.
+ * The search of the best score and its subpixel refinement work on this array,
+ * so they do not depend on the backend (OpenCV or pure Java) that produced the scores.
+ * The array is kept and reused as long as it is large enough.
+ */
+final class MatchSurface {
+
+	float[] data = new float[0];
+	int width, height;
+
+	MatchSurface resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		if (data.length < width * height) data = new float[width * height];
+		return this;
+	}
+
+	float get(int x, int y) {
+		return data[y * width + x];
+	}
+
+	// Position and value of the best score over the whole surface (the first one in case of equal values)
+	double[] peak(int method, boolean subPix) {
+		boolean searchMin = (method == 0 || method == 1);
+		int best = 0;
+		float bestVal = data[0];
+		int n = width * height;
+		for (int i = 1; i < n; i++) {
+			float val = data[i];
+			if (searchMin ? val < bestVal : val > bestVal) {
+				bestVal = val;
+				best = i;
+			}
+		}
+		double[] coord_res = new double[]{best % width, best / width, bestVal};
+		if (subPix) {
+			double dx = 0.0, dy = 0.0;
+			int x = best % width, y = best / width;
+			// border values are not refined
+			if (!(x == 0 || x == width - 1 || y == 0 || y == height - 1)) {
+				double fxx = get(x - 1, y) - 2.0 * get(x, y) + get(x + 1, y),
+					   fyy = get(x, y - 1) - 2.0 * get(x, y) + get(x, y + 1),
+					   fxy = (get(x + 1, y + 1) + get(x - 1, y - 1) - get(x + 1, y - 1) - get(x - 1, y + 1)) / 4.0,
+					   fx = (get(x + 1, y) - get(x - 1, y)) / 2.0,
+					   fy = (get(x, y + 1) - get(x, y - 1)) / 2.0;
+				double denom = fxy * fxy - fxx * fyy;
+				if (denom != 0.0) {
+					dx = (fyy * fx - fxy * fy) / denom;
+					dy = (fxx * fy - fxy * fx) / denom;
+					if (Math.abs(dx) > 1.0 || Math.abs(dy) > 1.0) {
+						dx = 0.0;
+						dy = 0.0;
+					}
+				}
+			}
+			coord_res[0] += dx;
+			coord_res[1] += dy;
+		}
+		return coord_res;
+	}
+
+	// Cells crossed by the line searchLine = {x0, y0, dx, dy}, one per column or per row (along the longer direction),
+	// packed as y*width+x
+	int[] lineCells(double[] searchLine) {
+		double x0 = searchLine[0], y0 = searchLine[1], dx0 = searchLine[2], dy0 = searchLine[3];
+		boolean alongX = Math.abs(dx0) > Math.abs(dy0);
+		int steps = alongX ? width : height;
+		int[] cells = new int[steps];
+		int n = 0;
+		for (int s = 0; s < steps; s++) {
+			int col = alongX ? s : (int) (x0 + dx0 * (s - y0) / dy0);
+			int row = alongX ? (int) (y0 + dy0 * (s - x0) / dx0) : s;
+			if (col >= 0 && col < width && row >= 0 && row < height) cells[n++] = row * width + col;
+		}
+		return Arrays.copyOf(cells, n);
+	}
+
+	// Best score along the line searchLine = {x0, y0, dx, dy}, the subpixel shift is taken along the line only
+	double[] peakOnLine(int method, boolean subPix, double[] searchLine) {
+		int[] coord = new int[2];
+		double minmax = 0.0;
+		boolean firstPointFound = false;
+		double dx0 = searchLine[2], dy0 = searchLine[3];
+		boolean searchMin = (method == 0 || method == 1);
+		for (int cell : lineCells(searchLine)) {
+			double val = data[cell];
+			if (!firstPointFound || (searchMin && val < minmax) || (!searchMin && val > minmax)) {
+				firstPointFound = true;
+				minmax = val;
+				coord[0] = cell % width;
+				coord[1] = cell / width;
+			}
+		}
+		double[] coord_res = new double[]{coord[0], coord[1], minmax};
+
+		if (subPix) {
+			double dx = 0.0, dy = 0.0;
+			int x = coord[0], y = coord[1];
+			double lineAngle = Math.atan2(dy0, dx0), sin = Math.sin(lineAngle), cos = Math.cos(lineAngle);
+			// border values are not refined
+			if (!(x == 0 || x == width - 1 || y == 0 || y == height - 1)) {
+				double fxx = get(x - 1, y) - 2.0 * get(x, y) + get(x + 1, y),
+					   fyy = get(x, y - 1) - 2.0 * get(x, y) + get(x, y + 1),
+					   fxy = (get(x + 1, y + 1) + get(x - 1, y - 1) - get(x + 1, y - 1) - get(x - 1, y + 1)) / 4.0,
+					   fx = (get(x + 1, y) - get(x - 1, y)) / 2.0,
+					   fy = (get(x, y + 1) - get(x, y - 1)) / 2.0,
+					   fr = fx * cos + fy * sin,
+					   frr = fxx * cos * cos + fyy * sin * sin + fxy * sin * cos;
+				if (frr != 0.0) {
+					dx = -fr / frr * cos;
+					dy = -fr / frr * sin;
+					if (Math.abs(dx) > 1.0 || Math.abs(dy) > 1.0) {
+						dx = 0.0;
+						dy = 0.0;
+					}
+				}
+			}
+			coord_res[0] += dx;
+			coord_res[1] += dy;
+		}
+		return coord_res;
+	}
+}
@@ -0,0 +1,133 @@
+package bending_crystal_track;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+
+/* Buffers used by the template matching of one tracked region (holder, free end or middle part).
+ * The matrices are kept between the calls and reallocated by OpenCV only when the size of
+ * the search window or of the template changes. release() frees the native memory at once
+ * instead of leaving it to the garbage collector.
+ * The native matrices are allocated on the first OpenCV match, so the pure Java backend
+ * never loads the OpenCV libraries.
+ */
+final class MatchWorkspace {
+
+	static final int OPENCV = 0, JAVA = 1;
+	static final String[] backends = {"OpenCV (JavaCV)", "Pure Java"};
+
+	int backend = OPENCV;
+
+	Mat source, template, result;
+	// 16-bit images are wrapped here (CV_16U) before conversion to 32-bit
+	Mat source16, template16;
+
+	// frequency domain matching, see FftCorrelator
+	int correlationMode = FftCorrelator.AUTO;
+	Mat fftSpectrum, fftTemplateSpectrum, fftStaging;
+	Object fftTemplateKey = null;
+
+	// scores of the last match, filled by either backend
+	final MatchSurface surface = new MatchSurface();
+	// float planes of the images for JavaMatcher
+	float[][] javaSource, javaTemplate;
+	// window sums of the last source image, taken from the tables of the frame the image was cut from
+	private WindowStats windowStats;
+	BlurredFrame frame;
+	// search window copied in place, see searchWindow()
+	private FloatProcessor window;
+
+	private boolean released = false;
+
+	MatchWorkspace() {
+	}
+
+	MatchWorkspace(int backend) {
+		this.backend = backend;
+	}
+
+	void allocateNative() {
+		if (source != null) return;
+		source = new Mat();
+		template = new Mat();
+		result = new Mat();
+		source16 = new Mat();
+		template16 = new Mat();
+		fftSpectrum = new Mat();
+		fftTemplateSpectrum = new Mat();
+		fftStaging = new Mat();
+	}
+
+	// Copies the images to source and template as accepted by matchTemplate (32-bit float, 8-bit or 8-bit BGR)
+	boolean loadNative(ImageProcessor src, ImageProcessor tpl) {
+		allocateNative();
+		switch (src.getBitDepth()) {
+		case 16:
+			// since cvMatchTemplate don't accept 16bit image, we have to convert it to 32bit,
+			// the values are kept (float holds all 16-bit integers exactly) and the buffers are reused
+			MatBridge.toMat(src, source16).convertTo(source, CV_32FC1);
+			MatBridge.toMat(tpl, template16).convertTo(template, CV_32FC1);
+			return true;
+		case 32:
+		case 24:
+		case 8:
+			// pixels are passed to OpenCV directly, 32-bit data are not reduced to 8-bit
+			MatBridge.toMat(src, source);
+			MatBridge.toMat(tpl, template);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	Mat result(int cols, int rows) {
+		allocateNative();
+		result.create(rows, cols, CV_32FC1);
+		return result;
+	}
+
+	// summed-area tables of the source, an image cut from the blurred frame uses the tables of the frame
+	WindowStats windowStats(ImageProcessor src) {
+		if (windowStats == null || !windowStats.describes(src)) {
+			windowStats = frame != null ? frame.stats(src) : null;
+			if (windowStats == null) windowStats = WindowStats.of(src);
+		}
+		return windowStats;
+	}
+
+	// The gray blurred search window, copied from the frame into the same buffer for every frame.
+	// The pixels change in place, so the window sums of the previous frame are dropped.
+	FloatProcessor searchWindow(BlurredFrame frame, int x, int y, int w, int h) {
+		this.frame = frame;
+		window = frame.window(x, y, w, h, window);
+		windowStats = null;
+		return window;
+	}
+
+	boolean isReleased() {
+		return released;
+	}
+
+	void release() {
+		if (released) return;
+		released = true;
+		javaSource = null;
+		javaTemplate = null;
+		fftTemplateKey = null;
+		windowStats = null;
+		window = null;
+		frame = null;
+		if (source == null) return;
+		source.close();
+		template.close();
+		result.close();
+		source16.close();
+		template16.close();
+		fftSpectrum.close();
+		fftTemplateSpectrum.close();
+		fftStaging.close();
+	}
+}
@@ -0,0 +1,251 @@
+package bending_crystal_track;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.matchTemplate;
+
+/* Compares the speed of the matching backends on the same search window and template.
+ * The window is cut from the center of the current image (or of a random blurred image if none is open),
+ * the template is cut from the center of the window. Every method is timed with the pure Java backend
+ * and with OpenCV (direct and FFT correlation), the position found by OpenCV is the reference.
+ * With the argument "check" (or from main(), without a display) the scores of every backend are compared
+ * with the ones of OpenCV matchTemplate instead, see check().
+ */
+public class Match_Benchmark implements PlugIn {
+
+	private static final String pluginName = "Matching Benchmark";
+
+	// deviation from matchTemplate accepted by check(): of the normed scores, and of the other ones
+	// relative to the largest score of the surface (the float accumulation of the backends differs)
+	static final double TOLERANCE = 1e-4;
+	private static final int CHECK_W = 120, CHECK_H = 90, CHECK_TPL_W = 24, CHECK_TPL_H = 18;
+
+	@Override
+	public void run(String arg) {
+		if ("check".equals(arg)) {
+			check();
+			return;
+		}
+		GenericDialog gd = new GenericDialog(pluginName);
+		gd.addNumericField("Template width ", 200, 0);
+		gd.addNumericField("Template height ", 100, 0);
+		gd.addNumericField("Search margin (each side) ", 20, 0);
+		gd.addNumericField("Repetitions ", 20, 0);
+		gd.addCheckbox("Use the current image", WindowManager.getCurrentImage() != null);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		int tplW = Math.max(1, (int) gd.getNextNumber());
+		int tplH = Math.max(1, (int) gd.getNextNumber());
+		int margin = Math.max(0, (int) gd.getNextNumber());
+		int reps = Math.max(1, (int) gd.getNextNumber());
+		boolean useImage = gd.getNextBoolean();
+
+		int winW = tplW + 2 * margin, winH = tplH + 2 * margin;
+		ImageProcessor window = searchWindow(useImage ? WindowManager.getCurrentImage() : null, winW, winH);
+		if (window == null) {
+			IJ.error(pluginName, "The image is smaller than the search window.");
+			return;
+		}
+		window.setRoi((winW - tplW) / 2 + 1, (winH - tplH) / 2 - 1, tplW, tplH);
+		ImageProcessor tpl = window.crop();
+		window.resetRoi();
+
+		ResultsTable rt = new ResultsTable();
+		boolean openCV = true;
+		for (int method = 0; method < 6; method++) {
+			double[] reference = null;
+			if (openCV) {
+				try {
+					reference = time(rt, window, tpl, method, reps, MatchWorkspace.OPENCV, FftCorrelator.SPATIAL, "OpenCV", null);
+					time(rt, window, tpl, method, reps, MatchWorkspace.OPENCV, FftCorrelator.FFT, "OpenCV FFT", reference);
+				} catch (Throwable e) {
+					// LinkageError if the natives are missing
+					IJ.log(pluginName + ": OpenCV is not available (" + e + ")");
+					openCV = false;
+				}
+			}
+			time(rt, window, tpl, method, reps, MatchWorkspace.JAVA, FftCorrelator.SPATIAL, "Pure Java", reference);
+			IJ.showProgress(method + 1, 6);
+		}
+		rt.show(pluginName + " " + winW + "x" + winH + " / " + tplW + "x" + tplH);
+	}
+
+	// adds a row with the mean time of one match, the shift is measured from the reference position if given
+	private static double[] time(ResultsTable rt, ImageProcessor window, ImageProcessor tpl, int method, int reps,
+			int backend, int correlationMode, String name, double[] reference) {
+		MatchWorkspace ws = new MatchWorkspace(backend);
+		ws.correlationMode = correlationMode;
+		try {
+			// the first call includes the allocation and the JIT warm-up
+			double[] coord_res = TemplateMatcher.doMatch_coord_res(window, tpl, method, true, null, ws);
+			long start = System.nanoTime();
+			for (int i = 0; i < reps; i++)
+				coord_res = TemplateMatcher.doMatch_coord_res(window, tpl, method, true, null, ws);
+			double ms = (System.nanoTime() - start) / 1.0e6 / reps;
+
+			rt.incrementCounter();
+			rt.addValue("Method", TemplateMatcher.matchMethods[method]);
+			rt.addValue("Backend", name);
+			rt.addValue("Time per match (ms)", ms);
+			rt.addValue("X", coord_res[0]);
+			rt.addValue("Y", coord_res[1]);
+			rt.addValue("Score", coord_res[2]);
+			if (reference != null)
+				rt.addValue("Shift from OpenCV", Math.hypot(coord_res[0] - reference[0], coord_res[1] - reference[1]));
+			return coord_res;
+		} finally {
+			ws.release();
+		}
+	}
+
+	// the consistency check without ImageJ, the exit status is 1 if a backend differs from matchTemplate
+	public static void main(String[] args) {
+		System.exit(check() ? 0 : 1);
+	}
+
+	// Every backend (pure Java, OpenCV with the direct and with the FFT correlation) against OpenCV matchTemplate:
+	// the scores of the whole surface for the six methods on 8, 16, 32-bit and RGB windows. The windows have a flat
+	// part of a constant value and one of zeros, where the normed scores are clamped (the 1.125 rule of OpenCV).
+	// The deviations are logged, returns true if all of them are within the tolerance.
+	static boolean check() {
+		boolean passed = true;
+		try {
+			for (int depth : new int[]{8, 16, 32, 24}) {
+				ImageProcessor window = checkWindow(depth);
+				window.setRoi(CHECK_W / 2 + 3, CHECK_H / 2 - 5, CHECK_TPL_W, CHECK_TPL_H);
+				ImageProcessor tpl = window.crop();
+				window.resetRoi();
+				for (int method = 0; method < 6; method++) {
+					float[] reference = matchTemplateScores(window, tpl, method);
+					passed &= checkBackend(window, tpl, method, reference, MatchWorkspace.OPENCV, FftCorrelator.SPATIAL, "OpenCV");
+					if (FftCorrelator.supported(window, tpl))
+						passed &= checkBackend(window, tpl, method, reference, MatchWorkspace.OPENCV, FftCorrelator.FFT, "OpenCV FFT");
+					passed &= checkBackend(window, tpl, method, reference, MatchWorkspace.JAVA, FftCorrelator.SPATIAL, "Pure Java");
+				}
+			}
+		} catch (Throwable e) {
+			// LinkageError if the natives are missing
+			IJ.log(pluginName + ": OpenCV is not available (" + e + ")");
+			return false;
+		}
+		IJ.log(pluginName + ": " + (passed ? "all the backends agree with matchTemplate" : "a backend differs from matchTemplate"));
+		return passed;
+	}
+
+	private static boolean checkBackend(ImageProcessor window, ImageProcessor tpl, int method, float[] reference,
+			int backend, int correlationMode, String name) {
+		MatchWorkspace ws = new MatchWorkspace(backend);
+		ws.correlationMode = correlationMode;
+		try {
+			TemplateMatcher.doMatch_coord_res(window, tpl, method, false, null, ws);
+			float[] scores = ws.surface.data;
+			boolean normed = method == 1 || method == 3 || method == 5;
+			double scale = 1.0, deviation = 0.0;
+			if (!normed) for (float v : reference) scale = Math.max(scale, Math.abs(v));
+			for (int i = 0; i < reference.length; i++)
+				deviation = Math.max(deviation, Math.abs(scores[i] - reference[i]) / scale);
+			boolean ok = deviation <= TOLERANCE;
+			IJ.log(String.format("%s %d-bit, %s, %s: deviation %.2e%s", pluginName, window.getBitDepth(),
+					TemplateMatcher.matchMethods[method], name, deviation, ok ? "" : " FAILED"));
+			return ok;
+		} finally {
+			ws.release();
+		}
+	}
+
+	// the scores of OpenCV matchTemplate for the images as the backends pass them to OpenCV
+	private static float[] matchTemplateScores(ImageProcessor window, ImageProcessor tpl, int method) {
+		MatchWorkspace ws = new MatchWorkspace(MatchWorkspace.OPENCV);
+		try {
+			ws.loadNative(window, tpl);
+			int resW = window.getWidth() - tpl.getWidth() + 1, resH = window.getHeight() - tpl.getHeight() + 1;
+			Mat res = ws.result(resW, resH);
+			matchTemplate(ws.source, ws.template, res, method);
+			float[] scores = new float[resW * resH];
+			new FloatPointer(res.data()).get(scores);
+			return scores;
+		} finally {
+			ws.release();
+		}
+	}
+
+	// a blurred random window of the bit depth with a flat part of a constant value and one of zeros
+	private static ImageProcessor checkWindow(int depth) {
+		Random random = new Random(depth);
+		FloatProcessor[] planes = new FloatProcessor[depth == 24 ? 3 : 1];
+		for (int c = 0; c < planes.length; c++) {
+			planes[c] = new FloatProcessor(CHECK_W, CHECK_H);
+			for (int i = 0; i < CHECK_W * CHECK_H; i++) planes[c].setf(i, random.nextFloat());
+			new GaussianBlur().blurGaussian(planes[c], 2, 2, 0.01);
+			planes[c].resetMinAndMax();
+		}
+		ImageProcessor ip;
+		switch (depth) {
+		case 8:
+			ip = new ByteProcessor(CHECK_W, CHECK_H);
+			break;
+		case 16:
+			ip = new ShortProcessor(CHECK_W, CHECK_H);
+			break;
+		case 24:
+			ip = new ColorProcessor(CHECK_W, CHECK_H);
+			break;
+		default:
+			ip = new FloatProcessor(CHECK_W, CHECK_H);
+		}
+		int flatW = 2 * CHECK_TPL_W, flatH = CHECK_TPL_H + 6;
+		for (int y = 0; y < CHECK_H; y++)
+			for (int x = 0; x < CHECK_W; x++) {
+				boolean flat = x < flatW && y < flatH, zero = x >= CHECK_W - flatW && y >= CHECK_H - flatH;
+				int i = y * CHECK_W + x;
+				if (depth == 24) {
+					int rgb = 0;
+					for (int c = 0; c < 3; c++)
+						rgb |= (flat ? 100 + 20 * c : zero ? 0 : (int) (255 * norm(planes[c], i))) << (8 * c);
+					ip.set(i, rgb);
+				} else {
+					double v = flat ? 0.4 : zero ? 0.0 : norm(planes[0], i);
+					// 32-bit windows have negative values too
+					ip.setf(i, (float) (depth == 8 ? Math.round(255 * v) : depth == 16 ? Math.round(60000 * v) : zero ? 0.0 : 200 * v - 80));
+				}
+			}
+		return ip;
+	}
+
+	// the blurred value scaled to 0..1
+	private static double norm(FloatProcessor fp, int i) {
+		return (fp.getf(i) - fp.getMin()) / (fp.getMax() - fp.getMin());
+	}
+
+	private static ImageProcessor searchWindow(ImagePlus imp, int winW, int winH) {
+		if (imp == null) {
+			FloatProcessor fp = new FloatProcessor(winW, winH);
+			Random random = new Random(1);
+			for (int i = 0; i < winW * winH; i++) fp.setf(i, (float) random.nextGaussian());
+			new GaussianBlur().blurGaussian(fp, 3, 3, 0.01);
+			return fp;
+		}
+		ImageProcessor ip = imp.getProcessor();
+		if (ip.getWidth() < winW || ip.getHeight() < winH) return null;
+		ip.setRoi((ip.getWidth() - winW) / 2, (ip.getHeight() - winH) / 2, winW, winH);
+		ImageProcessor window = ip.crop();
+		ip.resetRoi();
+		return window;
+	}
+}
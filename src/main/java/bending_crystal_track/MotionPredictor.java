@@ -0,0 +1,124 @@
+package bending_crystal_track;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/* Predicts the displacement of a tracked region (holder, free end or middle part) in the next frame.
+ * Each coordinate follows a constant velocity Kalman filter, the acceleration is treated as noise.
+ * The time is counted in frames (slice numbers): the frame times are known only after the matching
+ * and the frames of a series are usually taken at a constant rate.
+ * The spread of the prediction gives the margin of the search window, so a smooth motion is
+ * tracked with small windows while a new or jerky motion gets the full search area.
+ */
+final class MotionPredictor {
+
+	// standard deviations of the acceleration (pixels per frame^2) and of the measured position (pixels)
+	static final double ACCELERATION_NOISE = 1.0, MEASUREMENT_NOISE = 0.5;
+	// the margin is this number of standard deviations, plus a few pixels for the subpixel refinement
+	static final double SIGMAS = 3.0;
+	static final int MIN_MARGIN = 4;
+
+	// state (position, velocity) and its covariance for one coordinate
+	private static final class Axis {
+		double p, v, pp, pv, vv;
+
+		void reset(double position, double velocitySigma) {
+			p = position;
+			v = 0.0;
+			pp = 0.0;
+			pv = 0.0;
+			vv = velocitySigma * velocitySigma;
+		}
+
+		// prediction after dt frames, {position, variance of the position}
+		double[] predict(double dt) {
+			double q = ACCELERATION_NOISE * ACCELERATION_NOISE;
+			return new double[]{p + v * dt, pp + dt * (2.0 * pv + dt * vv) + q * dt * dt * dt * dt / 4.0};
+		}
+
+		void update(double dt, double measured) {
+			double q = ACCELERATION_NOISE * ACCELERATION_NOISE;
+			p += v * dt;
+			pp += dt * (2.0 * pv + dt * vv) + q * dt * dt * dt * dt / 4.0;
+			pv += dt * vv + q * dt * dt * dt / 2.0;
+			vv += q * dt * dt;
+
+			double s = pp + MEASUREMENT_NOISE * MEASUREMENT_NOISE,
+				   kp = pp / s,
+				   kv = pv / s,
+				   innovation = measured - p;
+			p += kp * innovation;
+			v += kv * innovation;
+			vv -= kv * pv;
+			pv -= kp * pv;
+			pp -= kp * pp;
+		}
+
+		void write(DataOutput out) throws IOException {
+			out.writeDouble(p);
+			out.writeDouble(v);
+			out.writeDouble(pp);
+			out.writeDouble(pv);
+			out.writeDouble(vv);
+		}
+
+		void read(DataInput in) throws IOException {
+			p = in.readDouble();
+			v = in.readDouble();
+			pp = in.readDouble();
+			pv = in.readDouble();
+			vv = in.readDouble();
+		}
+	}
+
+	private final Axis x = new Axis(), y = new Axis();
+	private int lastSlice;
+
+	// the region is at (x0, y0) in the given slice, its velocity is unknown (of the order of velocitySigma per frame)
+	void reset(int slice, double x0, double y0, double velocitySigma) {
+		lastSlice = slice;
+		x.reset(x0, velocitySigma);
+		y.reset(y0, velocitySigma);
+	}
+
+	private double frames(int slice) {
+		return slice > lastSlice ? slice - lastSlice : 1.0;
+	}
+
+	// predicted displacement in the slice and the standard deviation of the match around it (the larger of both axes),
+	// the state is not changed
+	double[] predict(int slice) {
+		double dt = frames(slice);
+		double[] px = x.predict(dt), py = y.predict(dt);
+		double r = MEASUREMENT_NOISE * MEASUREMENT_NOISE;
+		return new double[]{px[0], py[0], Math.sqrt(Math.max(px[1], py[1]) + r)};
+	}
+
+	// margin of the search window around the predicted position, not larger than maxMargin
+	int margin(int slice, int maxMargin) {
+		double sigma = predict(slice)[2];
+		return (int) Math.min(maxMargin, Math.max(MIN_MARGIN, Math.ceil(SIGMAS * sigma) + 2));
+	}
+
+	// the displacement found in the slice
+	void update(int slice, double mx, double my) {
+		double dt = frames(slice);
+		x.update(dt, mx);
+		y.update(dt, my);
+		lastSlice = slice;
+	}
+
+	// the state for a checkpoint of the tracking
+	void write(DataOutput out) throws IOException {
+		out.writeInt(lastSlice);
+		x.write(out);
+		y.write(out);
+	}
+
+	void read(DataInput in) throws IOException {
+		lastSlice = in.readInt();
+		x.read(in);
+		y.read(in);
+	}
+}
@@ -0,0 +1,162 @@
+package bending_crystal_track;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Virtual stack that reads the next slices of another virtual stack in the background.
+ * When slice n is requested, slices n+1 ... n+depth are read and decoded by the reader threads,
+ * so the disk access and the decoding of the next frames overlap the tracking of the current one.
+ * At most depth slices are kept ahead, the slices before the requested one are dropped.
+ * Everything else (labels, file names, size) is taken from the source stack. Deleting a slice
+ * shifts the numbers, so the slices read ahead are dropped then.
+ * Only plain virtual stacks of image files are wrapped, the readers of movie files are not thread safe.
+ */
+final class PrefetchStack extends VirtualStack {
+
+	private final VirtualStack source;
+	private final int depth;
+	private final ExecutorService readers;
+	// slices being read or already read, by slice number
+	private final TreeMap<Integer, Future<ImageProcessor>> ahead = new TreeMap<Integer, Future<ImageProcessor>>();
+	// the last requested slice, ImagePlus may ask for it again
+	private int lastSlice = -1;
+	private ImageProcessor lastProcessor;
+
+	PrefetchStack(VirtualStack source, int depth, int threads) {
+		super(source.getWidth(), source.getHeight(), source.getColorModel(), source.getDirectory());
+		this.source = source;
+		this.depth = Math.max(1, depth);
+		readers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread t = new Thread(r, "BendingCrystalTrack-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// true if the stack can be read ahead safely
+	static boolean canWrap(ImageStack stack) {
+		return stack != null && stack.getClass() == VirtualStack.class;
+	}
+
+	VirtualStack getSource() {
+		return source;
+	}
+
+	@Override
+	public synchronized ImageProcessor getProcessor(int n) {
+		if (n == lastSlice && lastProcessor != null) return lastProcessor;
+		// the slices before n are not needed any more
+		Iterator<Map.Entry<Integer, Future<ImageProcessor>>> it = ahead.headMap(n).entrySet().iterator();
+		while (it.hasNext()) {
+			it.next().getValue().cancel(false);
+			it.remove();
+		}
+		Future<ImageProcessor> current = ahead.remove(n);
+		int size = source.getSize();
+		for (int k = n + 1; k <= Math.min(n + depth, size); k++) {
+			if (!ahead.containsKey(k)) {
+				final int slice = k;
+				ahead.put(k, readers.submit(() -> source.getProcessor(slice)));
+			}
+		}
+		ImageProcessor ip = null;
+		if (current != null) {
+			try {
+				ip = current.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// read again below, an error is reported by the source
+			}
+		}
+		if (ip == null) ip = source.getProcessor(n);
+		lastSlice = n;
+		lastProcessor = ip;
+		return ip;
+	}
+
+	@Override
+	public Object getPixels(int n) {
+		ImageProcessor ip = getProcessor(n);
+		return ip != null ? ip.getPixels() : null;
+	}
+
+	@Override
+	public void setPixels(Object pixels, int n) {
+		source.setPixels(pixels, n);
+	}
+
+	// the slices read ahead are not valid any more
+	synchronized void invalidate() {
+		for (Future<ImageProcessor> f : ahead.values()) f.cancel(false);
+		ahead.clear();
+		lastSlice = -1;
+		lastProcessor = null;
+	}
+
+	@Override
+	public void deleteSlice(int n) {
+		source.deleteSlice(n);
+		invalidate();
+	}
+
+	@Override
+	public void addSlice(String fileName) {
+		source.addSlice(fileName);
+	}
+
+	@Override
+	public int getSize() {
+		return source.getSize();
+	}
+
+	@Override
+	public int size() {
+		return source.getSize();
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return source.getSliceLabel(n);
+	}
+
+	@Override
+	public void setSliceLabel(String label, int n) {
+		source.setSliceLabel(label, n);
+	}
+
+	@Override
+	public String getDirectory() {
+		return source.getDirectory();
+	}
+
+	@Override
+	public String getFileName(int n) {
+		return source.getFileName(n);
+	}
+
+	@Override
+	public int getBitDepth() {
+		return source.getBitDepth();
+	}
+
+	@Override
+	public Properties getProperties() {
+		return source.getProperties();
+	}
+
+	void close() {
+		invalidate();
+		readers.shutdownNow();
+	}
+}
@@ -0,0 +1,247 @@
+package bending_crystal_track;
+
+import ij.IJ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/* Writes the results to the disk as they come, so a run that is interrupted keeps what it has measured.
+ * The records go to a CSV file and/or a compact binary file (base name + ".csv" / ".bin"). The tracking thread
+ * only queues them: a thread of the writer writes them into buffers, which are flushed after FLUSH_RECORDS
+ * records or FLUSH_MILLIS milliseconds, whichever comes first. A frame analyzed again is written once more,
+ * the last record of a slice is the valid one. A resumed run appends to the files, a record cut by a crash at
+ * their end is removed first.
+ * Binary format: the magic number and the version (int), then the records: slice (int), time (double),
+ * the file label (modified UTF-8) and the 14 doubles of the CSV columns that follow the label.
+ */
+public final class ResultsWriter implements TrackerListener {
+
+	public static final int CSV = 1, BINARY = 2;
+	public static final String FILE_NAME = "BendingCrystalTrack.results";
+	static final int MAGIC = 0x42435452, VERSION = 1;
+	static final int FLUSH_RECORDS = 256;
+	static final long FLUSH_MILLIS = 2000;
+	static final String HEADER = "Slice,Time,File,bendAngle,defAngle,Length,Curvature,Deformation,"
+			+ "holderScore,freeScore,midScore,holderX,holderY,freeX,freeY,midX,midY";
+
+	// queued by close(), the writer thread ends when it comes to it
+	private static final FrameResult END = new FrameResult(0, null, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+	private final LinkedBlockingQueue<FrameResult> queue = new LinkedBlockingQueue<FrameResult>();
+	private final File base;
+	private final BufferedWriter csv;
+	private final DataOutputStream bin;
+	private final Thread thread;
+	private volatile boolean closed;
+	private volatile IOException error;
+
+	// formats: CSV, BINARY or both, the files are replaced
+	public ResultsWriter(File base, int formats) throws IOException {
+		this(base, formats, false);
+	}
+
+	public ResultsWriter(File base, int formats, boolean append) throws IOException {
+		this.base = base;
+		File csvFile = new File(base.getPath() + ".csv"), binFile = new File(base.getPath() + ".bin");
+		boolean csvHeader = true, binHeader = true;
+		if (append && (formats & CSV) != 0 && csvFile.length() > 0) csvHeader = !trimCsv(csvFile);
+		if (append && (formats & BINARY) != 0 && binFile.length() > 0) binHeader = !trimBinary(binFile);
+		csv = (formats & CSV) != 0 ? new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(csvFile, !csvHeader), StandardCharsets.UTF_8), 1 << 16) : null;
+		try {
+			bin = (formats & BINARY) != 0 ? new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(binFile, !binHeader), 1 << 16)) : null;
+		} catch (IOException e) {
+			if (csv != null) csv.close();
+			throw e;
+		}
+		if (csvHeader && csv != null) {
+			csv.write(HEADER);
+			csv.newLine();
+		}
+		if (binHeader && bin != null) {
+			bin.writeInt(MAGIC);
+			bin.writeInt(VERSION);
+		}
+		thread = new Thread(this::write, "BendingCrystalTrack results");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// nothing is queued after an error of the writing, the records would never be written
+	@Override
+	public void frameTracked(FrameResult result) {
+		if (!closed && error == null) queue.add(result);
+	}
+
+	// the first error of the writing, null if there was none
+	public IOException error() {
+		return error;
+	}
+
+	// the records queued before are written and the files are closed, the first error of the writing is thrown
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			queue.add(END);
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (error != null) throw error;
+	}
+
+	private void write() {
+		int unflushed = 0;
+		long lastFlush = System.currentTimeMillis();
+		try {
+			while (true) {
+				FrameResult r = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+				if (r == END) break;
+				if (r != null) {
+					if (csv != null) writeCsv(r);
+					if (bin != null) writeBinary(r);
+					unflushed++;
+				}
+				long now = System.currentTimeMillis();
+				if (unflushed >= FLUSH_RECORDS || (unflushed > 0 && now - lastFlush >= FLUSH_MILLIS)) {
+					flush();
+					unflushed = 0;
+					lastFlush = now;
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+			queue.clear();
+			// reported at once, the tracking goes on without the files
+			IJ.log("BendingCrystalTrack: the results are not written to " + base.getName() + " any more (" + e.getMessage() + ")");
+		} catch (InterruptedException e) {
+			// the files are closed with what they have
+		} finally {
+			try {
+				if (csv != null) csv.close();
+				if (bin != null) bin.close();
+			} catch (IOException e) {
+				if (error == null) error = e;
+			}
+		}
+	}
+
+	private void flush() throws IOException {
+		if (csv != null) csv.flush();
+		if (bin != null) bin.flush();
+	}
+
+	private void writeCsv(FrameResult r) throws IOException {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append(r.slice).append(',').append(r.seconds).append(',');
+		String label = r.label == null ? "" : r.label;
+		if (label.indexOf(',') >= 0 || label.indexOf('"') >= 0) sb.append('"').append(label.replace("\"", "\"\"")).append('"');
+		else sb.append(label);
+		for (double v : values(r)) sb.append(',').append(v);
+		csv.write(sb.toString());
+		csv.newLine();
+	}
+
+	private void writeBinary(FrameResult r) throws IOException {
+		bin.writeInt(r.slice);
+		bin.writeDouble(r.seconds);
+		bin.writeUTF(r.label == null ? "" : r.label);
+		for (double v : values(r)) bin.writeDouble(v);
+	}
+
+	private static double[] values(FrameResult r) {
+		return new double[]{r.bendingAngle, r.deflectionAngle, r.length, r.curvature, r.deformation,
+				r.holderScore, r.freeScore, r.midScore, r.holderX, r.holderY, r.freeX, r.freeY, r.midX, r.midY};
+	}
+
+	// the records of a binary file, a record cut by a crash at the end is left out
+	public static List<FrameResult> readBinary(File file) throws IOException {
+		List<FrameResult> results = new ArrayList<FrameResult>();
+		readBinary(file, results);
+		return results;
+	}
+
+	// returns the length of the complete records with the header
+	private static long readBinary(File file, List<FrameResult> results) throws IOException {
+		long[] position = new long[1];
+		try (DataInputStream in = new DataInputStream(new FilterInputStream(new BufferedInputStream(new FileInputStream(file))) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) position[0]++;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) position[0] += n;
+				return n;
+			}
+		})) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a results file: " + file);
+			long complete = position[0];
+			while (true) {
+				try {
+					int slice = in.readInt();
+					double seconds = in.readDouble();
+					String label = in.readUTF();
+					double[] v = new double[14];
+					for (int i = 0; i < v.length; i++) v[i] = in.readDouble();
+					if (results != null) results.add(new FrameResult(slice, label, seconds, v[0], v[1], v[2], v[3], v[4],
+							v[5], v[6], v[7], v[8], v[9], v[10], v[11], v[12], v[13]));
+					complete = position[0];
+				} catch (EOFException e) {
+					return complete;
+				}
+			}
+		}
+	}
+
+	// a CSV file is cut after its last complete line, false if there is no header to append to
+	private static boolean trimCsv(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			long end = raf.length();
+			while (end > 0) {
+				raf.seek(end - 1);
+				if (raf.read() == '\n') break;
+				end--;
+			}
+			raf.setLength(end);
+			return end > 0;
+		}
+	}
+
+	// a binary file is cut after its last complete record, false if it is not a results file
+	private static boolean trimBinary(File file) throws IOException {
+		long length;
+		try {
+			length = readBinary(file, null);
+		} catch (IOException e) {
+			return false;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		}
+		return true;
+	}
+}
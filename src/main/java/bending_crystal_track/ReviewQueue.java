@@ -0,0 +1,88 @@
+package bending_crystal_track;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/* Frames flagged by a failure policy during the tracking. A frame may be flagged for several regions.
+ * The flags of a frame are resolved when it is analyzed again successfully.
+ */
+public final class ReviewQueue {
+
+	public static final class Flag {
+		public final int slice, region, answer;
+		public final String label;
+		public final double score;
+
+		Flag(int slice, String label, int region, int answer, double score) {
+			this.slice = slice;
+			this.label = label;
+			this.region = region;
+			this.answer = answer;
+			this.score = score;
+		}
+	}
+
+	private final List<Flag> flags = new ArrayList<Flag>();
+
+	// a region is flagged once in a frame (the free end and the middle part are matched again in the iterations)
+	synchronized void add(Flag flag) {
+		for (Flag f : flags)
+			if (f.slice == flag.slice && f.region == flag.region) return;
+		flags.add(flag);
+	}
+
+	public synchronized List<Flag> flags() {
+		return new ArrayList<Flag>(flags);
+	}
+
+	// the flagged frames in the order of the slices
+	public synchronized int[] slices() {
+		TreeSet<Integer> slices = new TreeSet<Integer>();
+		for (Flag f : flags) slices.add(f.slice);
+		int[] result = new int[slices.size()];
+		int i = 0;
+		for (int s : slices) result[i++] = s;
+		return result;
+	}
+
+	public synchronized void resolve(int slice) {
+		flags.removeIf(f -> f.slice == slice);
+	}
+
+	// the file of a flagged frame, null if the frame is not flagged
+	public synchronized String label(int slice) {
+		for (Flag f : flags)
+			if (f.slice == slice) return f.label;
+		return null;
+	}
+
+	// The slice was removed from the sequence: its flags go, the flags of the later frames move down one slice
+	synchronized void sliceDeleted(int slice) {
+		flags.removeIf(f -> f.slice == slice);
+		for (int i = 0; i < flags.size(); i++) {
+			Flag f = flags.get(i);
+			if (f.slice > slice) flags.set(i, new Flag(f.slice - 1, f.label, f.region, f.answer, f.score));
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return flags.isEmpty();
+	}
+
+	public synchronized void clear() {
+		flags.clear();
+	}
+
+	// a table of the flags, for the runs reviewed later
+	public synchronized void save(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("Slice,File,Region,Answer,Score");
+			for (Flag f : flags)
+				out.println(f.slice + "," + f.label + "," + f.region + "," + f.answer + "," + f.score);
+		}
+	}
+}
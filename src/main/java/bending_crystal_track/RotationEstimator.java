@@ -0,0 +1,149 @@
+package bending_crystal_track;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Point2d;
+import org.bytedeco.opencv.opencv_core.Point2f;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/* Fourier-Mellin estimate of the rotation between a reference patch and a target patch of the same size.
+ * The amplitude spectrum does not depend on the translation, in log-polar coordinates a rotation of the image
+ * becomes a shift along the angle axis which is found by phase correlation.
+ * The spectrum of the reference is computed once. The angle is returned in the convention of
+ * ImageProcessor.rotate(), i.e. the rotation that turns the reference into the target.
+ */
+final class RotationEstimator {
+
+	// rows of the log-polar image, i.e. the angular resolution is 360/ANGLE_STEPS degrees before the subpixel fit
+	private static final int ANGLE_STEPS = 720;
+
+	private final int size;
+	private final Mat window, highPass;
+	private final Mat refLogPolar;
+	private final Mat work = new Mat(), complex = new Mat(), magnitude = new Mat();
+
+	// ref is a patch around the tracked feature, only its central square is used
+	RotationEstimator(ImageProcessor ref) {
+		size = Math.min(ref.getWidth(), ref.getHeight()) & ~1;
+		window = radialWindow(size);
+		highPass = highPassFilter(size);
+		refLogPolar = logPolarSpectrum(centralSquare(ref, ref.getWidth() / 2.0, ref.getHeight() / 2.0), new Mat());
+	}
+
+	// Rotation of the target patch centered at (cx, cy) of the image. The amplitude spectrum cannot tell
+	// an angle from the angle+180, the value closest to expectedAngle is returned.
+	double estimate(ImageProcessor image, double cx, double cy, double expectedAngle) {
+		Mat tarLogPolar = logPolarSpectrum(centralSquare(image, cx, cy), new Mat());
+		Point2d shift = phaseCorrelate(refLogPolar, tarLogPolar);
+		double angle = shift.y() * 360.0 / ANGLE_STEPS;
+		shift.close();
+		tarLogPolar.close();
+		while (angle - expectedAngle > 90.0) angle -= 180.0;
+		while (angle - expectedAngle < -90.0) angle += 180.0;
+		return angle;
+	}
+
+	void release() {
+		window.close();
+		highPass.close();
+		refLogPolar.close();
+		work.close();
+		complex.close();
+		magnitude.close();
+	}
+
+	// size x size float patch centered at (cx, cy), shifted inside the image if necessary
+	private FloatProcessor centralSquare(ImageProcessor ip, double cx, double cy) {
+		int x = (int) Math.round(cx - size / 2.0), y = (int) Math.round(cy - size / 2.0);
+		x = Math.max(0, Math.min(x, ip.getWidth() - size));
+		y = Math.max(0, Math.min(y, ip.getHeight() - size));
+		FloatProcessor patch = new FloatProcessor(size, size);
+		for (int j = 0; j < size; j++)
+			for (int i = 0; i < size; i++)
+				patch.setf(i, j, ip.getPixelValue(x + i, y + j));
+		return patch;
+	}
+
+	private Mat logPolarSpectrum(FloatProcessor patch, Mat dst) {
+		MatBridge.toMat(patch, work);
+		// the mean is removed to suppress the DC peak, the window suppresses the border effects
+		Scalar mean = mean(work);
+		Mat level = new Mat(work.size(), CV_32F, mean);
+		subtract(work, level, work);
+		level.close();
+		mean.close();
+		multiply(work, window, work);
+		dft(work, complex, DFT_COMPLEX_OUTPUT, 0);
+		MatVector planes = new MatVector(2);
+		split(complex, planes);
+		magnitude(planes.get(0), planes.get(1), magnitude);
+		planes.close();
+		// log amplitude with the zero frequency moved to the center
+		Scalar one = Scalar.all(1.0);
+		Mat ones = new Mat(magnitude.size(), CV_32F, one);
+		add(magnitude, ones, magnitude);
+		log(magnitude, magnitude);
+		ones.close();
+		one.close();
+		swapQuadrants(magnitude);
+		multiply(magnitude, highPass, magnitude);
+
+		Point2f center = new Point2f(size / 2f, size / 2f);
+		Size sz = new Size(size / 2, ANGLE_STEPS);
+		warpPolar(magnitude, dst, sz, center, size / 2.0, INTER_LINEAR | WARP_POLAR_LOG);
+		center.close();
+		sz.close();
+		return dst;
+	}
+
+	// Hann window of the distance from the center, unlike the separable window it does not rotate with the image
+	private static Mat radialWindow(int size) {
+		float[] w = new float[size * size];
+		double c = (size - 1) / 2.0, r0 = size / 2.0;
+		for (int y = 0; y < size; y++)
+			for (int x = 0; x < size; x++) {
+				double r = Math.sqrt((x - c) * (x - c) + (y - c) * (y - c));
+				w[y * size + x] = r < r0 ? (float) (0.5 + 0.5 * Math.cos(Math.PI * r / r0)) : 0f;
+			}
+		return MatBridge.toMat(new FloatProcessor(size, size, w));
+	}
+
+	// emphasizes the high frequencies, the low ones carry little information about the rotation (Reddy and Chatterji)
+	private static Mat highPassFilter(int size) {
+		float[] h = new float[size * size];
+		for (int v = 0; v < size; v++) {
+			double cv = Math.cos(Math.PI * (v - size / 2) / size);
+			for (int u = 0; u < size; u++) {
+				double x = cv * Math.cos(Math.PI * (u - size / 2) / size);
+				h[v * size + u] = (float) ((1.0 - x) * (2.0 - x));
+			}
+		}
+		return MatBridge.toMat(new FloatProcessor(size, size, h));
+	}
+
+	private void swapQuadrants(Mat m) {
+		int h = size / 2;
+		Mat q0 = new Mat(m, new Rect(0, 0, h, h)), q1 = new Mat(m, new Rect(h, 0, h, h)),
+			q2 = new Mat(m, new Rect(0, h, h, h)), q3 = new Mat(m, new Rect(h, h, h, h));
+		Mat tmp = new Mat();
+		q0.copyTo(tmp);
+		q3.copyTo(q0);
+		tmp.copyTo(q3);
+		q1.copyTo(tmp);
+		q2.copyTo(q1);
+		tmp.copyTo(q2);
+		tmp.close();
+		q0.close();
+		q1.close();
+		q2.close();
+		q3.close();
+	}
+}
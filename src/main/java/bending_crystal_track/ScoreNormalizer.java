@@ -0,0 +1,66 @@
+package bending_crystal_track;
+
+/* Turns the cross-correlation term sum(T*I) into the score of one of the six matchTemplate methods.
+ * Window sums of the source image are taken from its summed-area tables (WindowStats),
+ * so only the cross term has to be computed for every template.
+ * The formulas and the treatment of flat (zero variance) windows follow OpenCV.
+ */
+final class ScoreNormalizer {
+
+	private ScoreNormalizer() {
+	}
+
+	// res holds resW*resH cross-correlation values summed over the channels, it is rewritten in place.
+	// src is not used by TM_CCORR (method 2), the callers do not build it then.
+	static void normalize(float[] res, int resW, int resH, WindowStats src, TemplateStats tpl, int method) {
+		if (method == 2) return; // TM_CCORR is the cross term itself
+
+		int tplW = tpl.width, tplH = tpl.height, channels = tpl.channels;
+		double tplSumSq = tpl.totalSumSq(), tplVariance = tpl.variance();
+		// the window sums are read from the tables at every position, nothing of the result size is allocated
+		double[] wndSum = new double[channels];
+		for (int y = 0; y < resH; y++)
+			for (int x = 0; x < resW; x++) {
+				int i = y * resW + x;
+				for (int ch = 0; ch < channels; ch++) wndSum[ch] = src.sum(ch, x, y, tplW, tplH);
+				res[i] = (float) score(res[i], wndSum, src.sumSq(x, y, tplW, tplH), tpl, tplSumSq, tplVariance, method);
+			}
+	}
+
+	// score of the method from the cross term, the sums of the source window per channel and its sum of squares
+	static double score(double cross, double[] wndSum, double wndSumSq, TemplateStats tpl, int method) {
+		return score(cross, wndSum, wndSumSq, tpl, tpl.totalSumSq(), tpl.variance(), method);
+	}
+
+	private static double score(double cross, double[] wndSum, double wndSumSq, TemplateStats tpl, double tplSumSq, double tplVariance, int method) {
+		double n = tpl.size();
+		double meanTerm = 0.0, wndMean2 = 0.0;
+		for (int ch = 0; ch < tpl.channels; ch++) {
+			meanTerm += wndSum[ch] * tpl.sum[ch] / n;
+			wndMean2 += wndSum[ch] * wndSum[ch] / n;
+		}
+		double num = cross, t;
+		switch (method) {
+		case 0: // TM_SQDIFF
+			return Math.max(wndSumSq - 2.0 * cross + tplSumSq, 0.0);
+		case 1: // TM_SQDIFF_NORMED
+			num = wndSumSq - 2.0 * cross + tplSumSq;
+			t = Math.sqrt(Math.max(wndSumSq, 0.0) * tplSumSq);
+			break;
+		case 3: // TM_CCORR_NORMED
+			t = Math.sqrt(Math.max(wndSumSq, 0.0) * tplSumSq);
+			break;
+		case 4: // TM_CCOEFF
+			return cross - meanTerm;
+		case 5: // TM_CCOEFF_NORMED
+			num = cross - meanTerm;
+			t = Math.sqrt(Math.max(wndSumSq - wndMean2, 0.0) * Math.max(tplVariance, 0.0));
+			break;
+		default:
+			return cross;
+		}
+		if (Math.abs(num) < t) return num / t;
+		if (Math.abs(num) < t * 1.125) return num > 0 ? 1.0 : -1.0;
+		return method != 1 ? 0.0 : 1.0;
+	}
+}
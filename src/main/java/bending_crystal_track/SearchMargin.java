@@ -0,0 +1,83 @@
+package bending_crystal_track;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/* Adaptive margin of the search window of one tracked region.
+ * The margin follows the largest offset of the found position from the expected one over the last frames,
+ * so it shrinks when the region hardly moves (as the holder) and stays large for a fast free end.
+ * It grows in steps when the region was found only by a retry with a larger window, or when the match score
+ * gets unusually close to the failure threshold. It never leaves the range [MIN_MARGIN, maxMargin].
+ */
+final class SearchMargin {
+
+	static final int MIN_MARGIN = 4, HISTORY = 8;
+	static final double GROWTH = 1.5, SAFETY = 2.0;
+	// a deviation above this part of the threshold (or far above the usual one) is a weak match
+	static final double WEAK_MATCH = 0.7;
+
+	private int margin, maxMargin;
+	private final double[] offsets = new double[HISTORY];
+	private int frames;
+	// running mean and variance of the score deviation relative to the threshold
+	private double meanDeviation, varDeviation;
+
+	void reset(int initialMargin, int maxMargin) {
+		this.maxMargin = Math.max(MIN_MARGIN, maxMargin);
+		margin = Math.max(MIN_MARGIN, Math.min(initialMargin, this.maxMargin));
+		frames = 0;
+		meanDeviation = 0.0;
+		varDeviation = 0.0;
+	}
+
+	int margin() {
+		return margin;
+	}
+
+	// the next larger margin
+	int grow(int m) {
+		return (int) Math.min(maxMargin, Math.max(m + MIN_MARGIN, Math.ceil(m * GROWTH)));
+	}
+
+	// offset: distance (pixels) of the found position from the expected one,
+	// foundMargin: margin of the window where the region was found (larger than margin() after a retry),
+	// deviation: score deviation divided by the failure threshold (0 is the ideal match, 1 is the limit)
+	void update(double offset, int foundMargin, double deviation) {
+		offsets[frames % HISTORY] = offset;
+		frames++;
+		double largest = 0.0;
+		for (int i = 0; i < Math.min(frames, HISTORY); i++) largest = Math.max(largest, offsets[i]);
+		int target = (int) Math.min(maxMargin, Math.ceil(SAFETY * largest) + MIN_MARGIN);
+
+		boolean weak = deviation > WEAK_MATCH
+				|| (frames > HISTORY && deviation > meanDeviation + 3.0 * Math.sqrt(varDeviation));
+		double d = deviation - meanDeviation, rate = 1.0 / Math.min(frames, HISTORY);
+		meanDeviation += rate * d;
+		varDeviation = (1.0 - rate) * (varDeviation + rate * d * d);
+
+		if (foundMargin > margin) margin = Math.min(foundMargin, maxMargin);
+		else if (weak) margin = grow(margin);
+		else if (target < margin) margin = Math.max(target, margin - Math.max(1, margin / 4));
+		while (margin < target) margin = grow(margin);
+	}
+
+	// the state for a checkpoint of the tracking
+	void write(DataOutput out) throws IOException {
+		out.writeInt(margin);
+		out.writeInt(maxMargin);
+		out.writeInt(frames);
+		for (double offset : offsets) out.writeDouble(offset);
+		out.writeDouble(meanDeviation);
+		out.writeDouble(varDeviation);
+	}
+
+	void read(DataInput in) throws IOException {
+		margin = in.readInt();
+		maxMargin = in.readInt();
+		frames = in.readInt();
+		for (int i = 0; i < HISTORY; i++) offsets[i] = in.readDouble();
+		meanDeviation = in.readDouble();
+		varDeviation = in.readDouble();
+	}
+}
@@ -0,0 +1,170 @@
+package bending_crystal_track;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* Columns of doubles (time, curvature, deformation...) appended frame by frame, one row per frame.
+ * The values are kept in chunks of primitive arrays: nothing is boxed and a growing series never copies
+ * what it has. The minimum and the maximum of every column are kept as the rows come.
+ * For very long runs the full chunks can be moved to a memory-mapped temporary file, then only the chunk
+ * being filled stays on the heap.
+ * The store may be filled by one thread and read by another.
+ */
+final class SeriesStore {
+
+	static final int CHUNK = 4096;
+	// longer series are worth keeping in a file
+	static final int SPILL_ROWS = 100000;
+
+	private final int columns;
+	// chunk[column][row], the full ones and the one being filled
+	private final ArrayList<double[][]> chunks = new ArrayList<double[][]>();
+	// the full chunks in the file, column after column like on the heap
+	private final ArrayList<DoubleBuffer> mapped = new ArrayList<DoubleBuffer>();
+	private final double[] min, max;
+	private int size;
+	private File file;
+	private RandomAccessFile raf;
+	private boolean spilling;
+
+	SeriesStore(int columns) {
+		this.columns = columns;
+		min = new double[columns];
+		max = new double[columns];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+
+	// the full chunks are kept in a temporary file in the directory (the default temporary directory if null)
+	SeriesStore(int columns, File directory) throws IOException {
+		this(columns);
+		file = File.createTempFile("BendingCrystalTrack", ".series", directory);
+		file.deleteOnExit();
+		raf = new RandomAccessFile(file, "rw");
+		spilling = true;
+	}
+
+	synchronized void append(double... values) {
+		int row = size % CHUNK;
+		if (row == 0) chunks.add(new double[columns][CHUNK]);
+		double[][] chunk = chunks.get(chunks.size() - 1);
+		for (int c = 0; c < columns; c++) {
+			chunk[c][row] = values[c];
+			track(c, values[c]);
+		}
+		size++;
+		if (spilling && size % CHUNK == 0) spill(chunk);
+	}
+
+	// a value replaced keeps the limits it has widened
+	synchronized void set(int row, int column, double value) {
+		if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+		int c = row / CHUNK;
+		if (c < mapped.size()) mapped.get(c).put(column * CHUNK + row % CHUNK, value);
+		else chunks.get(c - mapped.size())[column][row % CHUNK] = value;
+		track(column, value);
+	}
+
+	synchronized double get(int row, int column) {
+		if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+		int c = row / CHUNK;
+		if (c < mapped.size()) return mapped.get(c).get(column * CHUNK + row % CHUNK);
+		return chunks.get(c - mapped.size())[column][row % CHUNK];
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	// NaN for an empty series
+	synchronized double min(int column) {
+		return size == 0 ? Double.NaN : min[column];
+	}
+
+	synchronized double max(int column) {
+		return size == 0 ? Double.NaN : max[column];
+	}
+
+	// a copy of the column as it is now, for the plots
+	synchronized double[] column(int column) {
+		double[] values = new double[size];
+		int pos = 0;
+		for (DoubleBuffer b : mapped) {
+			DoubleBuffer part = b.duplicate();
+			part.position(column * CHUNK);
+			part.get(values, pos, CHUNK);
+			pos += CHUNK;
+		}
+		for (double[][] chunk : chunks) {
+			int n = Math.min(CHUNK, size - pos);
+			System.arraycopy(chunk[column], 0, values, pos, n);
+			pos += n;
+		}
+		return values;
+	}
+
+	// copies of all the columns with the same number of rows
+	synchronized double[][] snapshot() {
+		double[][] values = new double[columns][];
+		for (int c = 0; c < columns; c++) values[c] = column(c);
+		return values;
+	}
+
+	// the last row with the value in the column, -1 if there is none
+	synchronized int lastIndexOf(int column, double value) {
+		for (int row = size - 1; row >= 0; row--)
+			if (get(row, column) == value) return row;
+		return -1;
+	}
+
+	// the values above the given one in the column are lowered by one (the slices after a deleted one)
+	synchronized void decrementAbove(int column, double value) {
+		for (int row = 0; row < size; row++) {
+			double v = get(row, column);
+			if (v > value) set(row, column, v - 1);
+		}
+	}
+
+	// the temporary file is deleted
+	synchronized void close() {
+		if (raf == null) return;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// nothing is written any more
+		}
+		raf = null;
+		spilling = false;
+		mapped.clear();
+		file.delete();
+	}
+
+	private void track(int column, double value) {
+		if (value < min[column]) min[column] = value;
+		if (value > max[column]) max[column] = value;
+	}
+
+	// the full chunk goes to the file, if the file cannot take it the next chunks stay on the heap
+	private void spill(double[][] chunk) {
+		long bytes = (long) columns * CHUNK * Double.BYTES;
+		try {
+			DoubleBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, mapped.size() * bytes, bytes)
+					.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			for (int c = 0; c < columns; c++) {
+				b.position(c * CHUNK);
+				b.put(chunk[c]);
+			}
+			b.clear();
+			mapped.add(b);
+			chunks.remove(chunks.size() - 1);
+		} catch (IOException e) {
+			spilling = false;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.DoubleSupplier;
+
+/* Template match of one region started on the worker pool before it is known to be needed.
+ * The template is taken from the bank at the expected angle and matched over the whole search window,
+ * the scores stay in the surface of the workspace. The tracker takes the result if the angle it
+ * finally needs is served by the same template, otherwise the result is dropped.
+ * The workspace (and the window) belongs to the task until join() or finish() returns.
+ */
+final class SpeculativeMatch {
+
+	TemplateBank.Entry entry;
+	double[] coord_res;
+	private final FutureTask<SpeculativeMatch> task;
+	// set by the thread that matches, a match dropped before is never run
+	private final AtomicBoolean claimed = new AtomicBoolean();
+
+	private SpeculativeMatch(final TemplateBank bank, final DoubleSupplier angle, final ImageProcessor window,
+			final int method, final boolean subPix, final MatchWorkspace ws) {
+		task = new FutureTask<SpeculativeMatch>(() -> {
+			if (!claimed.compareAndSet(false, true)) return this;
+			entry = bank.get(angle.getAsDouble());
+			coord_res = TemplateMatcher.doMatch_coord_res(window, entry.template.getProcessor(), method, subPix, null, ws);
+			return this;
+		});
+	}
+
+	// angle is evaluated by the task, so a costly estimate of it runs in parallel as well
+	static SpeculativeMatch start(ExecutorService pool, TemplateBank bank, DoubleSupplier angle, ImageProcessor window,
+			int method, boolean subPix, MatchWorkspace ws) {
+		SpeculativeMatch match = new SpeculativeMatch(bank, angle, window, method, subPix, ws);
+		pool.execute(match.task);
+		return match;
+	}
+
+	// The finished match. If no worker has started it yet, it runs here (so a busy pool never blocks the tracker).
+	SpeculativeMatch join() {
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	// The result is not needed: a match not started yet is cancelled, a running one is waited for,
+	// so the workspace is free again when this returns
+	void finish() {
+		if (claimed.compareAndSet(false, true)) {
+			task.cancel(false);
+			return;
+		}
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | CancellationException e) {
+			// the result is dropped anyway
+		}
+	}
+}
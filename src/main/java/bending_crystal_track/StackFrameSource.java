@@ -0,0 +1,76 @@
+package bending_crystal_track;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+
+import java.io.File;
+import java.time.Instant;
+
+/* Frames of an image stack. The slices of an image sequence are the files of the directory, they are dated
+ * by the EXIF data. The slices of a video stack are labelled with their time stamps ("12.345 s"), or are
+ * dated from the frame rate if the time stamps are not used.
+ */
+public final class StackFrameSource implements FrameSource {
+
+	private final ImageStack stack;
+	private final String directory;
+	private final boolean video, useTimeStamps;
+	private final double frameRate;
+
+	// an image sequence in the directory
+	public StackFrameSource(ImageStack stack, String directory) {
+		this(stack, directory, false, false, 1.0);
+	}
+
+	public StackFrameSource(ImageStack stack, String directory, boolean video, boolean useTimeStamps, double frameRate) {
+		this.stack = stack;
+		this.directory = directory == null ? "" : directory;
+		this.video = video;
+		this.useTimeStamps = useTimeStamps;
+		this.frameRate = frameRate;
+	}
+
+	@Override
+	public int size() {
+		return stack.getSize();
+	}
+
+	@Override
+	public ImageProcessor frame(int n) {
+		return stack.getProcessor(n);
+	}
+
+	@Override
+	public String label(int n) {
+		return stack.getSliceLabel(n);
+	}
+
+	@Override
+	public Instant shotTime(int n) {
+		if (video) {
+			if (!useTimeStamps) return Instant.ofEpochSecond(0L, Math.round(1000000000.0*(n - 1)/frameRate));
+			try {
+				long timeStampMicroSec = Math.round(Double.parseDouble(stack.getSliceLabel(n).replaceAll(" s", ""))*1000000);
+				return Instant.ofEpochSecond(0L, timeStampMicroSec*1000L);
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+		return exifTime(new File(directory + stack.getSliceLabel(n)));
+	}
+
+	// the creation time of the image taken from the EXIF metadata, null if there is none
+	static Instant exifTime(File file) {
+		try {
+			Metadata metadata = ImageMetadataReader.readMetadata(file);
+			ExifSubIFDDirectory md_directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+			return md_directory.getDateOriginal().toInstant();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package bending_crystal_track;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/* Rotated and cropped copies of a reference template.
+ * Rotation angles are quantized with a given step, every quantized angle is rotated (bicubic) only once
+ * and the result is kept in a LRU cache of limited size. Since the bending angle changes slowly
+ * between the frames almost every request is served from the cache.
+ * Entries are built lazily by the caller or in advance (prewarm) by a thread pool.
+ */
+final class TemplateBank {
+
+	static final class Entry {
+		final double angle;				// rotation angle actually applied, degrees
+		final ImagePlus template;		// rotated and cropped template
+		final double idealScore;		// self-match score of the template
+
+		Entry(double angle, ImagePlus template, double idealScore) {
+			this.angle = angle;
+			this.template = template;
+			this.idealScore = idealScore;
+		}
+	}
+
+	private final ImageProcessor reference;
+	private final Rectangle cropRect;
+	private final double step;
+	private final int idealMethod;
+	private final Map<Long, FutureTask<Entry>> cache;
+
+	// step<=0 disables the quantization and the cache, every template is rotated exactly
+	TemplateBank(ImagePlus reference, Roi cropRoi, double step, final int capacity, int idealMethod) {
+		this.reference = reference.getProcessor();
+		this.cropRect = cropRoi.getBounds();
+		this.step = step;
+		this.idealMethod = idealMethod;
+		cache = new LinkedHashMap<Long, FutureTask<Entry>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, FutureTask<TemplateBank.Entry>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	Entry get(double angle) {
+		if (step <= 0.0) return build(angle);
+
+		long key = Math.round(angle / step);
+		FutureTask<Entry> task;
+		synchronized (cache) {
+			task = cache.get(key);
+			if (task == null) {
+				task = newTask(key);
+				cache.put(key, task);
+			}
+		}
+		// a new entry is built here, a prewarmed one still waiting in the pool too (run() does nothing
+		// if the task is done or running in another thread), so the caller never waits for a busy pool
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return build(key * step);
+		} catch (ExecutionException e) {
+			synchronized (cache) {
+				cache.remove(key);
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	// true if both angles are served by the same entry
+	boolean sameTemplate(double angle1, double angle2) {
+		if (step <= 0.0) return angle1 == angle2;
+		return Math.round(angle1 / step) == Math.round(angle2 / step);
+	}
+
+	// Starts building of the missing entries within +-range steps around the angle
+	void prewarm(double angle, int range, ExecutorService pool) {
+		if (step <= 0.0 || pool == null) return;
+		long center = Math.round(angle / step);
+		for (int i = 1; i <= range; i++) {
+			prewarmKey(center + i, pool);
+			prewarmKey(center - i, pool);
+		}
+	}
+
+	private void prewarmKey(long key, ExecutorService pool) {
+		FutureTask<Entry> task;
+		synchronized (cache) {
+			if (cache.containsKey(key)) return;
+			task = newTask(key);
+			cache.put(key, task);
+		}
+		pool.execute(task);
+	}
+
+	void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private FutureTask<Entry> newTask(final long key) {
+		return new FutureTask<Entry>(() -> build(key * step));
+	}
+
+	// works on a copy of the reference processor only, so it is safe to call from several threads
+	private Entry build(double angle) {
+		ImageProcessor tpl_ip = reference.duplicate();
+		tpl_ip.setInterpolationMethod(ImageProcessor.BICUBIC);
+		tpl_ip.rotate(angle);
+		tpl_ip.setRoi(cropRect);
+		tpl_ip = tpl_ip.crop();
+		return new Entry(angle, new ImagePlus("", tpl_ip), TemplateStats.idealScore(tpl_ip, idealMethod));
+	}
+}
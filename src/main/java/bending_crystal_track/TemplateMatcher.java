@@ -0,0 +1,120 @@
+package bending_crystal_track;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_32FC1;
+import static org.bytedeco.opencv.global.opencv_imgproc.TM_CCORR;
+import static org.bytedeco.opencv.global.opencv_imgproc.matchTemplate;
+
+/* The template matching of the tracked regions: a template is searched in a window (or along a line
+ * in it) with the backend of the workspace, the best position is returned with its score.
+ * The modes of the recovery of a lost region and of the estimate of the rotation of the free end
+ * are chosen by the configuration of a run.
+ */
+public final class TemplateMatcher {
+
+	static final String[] matchMethods = {"Square difference", "Normalized square difference", "Cross correlation", "Normalized cross correlation", "Correlation coefficient", "Normalized correlation coefficient"};
+	static final int RECOVERY_DOUBLING = 0, RECOVERY_PYRAMID4 = 1, RECOVERY_PYRAMID8 = 2;
+	static final int ROTATION_ITERATIVE = 0, ROTATION_FOURIER_MELLIN = 1;
+
+	private TemplateMatcher() {
+	}
+
+    public static double[]  doMatch_coord_res(ImageProcessor src, ImageProcessor tpl, int method, boolean subPix, double[] searchLine) {
+    	MatchWorkspace ws = new MatchWorkspace();
+    	try {
+    		return doMatch_coord_res(src, tpl, method, subPix, searchLine, ws);
+    	} finally {
+    		ws.release();
+    	}
+    }
+
+    static double[]  doMatch_coord_res(ImageProcessor src, ImageProcessor tpl, int method, boolean subPix, double[] searchLine, MatchWorkspace ws) {
+
+        int srcW = src.getWidth();
+        int srcH = src.getHeight();
+        int tplW = tpl.getWidth();
+        int tplH = tpl.getHeight();
+        // the middle part is searched along the normal line only, the scores are computed on the line
+        if (searchLine!=null && !(searchLine[2]==0.0 && searchLine[3]==0.0))
+        	return LineMatcher.match(src, tpl, method, subPix, searchLine, ws);
+
+        MatchSurface surface = ws.surface.resize(srcW - tplW + 1, srcH - tplH + 1);
+
+        //CV_TM_SQDIFF        = 0,
+        //CV_TM_SQDIFF_NORMED = 1,
+        //CV_TM_CCORR         = 2,
+        //CV_TM_CCORR_NORMED  = 3,
+        //CV_TM_CCOEFF        = 4,
+        //CV_TM_CCOEFF_NORMED = 5;
+
+        if (ws.backend == MatchWorkspace.JAVA) JavaMatcher.match(src, tpl, method, surface, ws);
+        else matchOpenCV(src, tpl, method, surface, ws);
+
+        /////////////////// Searching matching position inside the search area
+        return surface.peak(method, subPix);
+    }
+
+    // Scores of the template matching by OpenCV, copied to the surface
+    private static void matchOpenCV(ImageProcessor src, ImageProcessor tpl, int method, MatchSurface surface, MatchWorkspace ws) {
+
+        if (!ws.loadNative(src, tpl)) IJ.error("Unsupported image type");
+        Mat sourceMat = ws.source, templateMat = ws.template;
+
+        Mat resMat = ws.result(surface.width, surface.height);
+
+        ///
+        /// This is the template matching function from the cv library
+        ///
+
+        //cvMatchTemplate(iplSrc, iplTpl, res, method);
+        if (FftCorrelator.use(ws.correlationMode, src, tpl)) {
+        	FftCorrelator.match(src, tpl, sourceMat, templateMat, resMat, method, ws);
+        	new FloatPointer(resMat.data()).get(surface.data, 0, surface.width * surface.height);
+        } else {
+        	// only the cross term depends on the template, the window sums are kept for the next templates
+        	matchTemplate(sourceMat, templateMat, resMat, TM_CCORR);
+        	new FloatPointer(resMat.data()).get(surface.data, 0, surface.width * surface.height);
+        	if (method != 2) ScoreNormalizer.normalize(surface.data, surface.width, surface.height, ws.windowStats(src), TemplateStats.of(tpl), method);
+        }
+    }
+
+    // The score of the template matched against itself. TemplateStats.idealScore gives the same value without matching.
+    public static double doMatch_test(ImageProcessor src, int method) {
+
+        Mat sourceMat = new Mat(), temp = new Mat();
+        Mat result = new Mat();
+
+    	switch (src.getBitDepth()) {
+
+    	            case 16:
+
+    	                MatBridge.toMat(src, temp).convertTo(sourceMat, CV_32FC1);
+    	                break;
+    	            case 32:
+    	            case 24:
+    	            case 8:
+
+    	                MatBridge.toMat(src, sourceMat);
+    	                break;
+    	            default:
+    	                IJ.error("Unsupported image type");
+    	                break;
+    	        }
+
+       matchTemplate(sourceMat, sourceMat, result, method);
+       FloatIndexer idx = result.createIndexer();
+       double res = idx.get(0);
+       idx.release();
+       sourceMat.close();
+       temp.close();
+       result.close();
+       return res;
+
+    }
+}
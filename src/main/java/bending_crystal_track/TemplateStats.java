@@ -0,0 +1,115 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+/* Pixel sums of a template, taken from the same values as the pixels passed to matchTemplate
+ * (16-bit images keep their raw values, RGB images are treated as three channels).
+ * The score of the template matched against itself is a closed-form function of these sums,
+ * so it is computed here instead of running matchTemplate of the template over itself.
+ */
+final class TemplateStats {
+
+	final int width, height, channels;
+	final double[] sum, sumSq;
+
+	private TemplateStats(int width, int height, int channels) {
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		sum = new double[channels];
+		sumSq = new double[channels];
+	}
+
+	static TemplateStats of(ImageProcessor tpl) {
+		Object pixels = tpl.getPixels();
+		TemplateStats st;
+		if (pixels instanceof int[]) {
+			st = new TemplateStats(tpl.getWidth(), tpl.getHeight(), 3);
+			int[] rgb = (int[]) pixels;
+			for (int i = 0; i < rgb.length; i++) {
+				int c = rgb[i];
+				for (int ch = 0; ch < 3; ch++) {
+					double v = (c >> (8 * ch)) & 0xff;
+					st.sum[ch] += v;
+					st.sumSq[ch] += v * v;
+				}
+			}
+			return st;
+		}
+		st = new TemplateStats(tpl.getWidth(), tpl.getHeight(), 1);
+		double s = 0.0, s2 = 0.0;
+		if (pixels instanceof float[]) {
+			float[] p = (float[]) pixels;
+			for (int i = 0; i < p.length; i++) {
+				double v = p[i];
+				s += v;
+				s2 += v * v;
+			}
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < p.length; i++) {
+				double v = p[i] & 0xffff;
+				s += v;
+				s2 += v * v;
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < p.length; i++) {
+				double v = p[i] & 0xff;
+				s += v;
+				s2 += v * v;
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported image type");
+		}
+		st.sum[0] = s;
+		st.sumSq[0] = s2;
+		return st;
+	}
+
+	int size() {
+		return width * height;
+	}
+
+	double totalSumSq() {
+		double s2 = 0.0;
+		for (int ch = 0; ch < channels; ch++) s2 += sumSq[ch];
+		return s2;
+	}
+
+	// sum of squared deviations from the mean, summed over the channels
+	double variance() {
+		double n = size(), v = 0.0;
+		for (int ch = 0; ch < channels; ch++)
+			v += sumSq[ch] - sum[ch] * sum[ch] / n;
+		return v;
+	}
+
+	// Value of the match score at the perfect match, i.e. of the template matched with itself
+	double idealScore(int method) {
+		switch (method) {
+		case 0: // TM_SQDIFF
+		case 1: // TM_SQDIFF_NORMED
+			return 0.0;
+		case 2: // TM_CCORR
+			return totalSumSq();
+		case 4: // TM_CCOEFF
+			return variance();
+		case 3: // TM_CCORR_NORMED
+		case 5: // TM_CCOEFF_NORMED
+		default:
+			return 1.0;
+		}
+	}
+
+	static double idealScore(ImageProcessor tpl, int method) {
+		switch (method) {
+		case 2:
+		case 4:
+			return of(tpl).idealScore(method);
+		default:
+			// the value does not depend on the pixels
+			return method == 0 || method == 1 ? 0.0 : 1.0;
+		}
+	}
+}
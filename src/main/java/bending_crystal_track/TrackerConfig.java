@@ -0,0 +1,228 @@
+package bending_crystal_track;
+
+import ij.Prefs;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/* Settings of a tracking run: the matching parameters (kept in the ImageJ preferences by the plugin)
+ * and the reference setup, i.e. the points selected on the free end, the attached end and the middle
+ * of the crystal and the rectangle around the holder edge in the reference frame.
+ * The mid point is not used for a crystal that is initially straight, the middle of the chord is taken then.
+ */
+public final class TrackerConfig {
+
+	// matching
+	public int method = 5, templSize = 300, sArea = 20;
+	public boolean subPixel = true, matchIntensity = true;
+	public double[] matchThreshold = new double[]{0.1, 0.1, 0.05, 0.05, 0.2, 0.2};
+	// automatic answer to the failed matches, null: the plugin asks the user (an engine skips the frame)
+	public FailurePolicy failurePolicy;
+	// performance
+	public double tplAngleStep = 0.05;
+	public int tplCacheSize = 64, prewarmRange = 2;
+	public boolean prewarmTemplates = true;
+	public int correlationMode = FftCorrelator.AUTO;
+	public int recoveryMode = TemplateMatcher.RECOVERY_DOUBLING;
+	public int rotationMode = TemplateMatcher.ROTATION_ITERATIVE;
+	public boolean motionPrediction = false, adaptiveSearch = false, parallelRegions = false;
+	public int prefetchFrames = 4, prefetchThreads = 1;
+	// refreshes of the views per second, 0: after every frame
+	public double displayRate = 5.0;
+	// the results written to the disk as they come: 0 or ResultsWriter.CSV and/or ResultsWriter.BINARY
+	public int resultsFiles = ResultsWriter.CSV;
+	// frames between the checkpoints of the tracking state, 0: no checkpoints
+	public int checkpointInterval = 200;
+	public int matchBackend = MatchWorkspace.OPENCV;
+	// time step (seconds) used when the frames have no time stamps
+	public double timeStep = 1.0;
+
+	// reference setup, in the pixels of the reference frame
+	public double freeX, freeY, attachedX, attachedY, midX, midY;
+	public boolean straight;
+	public Rectangle holderRect;
+	// file name of the reference frame in the sequence directory
+	public String referenceFrame;
+
+	// the setup saved in the directory of an image sequence, used by the batch runs
+	public static final String SETUP_FILE = "BendingCrystalTrack.setup";
+
+	// the settings saved by the plugin
+	public static TrackerConfig fromPrefs() {
+		TrackerConfig c = new TrackerConfig();
+		c.method = (int) Prefs.get("BendingCrystalTrack.method", 5);
+		c.templSize = (int) Prefs.get("BendingCrystalTrack.templSize", 300);
+		c.sArea = (int) Prefs.get("BendingCrystalTrack.sArea", 20);
+		c.subPixel = Prefs.get("BendingCrystalTrack.subPixel", true);
+		c.matchIntensity = Prefs.get("BendingCrystalTrack.matchIntensity", true);
+		c.failurePolicy = FailurePolicy.of(Prefs.get("BendingCrystalTrack.failurePolicy", ""));
+		c.tplAngleStep = Prefs.get("BendingCrystalTrack.tplAngleStep", 0.05);
+		c.tplCacheSize = (int) Prefs.get("BendingCrystalTrack.tplCacheSize", 64);
+		c.prewarmTemplates = Prefs.get("BendingCrystalTrack.prewarmTemplates", true);
+		c.correlationMode = (int) Prefs.get("BendingCrystalTrack.correlationMode", FftCorrelator.AUTO);
+		c.recoveryMode = (int) Prefs.get("BendingCrystalTrack.recoveryMode", TemplateMatcher.RECOVERY_DOUBLING);
+		c.rotationMode = (int) Prefs.get("BendingCrystalTrack.rotationMode", TemplateMatcher.ROTATION_ITERATIVE);
+		c.matchBackend = (int) Prefs.get("BendingCrystalTrack.matchBackend", MatchWorkspace.OPENCV);
+		c.motionPrediction = Prefs.get("BendingCrystalTrack.motionPrediction", false);
+		c.prefetchFrames = (int) Prefs.get("BendingCrystalTrack.prefetchFrames", 4);
+		c.prefetchThreads = (int) Prefs.get("BendingCrystalTrack.prefetchThreads", 1);
+		c.displayRate = Prefs.get("BendingCrystalTrack.displayRate", 5.0);
+		c.resultsFiles = (int) Prefs.get("BendingCrystalTrack.resultsFiles", ResultsWriter.CSV);
+		c.checkpointInterval = (int) Prefs.get("BendingCrystalTrack.checkpointInterval", 200);
+		c.parallelRegions = Prefs.get("BendingCrystalTrack.parallelRegions", false);
+		c.adaptiveSearch = Prefs.get("BendingCrystalTrack.adaptiveSearch", false);
+		return c;
+	}
+
+	public void saveMatchingPrefs() {
+		Prefs.set("BendingCrystalTrack.method", method);
+		Prefs.set("BendingCrystalTrack.templSize", templSize);
+		Prefs.set("BendingCrystalTrack.sArea", sArea);
+		Prefs.set("BendingCrystalTrack.subPixel", subPixel);
+		Prefs.set("BendingCrystalTrack.matchIntensity", matchIntensity);
+		Prefs.set("BendingCrystalTrack.failurePolicy", failurePolicy == null ? "" : failurePolicy.name());
+	}
+
+	public void savePerformancePrefs() {
+		Prefs.set("BendingCrystalTrack.tplAngleStep", tplAngleStep);
+		Prefs.set("BendingCrystalTrack.tplCacheSize", tplCacheSize);
+		Prefs.set("BendingCrystalTrack.prewarmTemplates", prewarmTemplates);
+		Prefs.set("BendingCrystalTrack.correlationMode", correlationMode);
+		Prefs.set("BendingCrystalTrack.recoveryMode", recoveryMode);
+		Prefs.set("BendingCrystalTrack.rotationMode", rotationMode);
+		Prefs.set("BendingCrystalTrack.motionPrediction", motionPrediction);
+		Prefs.set("BendingCrystalTrack.adaptiveSearch", adaptiveSearch);
+		Prefs.set("BendingCrystalTrack.parallelRegions", parallelRegions);
+		Prefs.set("BendingCrystalTrack.prefetchFrames", prefetchFrames);
+		Prefs.set("BendingCrystalTrack.prefetchThreads", prefetchThreads);
+		Prefs.set("BendingCrystalTrack.displayRate", displayRate);
+		Prefs.set("BendingCrystalTrack.resultsFiles", resultsFiles);
+		Prefs.set("BendingCrystalTrack.checkpointInterval", checkpointInterval);
+		Prefs.set("BendingCrystalTrack.matchBackend", matchBackend);
+	}
+
+	// The whole configuration as a properties file (the keys are the names of the fields)
+	public void save(File file) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("method", Integer.toString(method));
+		p.setProperty("templSize", Integer.toString(templSize));
+		p.setProperty("sArea", Integer.toString(sArea));
+		p.setProperty("subPixel", Boolean.toString(subPixel));
+		p.setProperty("matchIntensity", Boolean.toString(matchIntensity));
+		StringBuilder thresholds = new StringBuilder();
+		for (int i = 0; i < matchThreshold.length; i++) thresholds.append(i == 0 ? "" : ",").append(matchThreshold[i]);
+		p.setProperty("matchThreshold", thresholds.toString());
+		if (failurePolicy != null) p.setProperty("failurePolicy", failurePolicy.name());
+		p.setProperty("tplAngleStep", Double.toString(tplAngleStep));
+		p.setProperty("tplCacheSize", Integer.toString(tplCacheSize));
+		p.setProperty("prewarmRange", Integer.toString(prewarmRange));
+		p.setProperty("prewarmTemplates", Boolean.toString(prewarmTemplates));
+		p.setProperty("correlationMode", Integer.toString(correlationMode));
+		p.setProperty("recoveryMode", Integer.toString(recoveryMode));
+		p.setProperty("rotationMode", Integer.toString(rotationMode));
+		p.setProperty("motionPrediction", Boolean.toString(motionPrediction));
+		p.setProperty("adaptiveSearch", Boolean.toString(adaptiveSearch));
+		p.setProperty("parallelRegions", Boolean.toString(parallelRegions));
+		p.setProperty("prefetchFrames", Integer.toString(prefetchFrames));
+		p.setProperty("prefetchThreads", Integer.toString(prefetchThreads));
+		p.setProperty("displayRate", Double.toString(displayRate));
+		p.setProperty("resultsFiles", Integer.toString(resultsFiles));
+		p.setProperty("checkpointInterval", Integer.toString(checkpointInterval));
+		p.setProperty("matchBackend", Integer.toString(matchBackend));
+		p.setProperty("timeStep", Double.toString(timeStep));
+		p.setProperty("freeX", Double.toString(freeX));
+		p.setProperty("freeY", Double.toString(freeY));
+		p.setProperty("attachedX", Double.toString(attachedX));
+		p.setProperty("attachedY", Double.toString(attachedY));
+		p.setProperty("midX", Double.toString(midX));
+		p.setProperty("midY", Double.toString(midY));
+		p.setProperty("straight", Boolean.toString(straight));
+		if (holderRect != null)
+			p.setProperty("holderRect", holderRect.x + "," + holderRect.y + "," + holderRect.width + "," + holderRect.height);
+		if (referenceFrame != null) p.setProperty("referenceFrame", referenceFrame);
+		try (OutputStream out = new FileOutputStream(file)) {
+			p.store(out, "Bending Crystal Track setup");
+		}
+	}
+
+	// the missing keys keep the defaults, a malformed value is an IOException
+	public static TrackerConfig load(File file) throws IOException {
+		Properties p = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			p.load(in);
+		}
+		TrackerConfig c = new TrackerConfig();
+		try {
+			c.method = Integer.parseInt(p.getProperty("method", Integer.toString(c.method)));
+			c.templSize = Integer.parseInt(p.getProperty("templSize", Integer.toString(c.templSize)));
+			c.sArea = Integer.parseInt(p.getProperty("sArea", Integer.toString(c.sArea)));
+			c.subPixel = Boolean.parseBoolean(p.getProperty("subPixel", Boolean.toString(c.subPixel)));
+			c.matchIntensity = Boolean.parseBoolean(p.getProperty("matchIntensity", Boolean.toString(c.matchIntensity)));
+			String thresholds = p.getProperty("matchThreshold");
+			if (thresholds != null) {
+				String[] values = thresholds.split(",");
+				for (int i = 0; i < Math.min(values.length, c.matchThreshold.length); i++)
+					c.matchThreshold[i] = Double.parseDouble(values[i].trim());
+			}
+			c.failurePolicy = FailurePolicy.of(p.getProperty("failurePolicy"));
+			c.tplAngleStep = Double.parseDouble(p.getProperty("tplAngleStep", Double.toString(c.tplAngleStep)));
+			c.tplCacheSize = Integer.parseInt(p.getProperty("tplCacheSize", Integer.toString(c.tplCacheSize)));
+			c.prewarmRange = Integer.parseInt(p.getProperty("prewarmRange", Integer.toString(c.prewarmRange)));
+			c.prewarmTemplates = Boolean.parseBoolean(p.getProperty("prewarmTemplates", Boolean.toString(c.prewarmTemplates)));
+			c.correlationMode = Integer.parseInt(p.getProperty("correlationMode", Integer.toString(c.correlationMode)));
+			c.recoveryMode = Integer.parseInt(p.getProperty("recoveryMode", Integer.toString(c.recoveryMode)));
+			c.rotationMode = Integer.parseInt(p.getProperty("rotationMode", Integer.toString(c.rotationMode)));
+			c.motionPrediction = Boolean.parseBoolean(p.getProperty("motionPrediction", Boolean.toString(c.motionPrediction)));
+			c.adaptiveSearch = Boolean.parseBoolean(p.getProperty("adaptiveSearch", Boolean.toString(c.adaptiveSearch)));
+			c.parallelRegions = Boolean.parseBoolean(p.getProperty("parallelRegions", Boolean.toString(c.parallelRegions)));
+			c.prefetchFrames = Integer.parseInt(p.getProperty("prefetchFrames", Integer.toString(c.prefetchFrames)));
+			c.prefetchThreads = Integer.parseInt(p.getProperty("prefetchThreads", Integer.toString(c.prefetchThreads)));
+			c.displayRate = Double.parseDouble(p.getProperty("displayRate", Double.toString(c.displayRate)));
+			c.resultsFiles = Integer.parseInt(p.getProperty("resultsFiles", Integer.toString(c.resultsFiles)));
+			c.checkpointInterval = Integer.parseInt(p.getProperty("checkpointInterval", Integer.toString(c.checkpointInterval)));
+			c.matchBackend = Integer.parseInt(p.getProperty("matchBackend", Integer.toString(c.matchBackend)));
+			c.timeStep = Double.parseDouble(p.getProperty("timeStep", Double.toString(c.timeStep)));
+			c.freeX = Double.parseDouble(p.getProperty("freeX", "0"));
+			c.freeY = Double.parseDouble(p.getProperty("freeY", "0"));
+			c.attachedX = Double.parseDouble(p.getProperty("attachedX", "0"));
+			c.attachedY = Double.parseDouble(p.getProperty("attachedY", "0"));
+			c.midX = Double.parseDouble(p.getProperty("midX", "0"));
+			c.midY = Double.parseDouble(p.getProperty("midY", "0"));
+			c.straight = Boolean.parseBoolean(p.getProperty("straight", "false"));
+			String rect = p.getProperty("holderRect");
+			if (rect != null) {
+				String[] v = rect.split(",");
+				c.holderRect = new Rectangle(Integer.parseInt(v[0].trim()), Integer.parseInt(v[1].trim()),
+						Integer.parseInt(v[2].trim()), Integer.parseInt(v[3].trim()));
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid setup " + file + ": " + e.getMessage(), e);
+		}
+		c.referenceFrame = p.getProperty("referenceFrame");
+		return c;
+	}
+
+	// the reference points and the holder rectangle of the other setup
+	void copyPoints(TrackerConfig c) {
+		freeX = c.freeX;
+		freeY = c.freeY;
+		attachedX = c.attachedX;
+		attachedY = c.attachedY;
+		midX = c.midX;
+		midY = c.midY;
+		straight = c.straight;
+		holderRect = c.holderRect != null ? new Rectangle(c.holderRect) : null;
+	}
+
+	boolean samePoints(TrackerConfig c) {
+		return freeX == c.freeX && freeY == c.freeY && attachedX == c.attachedX && attachedY == c.attachedY
+				&& midX == c.midX && midY == c.midY && straight == c.straight
+				&& (holderRect == null ? c.holderRect == null : holderRect.equals(c.holderRect));
+	}
+}
@@ -0,0 +1,1478 @@
+package bending_crystal_track;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static bending_crystal_track.TemplateMatcher.RECOVERY_DOUBLING;
+import static bending_crystal_track.TemplateMatcher.RECOVERY_PYRAMID8;
+import static bending_crystal_track.TemplateMatcher.doMatch_coord_res;
+
+/* Tracking of the crystal without any user interface.
+ * The engine is set up with a configuration (the matching parameters and the points selected in the reference
+ * frame) and reads the frames from a frame source. Every tracked frame is reported to the listener, a region
+ * that is not found is handed to the failure handler (the policy of the configuration, by default the frame is
+ * skipped), the frames the policy puts aside can be analyzed again afterwards. Dialogs, overlays, tables and plots are left to the
+ * clients (the plugin draws them from the results), so the engine runs headless and several engines can
+ * run in one JVM.
+ * An engine and its frames are used by one thread at a time, the worker pool may be shared by several engines.
+ */
+public final class TrackerEngine {
+
+	// results of track()
+	public static final int TRACKED = 0, SKIPPED = 1, STOPPED = 2, RESELECT = 3;
+	// regions given to the failure handler
+	public static final int HOLDER = 0, FREE_END = 1, MIDDLE = 2;
+
+	final TrackerConfig config;
+	final FrameSource source;
+	private TrackerListener listener;
+	private FailureHandler failureHandler;
+	private volatile boolean stopRequested;
+	// the frames flagged by the failure policy, and the positions of the tracked frames (with their time)
+	// a flagged frame is analyzed again from: the frames before the flagged ones and the last one
+	final ReviewQueue review = new ReviewQueue();
+	final TreeMap<Integer, double[]> tracked_positions = new TreeMap<Integer, double[]>();
+	int lastFlagged;
+	private boolean reviewing;
+	// the state is saved to the checkpoint file every checkpointInterval frames, a copy of it is written by
+	// a thread of its own while the tracking goes on
+	private File checkpointFile;
+	private int checkpointInterval, checkpointSlice;
+	private volatile IOException checkpointError;
+	private ExecutorService checkpointWriter;
+	private Future<?> checkpointWrite;
+	// rotation of the templates tried by the global re-search, degrees each side of the expected angle
+	static final double RESEARCH_ANGLE = 10.0;
+	static final int RESEARCH_STEPS = 5;
+
+	int method, refSlice, sArea, templSize;
+	boolean subPixel, matchIntensity;
+	double[] matchThreshold;
+	double tplAngleStep;
+	int tplCacheSize, prewarmRange;
+	boolean prewarmTemplates;
+	int recoveryMode, rotationMode, matchBackend;
+	boolean motionPrediction, adaptiveSearch, parallelRegions;
+	double seconds=0, timeStep;
+	Instant first_shot_time;
+	boolean exifTime=true;
+
+	ImagePlus free_ref, free_tpl, holder_ref, mid_ref, mid_tpl;
+	GaussianBlur gaussianBlur = new GaussianBlur();
+	Rectangle free_rect, holder_rect, mid_rect;
+	Roi refCropRoi, mid_refCropRoi;
+	int width, height, refBitDepth;
+	double refX_free, refY_free, refX_att, refY_att, refX_mid, refY_mid;
+	double freeRefCenterShiftX, freeRefCenterShiftY, midRefCenterShiftX, midRefCenterShiftY;
+	double disX_free, disY_free, disX_holder, disY_holder, disX_mid, disY_mid;
+	double length_ini=0.0, cr_length, hord_ini,
+		   curvature_ini, curvature,
+		   bending_angle_ini, bending_angle,
+		   deflection_angle_ini, deflection_angle,
+		   full_angle, full_angle_ini,
+		   initial_angle,
+		   deformation=0.0, last_deformation=0.0;
+	double h0_x,h0_y;
+	double free_mideal, att_mideal, mid_mideal;
+	// scores of the last frame and its search windows
+	double holder_score, free_score, mid_score;
+	final Rectangle holder_window = new Rectangle(), free_window = new Rectangle(), mid_window = new Rectangle();
+
+	MatchWorkspace holder_ws, free_ws, mid_ws;
+	TemplateBank free_bank, mid_bank;
+	RotationEstimator free_rotation;
+	final MotionPredictor holder_motion = new MotionPredictor(), free_motion = new MotionPredictor(), mid_motion = new MotionPredictor();
+	final SearchMargin holder_margin = new SearchMargin(), free_margin = new SearchMargin(), mid_margin = new SearchMargin();
+	final BlurredFrame blurred_frame = new BlurredFrame();
+	SpeculativeMatch free_spec, mid_spec;
+	final ExecutorService workerPool;
+	private final boolean ownPool;
+
+	public TrackerEngine(TrackerConfig config, FrameSource source) {
+		this(config, source, null);
+	}
+
+	// pool: the worker pool for the templates prepared in advance and the parallel matching,
+	// a pool of its own is started if it is null
+	public TrackerEngine(TrackerConfig config, FrameSource source, ExecutorService pool) {
+		this.config = config;
+		this.source = source;
+		method = config.method;
+		sArea = config.sArea;
+		templSize = config.templSize;
+		subPixel = config.subPixel;
+		matchIntensity = config.matchIntensity;
+		matchThreshold = config.matchThreshold.clone();
+		tplAngleStep = config.tplAngleStep;
+		tplCacheSize = config.tplCacheSize;
+		prewarmRange = config.prewarmRange;
+		prewarmTemplates = config.prewarmTemplates;
+		recoveryMode = config.recoveryMode;
+		rotationMode = config.rotationMode;
+		matchBackend = config.matchBackend;
+		motionPrediction = config.motionPrediction;
+		adaptiveSearch = config.adaptiveSearch;
+		parallelRegions = config.parallelRegions;
+		timeStep = config.timeStep;
+		failureHandler = config.failurePolicy != null ? config.failurePolicy : FailurePolicy.SKIP;
+		
+		holder_ws = new MatchWorkspace(matchBackend);
+		free_ws = new MatchWorkspace(matchBackend);
+		mid_ws = new MatchWorkspace(matchBackend);
+		// the images cut from the blurred frame use its window sums
+		holder_ws.frame = free_ws.frame = mid_ws.frame = blurred_frame;
+		holder_ws.correlationMode = config.correlationMode;
+		free_ws.correlationMode = config.correlationMode;
+		mid_ws.correlationMode = config.correlationMode;
+		ownPool = pool == null;
+		workerPool = ownPool ? newWorkerPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) : pool;
+	}
+
+	// a pool of daemon threads, it does not keep ImageJ running
+	public static ExecutorService newWorkerPool(int threads) {
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "BendingCrystalTrack worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public void setListener(TrackerListener listener) {
+		this.listener = listener;
+	}
+
+	public void setFailureHandler(FailureHandler handler) {
+		failureHandler = handler != null ? handler : config.failurePolicy != null ? config.failurePolicy : FailurePolicy.SKIP;
+	}
+
+	public ReviewQueue reviewQueue() {
+		return review;
+	}
+
+	// The state is saved to the file after every interval frames (0: never), the file is replaced
+	public void setCheckpoint(File file, int interval) {
+		awaitCheckpoint();
+		checkpointFile = file;
+		checkpointInterval = interval;
+		checkpointError = null;
+	}
+
+	// the error that stopped the checkpoints, null if there was none (the checkpoint being written is waited for)
+	public IOException checkpointError() {
+		awaitCheckpoint();
+		return checkpointError;
+	}
+
+	// The source is tracked to its end: the checkpoint is removed, there is nothing to resume from it
+	public void finishCheckpoint() {
+		awaitCheckpoint();
+		if (checkpointFile != null && checkpointFile.exists() && !checkpointFile.delete() && checkpointError == null)
+			checkpointError = new IOException("cannot delete " + checkpointFile);
+	}
+
+	// The whole state after the slice tracked last, templates included
+	public void saveCheckpoint(File file, int slice) throws IOException {
+		awaitCheckpoint();
+		endSpeculation();
+		new Checkpoint(this, slice).write(file);
+	}
+
+	// The state saved in the checkpoint replaces the one of the engine, the tracking continues after the returned slice.
+	// The reference frame is not read, the checkpoint must belong to the frames of the source. The engine is
+	// not changed if the checkpoint cannot be read or does not belong to it.
+	public int resume(File file) throws IOException {
+		awaitCheckpoint();
+		Checkpoint checkpoint = Checkpoint.read(file);
+		endSpeculation();
+		checkpoint.apply(this);
+		checkpointSlice = checkpoint.slice;
+		return checkpoint.slice;
+	}
+
+	// run() stops before the next frame
+	public void stop() {
+		stopRequested = true;
+	}
+	
+	// Half size of the square template around the point (x, y), reduced near the frame edges,
+	// -1 if the point is too close to an edge to be searched
+	static int templateHalfSize(double x, double y, int width, int height, int templSize, int sArea) {
+		double dmin = Math.min(Math.min(x, width - x), Math.min(y, height - y));
+		if (dmin<=sArea+1) return -1;
+		int rect_half_size=templSize/2;
+		double rect_hs_tmp = Math.max(rect_half_size, 0.7*rect_half_size+sArea);
+		if (rect_hs_tmp>dmin) rect_half_size =(int) Math.min((dmin-sArea)/0.7, dmin);
+		return rect_half_size;
+	}
+
+	public FrameResult setReference(int refSlice) {
+		return setReference(refSlice, source.frame(refSlice), false);
+	}
+
+	// The templates are cut from the reference frame at the points of the configuration, the crystal is
+	// measured there. After a reselection (the points are selected again in a later frame) the time and the
+	// deformation continue: the initial length is corrected by the deformation measured last.
+	public FrameResult setReference(int refSlice, ImageProcessor refFrame, boolean reselect) {
+		width = refFrame.getWidth();
+		height = refFrame.getHeight();
+		refBitDepth = refFrame.getBitDepth();
+		double midX = config.straight ? (config.freeX + config.attachedX)/2 : config.midX,
+			   midY = config.straight ? (config.freeY + config.attachedY)/2 : config.midY;
+		int free_half_size = templateHalfSize(config.freeX, config.freeY, width, height, templSize, sArea),
+			mid_half_size = templateHalfSize(midX, midY, width, height, templSize, sArea);
+		if (free_half_size < 0) throw new IllegalArgumentException("Search point is to close to the edge.\nReduce template rectangle size on the first dialog.");
+		if (mid_half_size < 0) throw new IllegalArgumentException("Search point is to close to the edge");
+		
+		endSpeculation();
+		this.refSlice = refSlice;
+		checkpointSlice = refSlice;
+		disX_free=0.0;
+		disY_free=0.0;
+		disX_holder=0.0;
+		disY_holder=0.0;
+		disX_mid=0.0;
+		disY_mid=0.0;
+		// the regions are at rest in the reference frame, their velocity is not known yet
+		holder_motion.reset(refSlice, 0.0, 0.0, sArea);
+		free_motion.reset(refSlice, 0.0, 0.0, sArea);
+		mid_motion.reset(refSlice, 0.0, 0.0, sArea);
+		holder_margin.reset(sArea, 8 * sArea);
+		free_margin.reset(sArea, 8 * sArea);
+		mid_margin.reset(sArea, 8 * sArea);
+		holder_score = free_score = mid_score = Double.NaN;
+		
+		refX_free = config.freeX;
+		refY_free = config.freeY;
+		refX_att = config.attachedX;
+		refY_att = config.attachedY;
+		refX_mid = midX;
+		refY_mid = midY;
+		h0_x=refX_free-refX_att;
+		h0_y=refY_free-refY_att;
+		hord_ini=Math.sqrt(h0_x*h0_x+h0_y*h0_y);
+		full_angle_ini=Math.acos(h0_x/hord_ini);
+		if (refY_free>refY_att) full_angle_ini=-full_angle_ini;
+		if (config.straight) length_ini=hord_ini;
+		
+		calcBendingParams(reselect);
+		last_deformation=deformation;
+		
+		deflection_angle_ini=deflection_angle;
+		bending_angle_ini=bending_angle;
+		curvature_ini=curvature;
+		initial_angle=full_angle_ini+0.5*bending_angle_ini;
+		
+		ImagePlus ref_Image = new ImagePlus(source.label(refSlice), refFrame);
+		
+		holder_rect = new Rectangle(config.holderRect);
+		ref_Image.setRoi(new Roi(holder_rect));
+		holder_ref=ref_Image.crop();
+		if (matchIntensity) {
+			ImageConverter holder_ic = new ImageConverter(holder_ref);
+			holder_ic.convertToGray32();
+		}
+		gaussianBlur.blurGaussian(holder_ref.getProcessor(), 2, 2, 0.02);
+		
+		Roi free_roi=new Roi(refX_free-free_half_size,refY_free-free_half_size,2*free_half_size,2*free_half_size);
+		free_rect = free_roi.getBounds();
+		free_roi=new Roi(free_rect);
+		
+		freeRefCenterShiftX = refX_free - free_rect.x - (free_rect.width - 1)/2.0;
+		freeRefCenterShiftY = refY_free - free_rect.y - (free_rect.height - 1)/2.0;
+		
+		ref_Image.killRoi();
+		ref_Image.setRoi(free_roi);
+		free_ref = ref_Image.crop();
+		if (matchIntensity) {
+			ImageConverter ic = new ImageConverter(free_ref);
+			ic.convertToGray32();
+		}
+		gaussianBlur.blurGaussian(free_ref.getProcessor(), 2, 2, 0.02);
+		
+		free_rect.x+=(int)(free_rect.width*0.15);
+		free_rect.y+=(int)(free_rect.height*0.15);
+		free_rect.width=(int)(free_rect.width*0.7);
+		free_rect.height=(int)(free_rect.height*0.7);
+		refCropRoi =  new Roi((int)(free_ref.getWidth()*0.15), (int)(free_ref.getHeight()*0.15), 
+				(int)(free_ref.getWidth()*0.7), (int)(free_ref.getHeight()*0.7));
+		
+		Roi middle_roi=new Roi(refX_mid-mid_half_size,refY_mid-mid_half_size,2*mid_half_size,2*mid_half_size);
+		mid_rect = middle_roi.getBounds();
+		middle_roi=new Roi(mid_rect);
+		
+		midRefCenterShiftX = refX_mid -  mid_rect.x - ( mid_rect.width - 1)/2.0 ;
+		midRefCenterShiftY = refY_mid -  mid_rect.y - ( mid_rect.height - 1)/2.0;
+		
+		ref_Image.killRoi();
+		ref_Image.setRoi(middle_roi);
+		
+		mid_rect.x+=(int)(mid_rect.width*0.15);
+		mid_rect.y+=(int)(mid_rect.height*0.15);
+		mid_rect.width=(int)(mid_rect.width*0.7);
+		mid_rect.height=(int)(mid_rect.height*0.7);
+		
+		mid_ref = ref_Image.crop();
+		if (matchIntensity) {
+			ImageConverter ic_mid = new ImageConverter(mid_ref);
+			ic_mid.convertToGray32();
+		}
+		gaussianBlur.blurGaussian(mid_ref.getProcessor(), 2, 2, 0.02);
+		mid_refCropRoi =  new Roi((int)(mid_ref.getWidth()*0.15), 
+								  (int)(mid_ref.getHeight()*0.15), 
+								  (int)(mid_ref.getWidth()*0.7), 
+								  (int)(mid_ref.getHeight()*0.7));
+		
+		buildTemplates();
+		
+		if (!reselect) {
+			first_shot_time = source.shotTime(refSlice);
+			exifTime = first_shot_time != null;
+			seconds = 0.0;
+		}
+		// the frames before are measured with the old templates
+		tracked_positions.clear();
+		keepPosition(refSlice);
+		return result(refSlice);
+	}
+
+	// The results of the frame tracked last (or of the reference frame)
+	public FrameResult result(int slice) {
+		return new FrameResult(slice, source.label(slice), seconds, bending_angle, deflection_angle, cr_length, curvature, deformation,
+				holder_score, free_score, mid_score, disX_holder, disY_holder, disX_free, disY_free, disX_mid, disY_mid);
+	}
+
+	// Tracks the frames from first to the end of the source. The frames that cannot be read or do not have
+	// the size and type of the reference are skipped. Returns the number of the tracked frames.
+	public int run(int first) {
+		stopRequested = false;
+		int tracked = 0, n;
+		for (n = first; n <= source.size() && !stopRequested; n++) {
+			ImageProcessor ip = source.frame(n);
+			if (ip == null || ip.getWidth() != width || ip.getHeight() != height || ip.getBitDepth() != refBitDepth) {
+				if (listener != null) listener.frameSkipped(n, source.label(n));
+				continue;
+			}
+			int status = track(n, ip);
+			if (status == TRACKED) tracked++;
+			// the points cannot be selected again without a user
+			if (status == STOPPED || status == RESELECT) break;
+		}
+		if (n > source.size()) finishCheckpoint();
+		return tracked;
+	}
+
+	// Tracks one frame. A skipped frame does not change the positions of the regions.
+	public int track(int slice, ImageProcessor frame) {
+		double  tmp_disX_free=disX_free,
+				tmp_disY_free=disY_free,
+				tmp_disX_holder=disX_holder,
+				tmp_disY_holder=disY_holder,
+				tmp_disX_mid=disX_mid,
+				tmp_disY_mid=disY_mid;
+		int status = analyzeSlice(slice, frame);
+		if (status == SKIPPED) {
+			disX_free=tmp_disX_free;
+			disY_free=tmp_disY_free;
+			disX_holder=tmp_disX_holder;
+			disY_holder=tmp_disY_holder;
+			disX_mid=tmp_disX_mid;
+			disY_mid=tmp_disY_mid;
+			if (listener != null) listener.frameSkipped(slice, source.label(slice));
+		} else if (status == TRACKED) {
+			last_deformation = deformation;
+			keepPosition(slice);
+			if (listener != null) listener.frameTracked(result(slice));
+		}
+		// a checkpoint is left out while the previous one is still written
+		if (checkpointFile != null && checkpointInterval > 0 && checkpointError == null && (status == TRACKED || status == SKIPPED)
+				&& slice - checkpointSlice >= checkpointInterval && (checkpointWrite == null || checkpointWrite.isDone())) {
+			endSpeculation();
+			final Checkpoint checkpoint = new Checkpoint(this, slice);
+			final File file = checkpointFile;
+			if (checkpointWriter == null) checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "BendingCrystalTrack checkpoint");
+				t.setDaemon(true);
+				return t;
+			});
+			checkpointWrite = checkpointWriter.submit(() -> {
+				try {
+					checkpoint.write(file);
+				} catch (IOException e) {
+					// the tracking goes on without checkpoints
+					checkpointError = e;
+				}
+			});
+			checkpointSlice = slice;
+		}
+		return status;
+	}
+
+	// the checkpoint being written is finished
+	private void awaitCheckpoint() {
+		if (checkpointWrite == null) return;
+		try {
+			checkpointWrite.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the errors of the writing are kept in checkpointError
+		}
+		checkpointWrite = null;
+	}
+
+	// rotated templates are cached at quantized angles
+	void buildTemplates() {
+		free_bank = new TemplateBank(free_ref, refCropRoi, tplAngleStep, tplCacheSize, (method==0?2:method));
+		mid_bank = new TemplateBank(mid_ref, mid_refCropRoi, tplAngleStep, tplCacheSize, (method==0?2:method));
+		free_tpl = free_bank.get(0.0).template;
+		mid_tpl = mid_bank.get(0.0).template;
+		if (free_rotation != null) free_rotation.release();
+		free_rotation = rotationMode == TemplateMatcher.ROTATION_FOURIER_MELLIN && matchBackend == MatchWorkspace.OPENCV ? new RotationEstimator(free_tpl.getProcessor()) : null;
+	}
+
+	// The slice was removed from the source, the later frames move down one slice. The positions and the
+	// flags follow them, so they keep naming the same files.
+	public void sliceDeleted(int slice) {
+		NavigableMap<Integer, double[]> later = tracked_positions.tailMap(slice, false);
+		TreeMap<Integer, double[]> moved = new TreeMap<Integer, double[]>(later);
+		tracked_positions.remove(slice);
+		later.clear();
+		for (Map.Entry<Integer, double[]> p : moved.entrySet()) tracked_positions.put(p.getKey() - 1, p.getValue());
+		review.sliceDeleted(slice);
+		if (lastFlagged > slice) lastFlagged--;
+		if (refSlice > slice) refSlice--;
+		if (checkpointSlice > slice) checkpointSlice--;
+	}
+
+	// The position of a frame tracked in order replaces the one of the frame before, unless a frame after that
+	// one was flagged. The positions of the frames analyzed again are added.
+	private void keepPosition(int slice) {
+		if (!reviewing) {
+			Map.Entry<Integer, double[]> last = tracked_positions.lastEntry();
+			if (last != null && last.getKey() < slice && last.getKey() >= lastFlagged) tracked_positions.remove(last.getKey());
+		}
+		tracked_positions.put(slice, new double[]{disX_holder, disY_holder, disX_free, disY_free, disX_mid, disY_mid, seconds});
+	}
+
+	// Analyzes a frame again (usually a flagged one) with another failure handler, starting from the positions
+	// in the nearest tracked frame before it. The state of the tracking is kept: the positions, the time and
+	// the thresholds used for the next frames do not change. The result goes to the given listener, the flags
+	// of the frame are resolved if it is tracked. A frame before the reference cannot be analyzed (SKIPPED).
+	// A flagged frame is analyzed only if the source still gives the file it was flagged for.
+	public int reanalyze(int slice, FailureHandler handler, TrackerListener to) {
+		String flagged = review.label(slice);
+		if (flagged != null && !flagged.equals(source.label(slice))) return SKIPPED;
+		Map.Entry<Integer, double[]> from = tracked_positions.lowerEntry(slice);
+		ImageProcessor frame = from == null ? null : source.frame(slice);
+		if (frame == null || frame.getWidth() != width || frame.getHeight() != height || frame.getBitDepth() != refBitDepth) return SKIPPED;
+		
+		Snapshot state = new Snapshot();
+		FailureHandler runHandler = failureHandler;
+		double[] p = from.getValue();
+		disX_holder = p[0];
+		disY_holder = p[1];
+		disX_free = p[2];
+		disY_free = p[3];
+		disX_mid = p[4];
+		disY_mid = p[5];
+		seconds = p[6];
+		calcBendingParams(false);
+		failureHandler = handler != null ? handler : runHandler;
+		reviewing = true;
+		try {
+			int status = analyzeSlice(slice, frame);
+			if (status == TRACKED) {
+				review.resolve(slice);
+				keepPosition(slice);
+				if (to != null) to.frameTracked(result(slice));
+			} else if (status == SKIPPED && to != null) to.frameSkipped(slice, source.label(slice));
+			return status;
+		} finally {
+			reviewing = false;
+			failureHandler = runHandler;
+			state.restore();
+		}
+	}
+
+	// the part of the state a frame changes
+	private final class Snapshot {
+		final double[] displacements = {disX_holder, disY_holder, disX_free, disY_free, disX_mid, disY_mid};
+		final double[] bending = {full_angle, bending_angle, deflection_angle, curvature, cr_length, deformation};
+		final double[] scores = {holder_score, free_score, mid_score, att_mideal, free_mideal, mid_mideal};
+		final double[] thresholds = matchThreshold.clone();
+		final double time = seconds;
+		final boolean exif = exifTime;
+		final ImagePlus freeTemplate = free_tpl, midTemplate = mid_tpl;
+		final Rectangle holderWindow = new Rectangle(holder_window), freeWindow = new Rectangle(free_window), 
+				midWindow = new Rectangle(mid_window);
+
+		void restore() {
+			disX_holder = displacements[0];
+			disY_holder = displacements[1];
+			disX_free = displacements[2];
+			disY_free = displacements[3];
+			disX_mid = displacements[4];
+			disY_mid = displacements[5];
+			full_angle = bending[0];
+			bending_angle = bending[1];
+			deflection_angle = bending[2];
+			curvature = bending[3];
+			cr_length = bending[4];
+			deformation = bending[5];
+			holder_score = scores[0];
+			free_score = scores[1];
+			mid_score = scores[2];
+			att_mideal = scores[3];
+			free_mideal = scores[4];
+			mid_mideal = scores[5];
+			System.arraycopy(thresholds, 0, matchThreshold, 0, thresholds.length);
+			seconds = time;
+			exifTime = exif;
+			free_tpl = freeTemplate;
+			mid_tpl = midTemplate;
+			holder_window.setBounds(holderWindow);
+			free_window.setBounds(freeWindow);
+			mid_window.setBounds(midWindow);
+		}
+	}
+
+	// asks the failure handler, the frames the handler puts aside are flagged
+	private int matchFailed(int slice, int region, ImageProcessor template, double x, double y, double score) {
+		int answer = failureHandler.matchFailed(slice, region, template, x, y, score);
+		if ((answer & FailureHandler.REVIEW) != 0) {
+			answer &= ~FailureHandler.REVIEW;
+			if (!reviewing) {
+				review.add(new ReviewQueue.Flag(slice, source.label(slice), region, answer, score));
+				lastFlagged = Math.max(lastFlagged, slice);
+			}
+		}
+		return answer;
+	}
+
+	// waits for the matches started in parallel, so their workspaces can be used again
+	private void endSpeculation() {
+		if (free_spec != null) free_spec.finish();
+		if (mid_spec != null) mid_spec.finish();
+		free_spec = null;
+		mid_spec = null;
+	}
+
+	// native buffers are freed as soon as the tracking stops
+	public void close() {
+		awaitCheckpoint();
+		if (checkpointWriter != null) checkpointWriter.shutdown();
+		checkpointWriter = null;
+		endSpeculation();
+		if (ownPool) workerPool.shutdownNow();
+		holder_ws.release();
+		free_ws.release();
+		mid_ws.release();
+		if (free_rotation != null) free_rotation.release();
+		free_rotation = null;
+	}
+	
+	private boolean testMatchResult(double result, double ref, int method, double x, double y, int searchWidth, int tplSize) {
+		
+		boolean successfulMatch = true;
+		double distTrsh=Math.min(0.05*tplSize, 0.05*searchWidth);
+		if (matchDeviation(result, ref, method)>matchThreshold[method]) successfulMatch = false;
+		if (searchWidth!=0 &&  ((x<distTrsh) || (y<distTrsh) || (x>searchWidth-distTrsh) || (y>searchWidth-distTrsh))) successfulMatch = false;
+		
+		
+		return successfulMatch;
+    
+	}
+	
+	// The value compared with the threshold of the method, 0 for the ideal match
+	private static double matchDeviation(double result, double ref, int method) {
+		switch (method) {
+    	case 0:
+    		return result/ref;
+    	case 1:
+    		return result;
+    	case 2:
+    		return Math.abs((result-ref)/ref);
+    	case 4:
+    		return Math.abs(result-ref)/ref;
+    	default:
+    		return Math.abs(result-ref);
+		}
+	}
+	
+	private void adjustThreshold(double result, double ref, int method) {
+		
+		
+		switch (method) {
+    	case 0:
+    		matchThreshold[method] =1.1*result/ref;
+    		break;
+    	case 1:
+    		matchThreshold[method] =1.1*result;
+    		break;
+    	case 2:
+    	case 4:
+    		matchThreshold[method] =1.1*Math.abs((result-ref)/ref);
+    		break;
+    	case 3:
+    	case 5:	
+    		matchThreshold[method] =1.1*Math.abs(result-ref);
+    		break;
+    	
+		}
+		
+    
+	}
+	
+    private int analyzeSlice(int slice, ImageProcessor slice_proc) {
+
+        double[] coord_res = new double[3]; 
+        // a previous frame may have been left before its parallel matches were taken
+        endSpeculation();
+        
+        ImagePlus free_tar = new ImagePlus("",slice_proc);
+        ImagePlus holder_tar= new ImagePlus("",slice_proc);
+        ImagePlus mid_tar = new ImagePlus("",slice_proc);
+        
+         int xStart_free=0 ,yStart_free=0, sWX_free=width, sWY_free=height, 
+        	 xStart_holder=0, yStart_holder=0, sWX_holder=width, sWY_holder=height,
+        	 xStart_mid=0 ,yStart_mid=0, sWX_mid=width, sWY_mid=height;
+        
+        double dxtmp=0.0, dytmp=0.0;
+        
+        // expected displacements of the regions and the margins of their search windows
+        double predX_holder=disX_holder, predY_holder=disY_holder,
+        	   predX_free=disX_free, predY_free=disY_free,
+        	   predX_mid=disX_mid, predY_mid=disY_mid;
+        int sArea_holder=sArea, sArea_free=sArea, sArea_mid=sArea;
+        // a frame analyzed again is searched around the previous frame, the predictors follow the last frames
+        if (motionPrediction && sArea != 0 && !reviewing) {
+        	double[] pred = holder_motion.predict(slice);
+        	predX_holder = pred[0];
+        	predY_holder = pred[1];
+        	sArea_holder = holder_motion.margin(slice, sArea);
+        	pred = free_motion.predict(slice);
+        	predX_free = pred[0];
+        	predY_free = pred[1];
+        	sArea_free = free_motion.margin(slice, sArea);
+        	pred = mid_motion.predict(slice);
+        	predX_mid = pred[0];
+        	predY_mid = pred[1];
+        	sArea_mid = mid_motion.margin(slice, sArea);
+        }
+        if (adaptiveSearch && sArea != 0) {
+        	sArea_holder = holder_margin.margin();
+        	sArea_free = free_margin.margin();
+        	sArea_mid = mid_margin.margin();
+        }
+        // where the regions are expected (for the statistics of the margins) and the margins they were found with
+        double expX_free=predX_free, expY_free=predY_free, expX_mid=predX_mid, expY_mid=predY_mid;
+        int found_holder=sArea_holder, found_free=sArea_free, found_mid=sArea_mid;
+        blurred_frame.reset(slice_proc, matchIntensity);
+
+        if (sArea != 0) {
+
+
+        	// Specifying coordinates of the search rectangle around the free end
+        	
+            xStart_free = free_rect.x + (int)predX_free - sArea_free;
+            yStart_free = free_rect.y + (int)predY_free - sArea_free;
+            sWX_free = free_rect.width + 2 * sArea_free;
+            sWY_free = free_rect.height + 2 * sArea_free;
+
+            if (xStart_free < 0) {
+                xStart_free = 0;
+            }
+            if (yStart_free < 0) {
+                yStart_free = 0;
+            }
+            if (xStart_free + sWX_free > width) {
+                xStart_free = width - sWX_free;
+            }
+            if (yStart_free + sWY_free > height) {
+                yStart_free = height - sWY_free;
+            }
+            
+           
+            
+            // Specifying coordinates of the search rectangle around the holder part
+            
+            xStart_holder = holder_rect.x + (int)predX_holder - sArea_holder;
+            yStart_holder = holder_rect.y + (int)predY_holder - sArea_holder;
+            
+            sWX_holder = holder_rect.width + 2 * sArea_holder;
+            sWY_holder = holder_rect.height + 2 * sArea_holder;
+
+            if (xStart_holder < 0) {
+                xStart_holder = 0;
+            }
+            if (yStart_holder < 0) {
+                yStart_holder = 0;
+            }
+            if (xStart_holder + sWX_holder > width) {
+                xStart_holder = width - sWX_holder;
+            }
+            if (yStart_holder + sWY_holder > height) {
+                yStart_holder = height - sWY_holder;
+            }
+            
+            
+// Specifying coordinates of the search rectangle around the middle part
+            
+            double x0 = (refX_free+predX_free+refX_att+predX_holder)/2.0,
+     			   y0 = (refY_free+predY_free+refY_att+predY_holder)/2.0,
+     			   
+     			   x1,y1,
+     			   dx = -(refY_free+predY_free-(refY_att+predY_holder)),
+     			   dy = refX_free+predX_free-(refX_att+predX_holder),
+     			   dr = Math.sqrt(dx*dx+dy*dy),
+     			   dh=0.0;
+            if (curvature!=0.0)
+            	dh = (1-Math.cos(curvature*cr_length/2.0))/curvature;
+             
+     				dx/=dr;
+     				dy/=dr;
+     				
+     				x1 = x0 + dx*dh;
+     				y1 = y0 + dy*dh;
+            
+           
+            
+     		xStart_mid = (int)(x1 - (mid_rect.width)/2.0 - sArea_mid);
+     	    yStart_mid = (int)(y1 - (mid_rect.height)/2.0 - sArea_mid);
+     	    expX_mid = x1 - (mid_rect.width)/2.0 - mid_rect.x;
+     	    expY_mid = y1 - (mid_rect.height)/2.0 - mid_rect.y;
+            
+            
+ 			
+            sWX_mid = mid_rect.width + 2 * sArea_mid;
+            sWY_mid = mid_rect.height + 2 * sArea_mid;
+
+            if (xStart_mid < 0) {
+                xStart_mid = 0;
+            }
+            if (yStart_mid < 0) {
+                yStart_mid = 0;
+            }
+            if (xStart_mid + sWX_mid > width) {
+                xStart_mid = width - sWX_mid;
+            }
+            if (yStart_mid + sWY_mid > height) {
+                yStart_mid = height - sWY_mid;
+            }
+            
+        } else {
+        	// Needed parts will be searched over the whole slice
+          
+        }
+        
+        if (matchIntensity) {
+        	// Small images containing the free crystal's end, the holder part and the central part.
+        	// The windows are converted to gray and blurred together (overlapping parts once), then copied
+        	// into the buffers of the workspaces
+        	blurred_frame.prepare(new Rectangle(xStart_free, yStart_free, sWX_free, sWY_free), 
+        			new Rectangle(xStart_holder, yStart_holder, sWX_holder, sWY_holder), 
+        			new Rectangle(xStart_mid, yStart_mid, sWX_mid, sWY_mid));
+        	free_tar = new ImagePlus("", free_ws.searchWindow(blurred_frame, xStart_free, yStart_free, sWX_free, sWY_free));
+        	holder_tar = new ImagePlus("", holder_ws.searchWindow(blurred_frame, xStart_holder, yStart_holder, sWX_holder, sWY_holder));
+        	mid_tar = new ImagePlus("", mid_ws.searchWindow(blurred_frame, xStart_mid, yStart_mid, sWX_mid, sWY_mid));
+        } else {
+        	if (sArea != 0) {
+        		free_tar.setRoi(xStart_free, yStart_free, sWX_free, sWY_free);
+        		free_tar=free_tar.crop();
+        		holder_tar.setRoi(xStart_holder, yStart_holder, sWX_holder, sWY_holder);
+        		holder_tar=holder_tar.crop();
+        		mid_tar.setRoi(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
+        		mid_tar=mid_tar.crop();
+        	} else {
+        		// the slice itself is not blurred
+        		free_tar = new ImagePlus("", slice_proc.duplicate());
+        		holder_tar = new ImagePlus("", slice_proc.duplicate());
+        		mid_tar = new ImagePlus("", slice_proc.duplicate());
+        	}
+        	gaussianBlur.blurGaussian(free_tar.getProcessor(), 2, 2, 0.02);
+        	gaussianBlur.blurGaussian(holder_tar.getProcessor(), 2, 2, 0.02);
+        	gaussianBlur.blurGaussian(mid_tar.getProcessor(), 2, 2, 0.02);
+        }
+        
+        // The free end and the middle part do not wait for the holder: they are matched on the pool with the angles
+        // expected from the previous frame while the holder is matched here. The first iteration below takes
+        // the results if the templates it needs are the same.
+        if (parallelRegions && Runtime.getRuntime().availableProcessors() > 1) {
+        	final ImageProcessor free_win = free_tar.getProcessor(), mid_win = mid_tar.getProcessor();
+        	final double free_angle = - (full_angle + 0.5*bending_angle - initial_angle)*180/Math.PI,
+        			free_cx = free_rect.x + disX_free - xStart_free + free_rect.width/2.0,
+        			free_cy = free_rect.y + disY_free - yStart_free + free_rect.height/2.0;
+        	final RotationEstimator rotation = free_rotation;
+        	free_spec = SpeculativeMatch.start(workerPool, free_bank, 
+        			() -> rotation != null ? rotation.estimate(free_win, free_cx, free_cy, free_angle) : free_angle, 
+        			free_win, method, subPixel, free_ws);
+        	double H_x=refX_free+predX_free-(refX_att+predX_holder),
+        		   H_y=refY_free+predY_free-(refY_att+predY_holder),
+        		   mid_angle = (Math.signum(-H_y)*Math.acos(H_x/Math.sqrt(H_x*H_x+H_y*H_y)) - full_angle_ini)*180/Math.PI;
+        	mid_spec = SpeculativeMatch.start(workerPool, mid_bank, () -> -mid_angle, mid_win, method, subPixel, mid_ws);
+        }
+        
+        //int idealMethod=(method==0?2:method);
+        att_mideal= TemplateStats.idealScore(holder_ref.getProcessor(),(method==0?2:method));
+        coord_res = doMatch_coord_res(holder_tar.getProcessor(), holder_ref.getProcessor(), method, subPixel, null, holder_ws);
+        
+        boolean ignoreFrame=false, stopTracking=false, reselectPoints=false;
+        if (!testMatchResult(coord_res[2], att_mideal, method, coord_res[0], coord_res[1], sArea_holder*2, Math.min(holder_rect.width, holder_rect.height))) { ///////// The holder is not found...
+        	if (sArea!=0) {										  ///////// Let's try global search if it was local search before
+        		
+        		
+        		xStart_holder=yStart_holder=0;
+        		if (recoveryMode != RECOVERY_DOUBLING) {
+        			// the whole frame is searched at a reduced scale, only the best candidate is matched at full resolution
+        			Rectangle win = new Rectangle();
+        			coord_res = pyramidSearch(slice_proc, new Rectangle(0, 0, width, height), holder_ref.getProcessor(), null, holder_ws, win, null);
+        			xStart_holder = win.x;
+        			yStart_holder = win.y;
+        		} else {
+        		// the blurred frame is kept for the retries of the other regions
+        		coord_res = doMatch_coord_res(blurred_frame.whole(), holder_ref.getProcessor(), method, subPixel, null, holder_ws);
+        		}
+        		found_holder = Math.max(width, height);
+        		if (!testMatchResult(coord_res[2], att_mideal, method, coord_res[0], coord_res[1], 0, Math.min(holder_rect.width, holder_rect.height))) { ////////////// Not found globally
+        			int failureAnswer = matchFailed(slice, HOLDER, holder_ref.getProcessor(), coord_res[0]+xStart_holder, coord_res[1]+yStart_holder, coord_res[2]);
+        			// the holder is not rotated and it has been searched in the whole frame already
+        			if (failureAnswer==FailureHandler.SEARCH) failureAnswer = FailureHandler.SKIP;
+        			if (failureAnswer==0) adjustThreshold(coord_res[2], att_mideal, method);
+        			ignoreFrame = (failureAnswer==1);
+        			stopTracking = (failureAnswer==2);
+        			reselectPoints = (failureAnswer==3);
+        		} else {												///////////// The holder was found shifted. Shift search areas and continue
+        			
+        			        // the windows move, the parallel matches are dropped
+        			        endSpeculation();
+        			        free_tar = new ImagePlus("",slice_proc);
+        	               	mid_tar = new ImagePlus("",slice_proc);
+        					double xShift = coord_res[0] + xStart_holder - holder_rect.x - predX_holder,
+        							yShift = coord_res[1] + yStart_holder - holder_rect.y - predY_holder;
+
+        					xStart_free += xShift;
+        		            yStart_free += yShift;
+        		            
+
+        		            if (xStart_free < 0) {
+        		                xStart_free = 0;
+        		            }
+        		            if (yStart_free < 0) {
+        		                yStart_free = 0;
+        		            }
+        		            if (xStart_free + sWX_free > width) {
+        		                xStart_free = width - sWX_free;
+        		            }
+        		            if (yStart_free + sWY_free > height) {
+        		                yStart_free = height - sWY_free;
+        		            }
+        		            
+        		            
+        		            xStart_mid += xShift;
+        		     	    yStart_mid += yShift;
+        		            
+        		            if (xStart_mid < 0) {
+        		                xStart_mid = 0;
+        		            }
+        		            if (yStart_mid < 0) {
+        		                yStart_mid = 0;
+        		            }
+        		            if (xStart_mid + sWX_mid > width) {
+        		                xStart_mid = width - sWX_mid;
+        		            }
+        		            if (yStart_mid + sWY_mid > height) {
+        		                yStart_mid = height - sWY_mid;
+        		            }
+        		            
+        		            // Small images containing free crystal's end and central crystal's part
+        		            if (matchIntensity) {
+        		            	free_tar = new ImagePlus("", free_ws.searchWindow(blurred_frame, xStart_free, yStart_free, sWX_free, sWY_free));
+        		            	mid_tar = new ImagePlus("", mid_ws.searchWindow(blurred_frame, xStart_mid, yStart_mid, sWX_mid, sWY_mid));
+        		            } else {
+        		            	free_tar.setRoi(xStart_free, yStart_free, sWX_free, sWY_free);
+        		            	free_tar=free_tar.crop();
+        		            	mid_tar.setRoi(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
+        		            	mid_tar=mid_tar.crop();
+        		            	gaussianBlur.blurGaussian(free_tar.getProcessor(), 2, 2, 0.02);        
+        		            	gaussianBlur.blurGaussian(mid_tar.getProcessor(), 2, 2, 0.02);
+        		            }
+        		            
+       		            
+        		}
+        	} else { ///////////////// The search was initially global but the holder was not found 
+        		int failureAnswer = matchFailed(slice, HOLDER, holder_ref.getProcessor(), coord_res[0]+xStart_holder, coord_res[1]+yStart_holder, coord_res[2]);
+        		if (failureAnswer==FailureHandler.SEARCH) failureAnswer = FailureHandler.SKIP;
+        		if (failureAnswer==0) adjustThreshold(coord_res[2], att_mideal, method);
+    			ignoreFrame = (failureAnswer==1);
+    			stopTracking = (failureAnswer==2);
+    			reselectPoints = (failureAnswer==3);
+        	}
+        }
+        
+        if (ignoreFrame) return SKIPPED;
+        if (stopTracking) return STOPPED;
+        if (reselectPoints) return RESELECT;
+        
+        holder_score = coord_res[2];
+        
+        disX_holder = coord_res[0] + xStart_holder - holder_rect.x;
+        disY_holder = coord_res[1] + yStart_holder - holder_rect.y;
+        
+        //// not working part of the template update code
+        
+        //if (updateTemplates)
+        //{
+        //	holder_ref = new ImagePlus("",tmptar);
+        //	holder_ref.setRoi(new Roi(holder_rect.x + disX_holder, holder_rect.y + disY_holder, (double)holder_rect.width, (double)holder_rect.height));
+        //    holder_ref=holder_ref.crop();
+        //    ImageConverter holder_ic = new ImageConverter(holder_ref);
+        //    holder_ic.convertToGray8();
+        //    gaussianBlur = new GaussianBlur();
+        //    ImageProcessor ip_tmp=holder_ref.getProcessor();
+        //    gaussianBlur.blurGaussian(ip_tmp, 2, 2, 0.02);
+        	
+        //}
+        
+        // The block of the free end search
+        // We make iterations to find position of the rotated template 
+        // of the free crystal's end
+        // Iterations finish upon the convergence (but not more than 10 iterations are taken)
+        
+        for (int iter=0;iter<10;iter++)
+        {
+        	
+        	// rotation angle is computed from the previous value of the bending angle  
+        	
+        	double angle = - (full_angle + 0.5*bending_angle - initial_angle)*180/Math.PI;
+        	TemplateBank.Entry free_entry;
+        	
+        	if (iter==0 && free_spec != null) {
+        		// the first guess was matched in parallel with the holder
+        		SpeculativeMatch spec = free_spec.join();
+        		free_spec = null;
+        		free_entry = spec.entry;
+        		coord_res = spec.coord_res;
+        	} else {
+        	// the first guess can be measured directly, the model then refines it as usual
+        	if (iter==0 && free_rotation != null)
+        		angle = free_rotation.estimate(free_tar.getProcessor(), free_rect.x + disX_free - xStart_free + free_rect.width/2.0, 
+        				free_rect.y + disY_free - yStart_free + free_rect.height/2.0, angle);
+    		
+    		
+    			// A rotated copy of the template is taken from the bank..
+    			free_entry = free_bank.get(angle);
+    			coord_res = null;
+        	}
+    			if (prewarmTemplates) free_bank.prewarm(free_entry.angle, prewarmRange, workerPool);
+    			angle = free_entry.angle;
+    			free_tpl = free_entry.template;
+    			
+    			
+    			// ... and fitted
+    			free_mideal=free_entry.idealScore;
+    			if (coord_res == null)
+    				coord_res = doMatch_coord_res(free_tar.getProcessor(), free_tpl.getProcessor(), method, subPixel, null, free_ws);
+    			if (!testMatchResult(coord_res[2], free_mideal, method, coord_res[0], coord_res[1], sArea_free*2, Math.min(free_rect.width, free_rect.height))) {
+    				
+    				
+    				int sArea_new=sArea_free;
+    				boolean newfreePositionFound=false, leftBound=false, rightBound=false, bottomBound=false, upperBound=false;
+    				if (recoveryMode != RECOVERY_DOUBLING) {
+    					Rectangle win = new Rectangle();
+    					ImagePlus[] winImage = new ImagePlus[1];
+    					for (int margin : recoveryMargins(free_rect)) {
+    						Rectangle area = searchRect(free_rect, predX_free, predY_free, margin);
+    						coord_res = pyramidSearch(slice_proc, area, free_tpl.getProcessor(), null, free_ws, win, winImage);
+    						xStart_free = win.x;
+    						yStart_free = win.y;
+    						sWX_free = win.width;
+    						sWY_free = win.height;
+    						free_tar = winImage[0];
+    						if (testMatchResult(coord_res[2], free_mideal, method, coord_res[0], coord_res[1], 0, Math.min(free_rect.width, free_rect.height))) {
+    							newfreePositionFound = true;
+    							found_free = margin;
+    							break;
+    						}
+    					}
+    				}
+    				while(recoveryMode == RECOVERY_DOUBLING && !newfreePositionFound && !(leftBound && rightBound && bottomBound && upperBound)){
+    				
+    					
+    					sArea_new*=2;
+    					//IJ.showMessage("Try to find in area = " + sArea_new);
+    					xStart_free = free_rect.x + (int)predX_free - sArea_new;
+    		            yStart_free = free_rect.y + (int)predY_free - sArea_new;
+    		            sWX_free = free_rect.width + 2 * sArea_new;
+    		            sWY_free = free_rect.height + 2 * sArea_new;
+
+    		            if (xStart_free < 0) {
+    		                xStart_free = 0;
+    		                leftBound=true;
+    		            }
+    		            if (yStart_free < 0) {
+    		                yStart_free = 0;
+    		                upperBound=true;
+    		            }
+    		            if (xStart_free + sWX_free > width) {
+    		                xStart_free = width - sWX_free;
+    		                rightBound=true;
+    		            }
+    		            if (yStart_free + sWY_free > height) {
+    		                yStart_free = height - sWY_free;
+    		                bottomBound=true;
+    		            }
+    		            
+    		            // Small image containing free crystal's end, cut from the frame blurred once for all the retries
+    		            free_tar = blurred_frame.crop(xStart_free, yStart_free, sWX_free, sWY_free);
+    		            
+    		            coord_res = doMatch_coord_res(free_tar.getProcessor(), free_tpl.getProcessor(), method, subPixel, null, free_ws);
+    		            
+    	    			if (testMatchResult(coord_res[2], free_mideal, method, coord_res[0], coord_res[1], sArea_new*2, Math.min(free_rect.width, free_rect.height))) {
+    	    				newfreePositionFound=true;
+    	    				found_free = sArea_new;
+    	    			}
+    		            
+    				}
+    				
+    				
+    				
+    				
+    				
+    				if (!newfreePositionFound){
+	    				int failureAnswer = matchFailed(slice, FREE_END, free_tpl.getProcessor(), coord_res[0]+xStart_free, coord_res[1]+yStart_free, coord_res[2]);
+	    				if (failureAnswer==FailureHandler.SEARCH) {
+	    					Rectangle win = new Rectangle();
+	    					ImagePlus[] winImage = new ImagePlus[1];
+	    					double[][] res = new double[1][];
+	    					TemplateBank.Entry entry = research(slice_proc, free_bank, angle, free_rect, null, free_ws, win, winImage, res);
+	    					failureAnswer = FailureHandler.SKIP;
+	    					if (entry != null) {
+	    						failureAnswer = FailureHandler.ACCEPT;
+	    						angle = entry.angle;
+	    						free_tpl = entry.template;
+	    						free_mideal = entry.idealScore;
+	    						coord_res = res[0];
+	    						xStart_free = win.x;
+	    						yStart_free = win.y;
+	    						sWX_free = win.width;
+	    						sWY_free = win.height;
+	    						free_tar = winImage[0];
+	    						found_free = Math.max(width, height);
+	    					}
+	    				}
+	    				if (failureAnswer==0) adjustThreshold(coord_res[2], free_mideal, method);
+	        			ignoreFrame = (failureAnswer==1);
+	        			stopTracking = (failureAnswer==2);
+	        			reselectPoints = (failureAnswer==3);
+    				}
+        		}
+    			
+    			if (ignoreFrame) return SKIPPED;
+    	        if (stopTracking) return STOPPED;
+    	        if (reselectPoints) return RESELECT;
+ 
+    			free_score = coord_res[2];
+    			
+    			disX_free = coord_res[0] + xStart_free - free_rect.x;
+                disY_free = coord_res[1] + yStart_free - free_rect.y;
+                if (subPixel) {
+                	
+                	disX_free += freeRefCenterShiftX*(Math.cos(angle*Math.PI/180.0) - 1.0) + freeRefCenterShiftY*Math.sin(angle*Math.PI/180.0);
+                	disY_free += freeRefCenterShiftY*(Math.cos(angle*Math.PI/180.0) - 1.0) - freeRefCenterShiftX*Math.sin(angle*Math.PI/180.0);
+                }
+                // if the next iteration has to search again, it starts from the measured position
+                predX_free = disX_free;
+                predY_free = disY_free;
+
+            
+            
+			double H_x=refX_free+disX_free-(refX_att+disX_holder),
+		          	   H_y=refY_free+disY_free-(refY_att+disY_holder),
+		          	   H=Math.sqrt(H_x*H_x+H_y*H_y),
+		          	   cos_full_angle=(H_x)/H,
+		          	   mid_angle = (Math.signum(-H_y)*Math.acos(cos_full_angle) - full_angle_ini)*180/Math.PI;
+			
+			TemplateBank.Entry mid_entry = mid_bank.get(-mid_angle);
+			if (prewarmTemplates) mid_bank.prewarm(-mid_angle, prewarmRange, workerPool);
+			mid_angle = -mid_entry.angle;
+			mid_tpl = mid_entry.template;
+			mid_mideal=mid_entry.idealScore;
+			
+
+
+			double x0 = (refX_free+disX_free+refX_att+disX_holder)/2.0 - (mid_rect.width)/2.0 - xStart_mid,
+				   y0 = (refY_free+disY_free+refY_att+disY_holder)/2.0 - (mid_rect.height)/2.0 - yStart_mid,
+				   dx = -(refY_free+disY_free-(refY_att+disY_holder)),
+				   dy = refX_free+disX_free-(refX_att+disX_holder),
+				   dr = Math.sqrt(dx*dx+dy*dy);
+			
+			
+			double dh=0.0;
+            if (curvature!=0.0)
+            	dh = (1-Math.cos(curvature*cr_length/2.0))/curvature;
+             
+     				dx/=dr;
+     				dy/=dr;
+     				
+     				x0 += dx*dh;
+     				y0 += dy*dh;
+			
+     		double[] lineCoord = new double[4];
+     		lineCoord[0]=x0;
+     		lineCoord[1]=y0;
+     		lineCoord[2]=dx;
+     		lineCoord[3]=dy;
+     		SpeculativeMatch mid_guess = null;
+     		if (iter==0 && mid_spec != null) {
+     			mid_guess = mid_spec.join();
+     			mid_spec = null;
+     		}
+     		if (mid_guess != null && mid_guess.entry.angle == mid_entry.angle) {
+     			// the whole window was matched with this template in parallel, only the line is searched
+     			if (!(lineCoord[2]==0.0 && lineCoord[3]==0.0)) coord_res = mid_ws.surface.peakOnLine(method, subPixel, lineCoord);
+     			else coord_res = mid_guess.coord_res;
+     		} else coord_res = doMatch_coord_res(mid_tar.getProcessor(), mid_tpl.getProcessor(), method, subPixel, lineCoord, mid_ws);
+     		
+     		if (!testMatchResult(coord_res[2], mid_mideal, method, coord_res[0], coord_res[1], sArea_mid*2, Math.min(mid_rect.width, mid_rect.height))) {
+     			
+     			
+     			
+     			int sArea_new=sArea_mid;
+				boolean newmidPositionFound=false, leftBound=false, rightBound=false, bottomBound=false, upperBound=false;
+				// search line in the frame coordinates
+				double[] frameLine = new double[]{lineCoord[0] + xStart_mid, lineCoord[1] + yStart_mid, lineCoord[2], lineCoord[3]};
+				if (recoveryMode != RECOVERY_DOUBLING) {
+					Rectangle win = new Rectangle();
+					ImagePlus[] winImage = new ImagePlus[1];
+					for (int margin : recoveryMargins(mid_rect)) {
+						Rectangle area = searchRect(mid_rect, predX_mid, predY_mid, margin);
+						coord_res = pyramidSearch(slice_proc, area, mid_tpl.getProcessor(), frameLine, mid_ws, win, winImage);
+						xStart_mid = win.x;
+						yStart_mid = win.y;
+						sWX_mid = win.width;
+						sWY_mid = win.height;
+						mid_tar = winImage[0];
+						if (testMatchResult(coord_res[2], mid_mideal, method, coord_res[0], coord_res[1], 0, Math.min(mid_rect.width, mid_rect.height))) {
+							newmidPositionFound = true;
+							found_mid = margin;
+							break;
+						}
+					}
+				}
+				while(recoveryMode == RECOVERY_DOUBLING && !newmidPositionFound && !(leftBound && rightBound && bottomBound && upperBound)){
+				
+					
+					sArea_new*=2;
+					//IJ.showMessage("Try to find in area = " + sArea_new);
+					xStart_mid = mid_rect.x + (int)predX_mid - sArea_new;
+		            yStart_mid = mid_rect.y + (int)predY_mid - sArea_new;
+		            sWX_mid = mid_rect.width + 2 * sArea_new;
+		            sWY_mid = mid_rect.height + 2 * sArea_new;
+
+		            if (xStart_mid < 0) {
+		                xStart_mid = 0;
+		                leftBound=true;
+		            }
+		            if (yStart_mid < 0) {
+		                yStart_mid = 0;
+		                upperBound=true;
+		            }
+		            if (xStart_mid + sWX_mid > width) {
+		                xStart_mid = width - sWX_mid;
+		                rightBound=true;
+		            }
+		            if (yStart_mid + sWY_mid > height) {
+		                yStart_mid = height - sWY_mid;
+		                bottomBound=true;
+		            }
+		            
+		            
+		             x0 = (refX_free+disX_free+refX_att+disX_holder)/2.0 - (mid_rect.width)/2.0 - xStart_mid;
+		 				   y0 = (refY_free+disY_free+refY_att+disY_holder)/2.0 - (mid_rect.height)/2.0 - yStart_mid;
+		 				   dx = -(refY_free+disY_free-(refY_att+disY_holder));
+		 				   dy = refX_free+disX_free-(refX_att+disX_holder);
+		 				   dr = Math.sqrt(dx*dx+dy*dy);
+		 			
+		 			
+		 			 dh=0.0;
+		             if (curvature!=0.0)
+		             	dh = (1-Math.cos(curvature*cr_length/2.0))/curvature;
+		              
+		      				dx/=dr;
+		      				dy/=dr;
+		      				
+		      				x0 += dx*dh;
+		      				y0 += dy*dh;
+		 			
+		      		//double[] lineCoord = new double[4];
+		      		lineCoord[0]=x0;
+		      		lineCoord[1]=y0;
+		      		lineCoord[2]=dx;
+		      		lineCoord[3]=dy;
+		            
+		            
+		            // Small image containing central crystal's part, cut from the frame blurred once for all the retries
+		            mid_tar = blurred_frame.crop(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
+		            coord_res = doMatch_coord_res(mid_tar.getProcessor(), mid_tpl.getProcessor(), method, subPixel, lineCoord, mid_ws);
+		            
+	    			if (testMatchResult(coord_res[2], mid_mideal, method, coord_res[0], coord_res[1], sArea_new*2, Math.min(mid_rect.width, mid_rect.height))) {
+	    				newmidPositionFound=true;
+	    				found_mid = sArea_new;
+	    			}
+		            
+				}
+     			
+				if (!newmidPositionFound){
+	     			int failureAnswer = matchFailed(slice, MIDDLE, mid_tpl.getProcessor(), coord_res[0]+xStart_mid, coord_res[1]+yStart_mid, coord_res[2]);
+	     			if (failureAnswer==FailureHandler.SEARCH) {
+	     				Rectangle win = new Rectangle();
+	     				ImagePlus[] winImage = new ImagePlus[1];
+	     				double[][] res = new double[1][];
+	     				TemplateBank.Entry entry = research(slice_proc, mid_bank, -mid_angle, mid_rect, frameLine, mid_ws, win, winImage, res);
+	     				failureAnswer = FailureHandler.SKIP;
+	     				if (entry != null) {
+	     					failureAnswer = FailureHandler.ACCEPT;
+	     					mid_angle = -entry.angle;
+	     					mid_tpl = entry.template;
+	     					mid_mideal = entry.idealScore;
+	     					coord_res = res[0];
+	     					xStart_mid = win.x;
+	     					yStart_mid = win.y;
+	     					sWX_mid = win.width;
+	     					sWY_mid = win.height;
+	     					mid_tar = winImage[0];
+	     					found_mid = Math.max(width, height);
+	     				}
+	     			}
+					if (failureAnswer==0) adjustThreshold(coord_res[2], mid_mideal, method);
+	    			ignoreFrame = (failureAnswer==1);
+	    			stopTracking = (failureAnswer==2);
+	    			reselectPoints = (failureAnswer==3);
+				}
+    		}
+			
+			if (ignoreFrame) return SKIPPED;
+	        if (stopTracking) return STOPPED;
+	        if (reselectPoints) return RESELECT;
+     		
+
+		
+			mid_score = coord_res[2];
+			
+			disX_mid = coord_res[0] + xStart_mid - mid_rect.x;
+            disY_mid = coord_res[1] + yStart_mid - mid_rect.y;
+            
+            if (subPixel) {
+            	
+            	disX_mid += midRefCenterShiftX*(Math.cos(-mid_angle*Math.PI/180.0) - 1.0) + midRefCenterShiftY*Math.sin(-mid_angle*Math.PI/180.0);
+            	disY_mid += midRefCenterShiftY*(Math.cos(-mid_angle*Math.PI/180.0) - 1.0) - midRefCenterShiftX*Math.sin(-mid_angle*Math.PI/180.0);
+            }
+            
+            // current bending is computed and checked for the convergence
+            calcBendingParams(false);
+            if (Math.abs(disX_free-dxtmp)<1.0e-5 && Math.abs(disY_free-dytmp)<1.0e-5) break;
+            // the next iteration would use the same template and give the same result
+            if (free_bank.sameTemplate(angle, - (full_angle + 0.5*bending_angle - initial_angle)*180/Math.PI)) break;
+            dxtmp=disX_free;
+            dytmp=disY_free;
+        }
+        
+        if (!reviewing) {
+        	holder_motion.update(slice, disX_holder, disY_holder);
+        	free_motion.update(slice, disX_free, disY_free);
+        	mid_motion.update(slice, disX_mid, disY_mid);
+        }
+        if (sArea != 0 && !reviewing) {
+        	holder_margin.update(Math.hypot(disX_holder - predX_holder, disY_holder - predY_holder), found_holder, 
+        			matchDeviation(holder_score, att_mideal, method) / matchThreshold[method]);
+        	free_margin.update(Math.hypot(disX_free - expX_free, disY_free - expY_free), found_free, 
+        			matchDeviation(free_score, free_mideal, method) / matchThreshold[method]);
+        	mid_margin.update(Math.hypot(disX_mid - expX_mid, disY_mid - expY_mid), found_mid, 
+        			matchDeviation(mid_score, mid_mideal, method) / matchThreshold[method]);
+        }
+		
+        
+        
+        // the creation time of the image is taken from the EXIF metadata or incremented by timeStep
+        
+        if (exifTime)
+        {
+        	Instant shot_time = source.shotTime(slice);
+             
+        	if (shot_time!=null) seconds = Duration.between(first_shot_time, shot_time).toNanos()/1000000000.0;//(new Duration(first_shot_time,shot_time)).getMillis()/1000.0;
+        	else 
+        	{	
+        		exifTime=false;
+        		if (seconds!=0.0) seconds+=timeStep;
+        	}
+        }
+        else seconds+=timeStep;
+		
+        // the windows the regions were found in, for the overlays of the clients
+        holder_window.setBounds(xStart_holder, yStart_holder, sWX_holder, sWY_holder);
+        free_window.setBounds(xStart_free, yStart_free, sWX_free, sWY_free);
+        mid_window.setBounds(xStart_mid, yStart_mid, sWX_mid, sWY_mid);
+        
+        return TRACKED;
+    }
+    
+    
+    // Search rectangle around the displaced template rectangle, clipped by the frame
+    private Rectangle searchRect(Rectangle tpl_rect, double disX, double disY, int margin) {
+    	long x = tpl_rect.x + (long)disX - margin,
+    		 y = tpl_rect.y + (long)disY - margin,
+    		 w = tpl_rect.width + 2L * margin,
+    		 h = tpl_rect.height + 2L * margin;
+    	if (w > width) w = width;
+    	if (h > height) h = height;
+    	if (x < 0) x = 0;
+    	if (y < 0) y = 0;
+    	if (x + w > width) x = width - w;
+    	if (y + h > height) y = height - h;
+    	return new Rectangle((int)x, (int)y, (int)w, (int)h);
+    }
+    
+    // Search margins tried one after another by the pyramid search: a wide neighbourhood and then the whole frame
+    private int[] recoveryMargins(Rectangle tpl_rect) {
+    	int near = Math.max(8 * sArea, Math.max(tpl_rect.width, tpl_rect.height) / 2);
+    	return new int[] {near, Math.max(width, height)};
+    }
+    
+    // Global re-search of a rotated region (the failure answer SEARCH): the whole frame is searched with the template
+    // rotated by up to RESEARCH_ANGLE degrees each side of the expected angle. The best match that passes the test
+    // is taken, its bank entry is returned with the match in res[0] (relative to win), null if none passes.
+    private TemplateBank.Entry research(ImageProcessor slice_proc, TemplateBank bank, double angle, Rectangle tpl_rect, 
+    		double[] searchLine, MatchWorkspace ws, Rectangle win, ImagePlus[] winImage, double[][] res) {
+    	Rectangle frame = new Rectangle(0, 0, width, height), w = new Rectangle();
+    	ImagePlus[] wImage = new ImagePlus[1];
+    	TemplateBank.Entry best = null;
+    	double bestDeviation = Double.POSITIVE_INFINITY;
+    	for (int i = -RESEARCH_STEPS; i <= RESEARCH_STEPS; i++) {
+    		TemplateBank.Entry entry = bank.get(angle + i*RESEARCH_ANGLE/RESEARCH_STEPS);
+    		double[] coord = pyramidSearch(slice_proc, frame, entry.template.getProcessor(), searchLine, ws, w, wImage);
+    		double deviation = matchDeviation(coord[2], entry.idealScore, method);
+    		if (deviation < bestDeviation 
+    				&& testMatchResult(coord[2], entry.idealScore, method, coord[0], coord[1], 0, Math.min(tpl_rect.width, tpl_rect.height))) {
+    			best = entry;
+    			bestDeviation = deviation;
+    			res[0] = coord;
+    			win.setBounds(w);
+    			winImage[0] = wImage[0];
+    		}
+    	}
+    	return best;
+    }
+    
+    // Coarse-to-fine search of the template inside the area of the frame.
+    // The area and the template are reduced by the pyramid factor and matched, then the best candidate 
+    // is refined at full resolution within a few pixels. Only this small window is blurred at full resolution.
+    // The coordinates are returned relative to the refinement window, which is returned in win
+    // (and its preprocessed image in winImage[0] if winImage is not null).
+    // searchLine, if given, is in the frame coordinates.
+    private double[] pyramidSearch(ImageProcessor slice_proc, Rectangle area, ImageProcessor tpl, double[] searchLine, 
+    		MatchWorkspace ws, Rectangle win, ImagePlus[] winImage) {
+    	
+    	int tplW = tpl.getWidth(), tplH = tpl.getHeight();
+    	int factor = recoveryMode == RECOVERY_PYRAMID8 ? 8 : 4;
+    	// the reduced template should keep some details
+    	while (factor > 1 && Math.min(tplW, tplH) / factor < 12) factor /= 2;
+    	
+    	Rectangle r = area;
+    	if (factor > 1) {
+    		ImagePlus area_imp = new ImagePlus("", slice_proc);
+    		area_imp.setRoi(area);
+    		area_imp = area_imp.crop();
+    		if (matchIntensity) {
+    			ImageConverter ic = new ImageConverter(area_imp);
+    			ic.convertToGray32();
+    		}
+    		ImageProcessor coarse = area_imp.getProcessor();
+    		coarse.setInterpolationMethod(ImageProcessor.BILINEAR);
+    		coarse = coarse.resize(area.width / factor, area.height / factor, true);
+    		ImageProcessor coarse_tpl = tpl.duplicate();
+    		coarse_tpl.setInterpolationMethod(ImageProcessor.BILINEAR);
+    		coarse_tpl = coarse_tpl.resize(tplW / factor, tplH / factor, true);
+    		
+    		double[] candidate = doMatch_coord_res(coarse, coarse_tpl, method, false, null, ws);
+    		int cx = area.x + (int)candidate[0] * factor,
+    			cy = area.y + (int)candidate[1] * factor;
+    		cx = Math.max(area.x, Math.min(cx, area.x + area.width - tplW));
+    		cy = Math.max(area.y, Math.min(cy, area.y + area.height - tplH));
+    		int margin = 2 * factor + 2;
+    		r = new Rectangle(cx - margin, cy - margin, tplW + 2 * margin, tplH + 2 * margin).intersection(area);
+    	}
+    	
+    	ImagePlus win_imp = new ImagePlus("", slice_proc);
+    	win_imp.setRoi(r);
+    	win_imp = win_imp.crop();
+    	if (matchIntensity) {
+    		ImageConverter ic = new ImageConverter(win_imp);
+    		ic.convertToGray32();
+    	}
+    	gaussianBlur.blurGaussian(win_imp.getProcessor(), 2, 2, 0.02);
+    	
+    	double[] line = null;
+    	if (searchLine != null) line = new double[] {searchLine[0] - r.x, searchLine[1] - r.y, searchLine[2], searchLine[3]};
+    	double[] coord = doMatch_coord_res(win_imp.getProcessor(), tpl, method, subPixel, line, ws);
+    	
+    	win.setBounds(r);
+    	if (winImage != null) winImage[0] = win_imp;
+    	return coord;
+    }
+    
+    private void calcBendingParams(boolean reselect) {
+    	
+    	
+    	
+    	double H_x=refX_free+disX_free-(refX_att+disX_holder),
+          	   H_y=refY_free+disY_free-(refY_att+disY_holder),
+          	   H=Math.sqrt(H_x*H_x+H_y*H_y),
+          	   cos_full_angle=H_x/H,
+          	   
+          	   H1_x=refX_mid+disX_mid-(refX_att+disX_holder),
+               H1_y=refY_mid+disY_mid-(refY_att+disY_holder),
+               H1=Math.sqrt(H1_x*H1_x+H1_y*H1_y),
+               
+               H2_x=refX_mid+disX_mid-(refX_free+disX_free),
+               H2_y=refY_mid+disY_mid-(refY_free+disY_free),
+               H2=Math.sqrt(H2_x*H2_x+H2_y*H2_y),
+               
+               H_mid_x=refX_mid+disX_mid-(refX_att+disX_holder+refX_free+disX_free)/2.0,
+               H_mid_y=refY_mid+disY_mid-(refY_att+disY_holder+refY_free+disY_free)/2.0,
+               sign=Math.signum(H_x*H_mid_y-H_y*H_mid_x);
+    	
+    	 full_angle=Math.acos(cos_full_angle);
+         if (H_y>0.0) full_angle=-full_angle;
+     	
+        double cos_half_bend=(H*H-H1*H1-H2*H2)/2.0/H1/H2;
+        if (cos_half_bend>=1.0) bending_angle=0.0;
+        else if (cos_half_bend<=-1.0) bending_angle=2.0*Math.PI;
+        else bending_angle=2.0*sign*Math.acos(cos_half_bend);
+     	curvature=2.0*Math.sin(bending_angle/2.0)/H;
+     	deflection_angle=full_angle-bending_angle/2.0;
+     	if (curvature!=0.0) cr_length=Math.abs(bending_angle/curvature);
+     	else cr_length=H;
+     	if (length_ini==0.0) length_ini=cr_length;
+     	if (reselect) length_ini=cr_length/(1.0 + last_deformation);
+        deformation=(cr_length-length_ini)/length_ini;
+    }
+
+ 
+
+	}
@@ -0,0 +1,11 @@
+package bending_crystal_track;
+
+/* Receives the results of the tracking, on the thread running the engine. */
+public interface TrackerListener {
+
+	void frameTracked(FrameResult result);
+
+	// the frame was not tracked (it could not be read or the failure handler skipped it)
+	default void frameSkipped(int slice, String label) {
+	}
+}
@@ -0,0 +1,95 @@
+package bending_crystal_track;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/* Preparation of a search window in one pass: the window is read from the frame, converted to
+ * 32-bit gray and blurred as by GaussianBlur.blurGaussian(ip, 2, 2, 0.02), without the intermediate
+ * images of ImagePlus.crop(), ImageConverter.convertToGray32() and of the blur.
+ * The kernel is the one of GaussianBlur, the pixels beyond the window edges are replaced by the edge
+ * pixels as GaussianBlur does, so the result is the same up to the float rounding.
+ * RGB pixels are converted with the weighting factors of ColorProcessor (Edit>Options>Conversions).
+ */
+final class WindowFilter {
+
+	static final double SIGMA = 2.0, ACCURACY = 0.02;
+
+	// kernel[0] is the central weight, kernel[k] the weight of the pixels at the distance k
+	private final float[] kernel;
+	private final int radius;
+	// one padded line of the source and the window blurred along the rows
+	private float[] line = new float[0], rows = new float[0];
+
+	WindowFilter() {
+		kernel = new GaussianBlur().makeGaussianKernel(SIGMA, ACCURACY, 1000)[0];
+		radius = kernel.length - 1;
+	}
+
+	// the window (x, y, w, h) clipped by the frame, blurred into out if it has the size of the window
+	// (otherwise into a new processor, which is returned)
+	FloatProcessor apply(ImageProcessor frame, int x, int y, int w, int h, FloatProcessor out) {
+		Rectangle r = new Rectangle(x, y, w, h).intersection(new Rectangle(frame.getWidth(), frame.getHeight()));
+		w = r.width;
+		h = r.height;
+		if (out == null || out.getWidth() != w || out.getHeight() != h) out = new FloatProcessor(w, h);
+		float[] result = (float[]) out.getPixels();
+		if (line.length < w + 2 * radius) line = new float[w + 2 * radius];
+		if (rows.length < w * h) rows = new float[w * h];
+
+		// rows: conversion and horizontal blur
+		for (int j = 0; j < h; j++) {
+			readRow(frame, r.x, r.y + j, w);
+			for (int k = 0; k < radius; k++) {
+				line[k] = line[radius];
+				line[radius + w + k] = line[radius + w - 1];
+			}
+			// the kernel loop is outside, so the inner loops run over contiguous pixels
+			int dst = j * w;
+			for (int i = 0; i < w; i++) rows[dst + i] = kernel[0] * line[radius + i];
+			for (int k = 1; k <= radius; k++) {
+				int left = radius - k, right = radius + k;
+				float weight = kernel[k];
+				for (int i = 0; i < w; i++) rows[dst + i] += weight * (line[left + i] + line[right + i]);
+			}
+		}
+		// columns: vertical blur, done row by row for the memory access
+		for (int j = 0; j < h; j++) {
+			int dst = j * w;
+			for (int i = 0; i < w; i++) result[dst + i] = kernel[0] * rows[dst + i];
+			for (int k = 1; k <= radius; k++) {
+				int above = Math.max(j - k, 0) * w, below = Math.min(j + k, h - 1) * w;
+				float weight = kernel[k];
+				for (int i = 0; i < w; i++) result[dst + i] += weight * (rows[above + i] + rows[below + i]);
+			}
+		}
+		out.resetMinAndMax();
+		return out;
+	}
+
+	// w pixels of the frame from (x, y) as gray values, written to the line after the padding
+	private void readRow(ImageProcessor frame, int x, int y, int w) {
+		Object pixels = frame.getPixels();
+		int start = y * frame.getWidth() + x;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < w; i++) line[radius + i] = p[start + i] & 0xff;
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < w; i++) line[radius + i] = p[start + i] & 0xffff;
+		} else if (pixels instanceof float[]) {
+			System.arraycopy((float[]) pixels, start, line, radius, w);
+		} else {
+			int[] p = (int[]) pixels;
+			double[] weights = ColorProcessor.getWeightingFactors();
+			double rw = weights[0], gw = weights[1], bw = weights[2];
+			for (int i = 0; i < w; i++) {
+				int c = p[start + i];
+				line[radius + i] = (float) (((c >> 16) & 0xff) * rw + ((c >> 8) & 0xff) * gw + (c & 0xff) * bw);
+			}
+		}
+	}
+}
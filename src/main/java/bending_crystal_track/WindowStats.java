@@ -0,0 +1,102 @@
+package bending_crystal_track;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/* Summed-area tables of an image: the sums of the pixels (per channel) and of their squares
+ * (over all channels) of any rectangle are obtained from four table values.
+ * Pixels are taken as in TemplateStats. The tables are built once per frame over a blurred block
+ * (or the whole blurred frame, see BlurredFrame), the search windows and the retries cut from it
+ * address them by their offset (at()). The same window is matched with several rotated templates,
+ * the workspace keeps the tables while the window (its pixel array) stays the same.
+ */
+final class WindowStats {
+
+	final int width, height, channels;
+	// (tableWidth+1)*(tableHeight+1) values, the first row and column are zero
+	private final double[][] sum;
+	private final double[] sumSq;
+	private final int stride, offsetX, offsetY;
+	private final Object key;
+
+	private WindowStats(ImageProcessor src, WindowStats reuse) {
+		width = src.getWidth();
+		height = src.getHeight();
+		key = src.getPixels();
+		channels = key instanceof int[] ? 3 : 1;
+		stride = width + 1;
+		offsetX = offsetY = 0;
+		int size = stride * (height + 1);
+		if (reuse != null && reuse.channels == channels && reuse.sumSq.length == size && reuse.stride == stride) {
+			sum = reuse.sum;
+			sumSq = reuse.sumSq;
+		} else {
+			sum = new double[channels][size];
+			sumSq = new double[size];
+		}
+
+		int[] rgb = key instanceof int[] ? (int[]) key : null;
+		double[] rowSum = new double[channels];
+		for (int y = 0; y < height; y++) {
+			double rowSumSq = 0.0;
+			Arrays.fill(rowSum, 0.0);
+			int above = y * stride, here = (y + 1) * stride;
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				for (int ch = 0; ch < channels; ch++) {
+					double v = rgb != null ? (rgb[i] >> (8 * ch)) & 0xff : src.getf(i);
+					rowSum[ch] += v;
+					rowSumSq += v * v;
+					sum[ch][here + x + 1] = sum[ch][above + x + 1] + rowSum[ch];
+				}
+				sumSq[here + x + 1] = sumSq[above + x + 1] + rowSumSq;
+			}
+		}
+	}
+
+	// a window of the image the tables were built for
+	private WindowStats(WindowStats tables, ImageProcessor window, int x, int y) {
+		width = window.getWidth();
+		height = window.getHeight();
+		key = window.getPixels();
+		channels = tables.channels;
+		sum = tables.sum;
+		sumSq = tables.sumSq;
+		stride = tables.stride;
+		offsetX = tables.offsetX + x;
+		offsetY = tables.offsetY + y;
+	}
+
+	static WindowStats of(ImageProcessor src) {
+		return new WindowStats(src, null);
+	}
+
+	// the tables of the previous frame are filled again if the image has the same size
+	static WindowStats of(ImageProcessor src, WindowStats reuse) {
+		return new WindowStats(src, reuse);
+	}
+
+	// the window at (x, y) of the image, cut from it with the same pixel values
+	WindowStats at(ImageProcessor window, int x, int y) {
+		return new WindowStats(this, window, x, y);
+	}
+
+	// true if the tables were built for this image (the same pixel array and size)
+	boolean describes(ImageProcessor src) {
+		return key == src.getPixels() && width == src.getWidth() && height == src.getHeight();
+	}
+
+	double sum(int channel, int x, int y, int w, int h) {
+		return rect(sum[channel], x, y, w, h);
+	}
+
+	double sumSq(int x, int y, int w, int h) {
+		return rect(sumSq, x, y, w, h);
+	}
+
+	private double rect(double[] table, int x, int y, int w, int h) {
+		int top = (y + offsetY) * stride + x + offsetX, bottom = top + h * stride;
+		return table[bottom + w] - table[bottom] - table[top + w] + table[top];
+	}
+}